@@ -16,20 +16,39 @@
 
 package eu.tradegrid.tinkerpop.persistor;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.MapConfiguration;
 import org.vertx.java.busmods.BusModBase;
+import org.vertx.java.core.Context;
 import org.vertx.java.core.Handler;
 import org.vertx.java.core.eventbus.Message;
-import org.vertx.java.core.json.EncodeException;
 import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 
+import com.tinkerpop.blueprints.Direction;
 import com.tinkerpop.blueprints.Edge;
 import com.tinkerpop.blueprints.Element;
 import com.tinkerpop.blueprints.Graph;
@@ -38,11 +57,35 @@ import com.tinkerpop.blueprints.KeyIndexableGraph;
 import com.tinkerpop.blueprints.Parameter;
 import com.tinkerpop.blueprints.TransactionalGraph;
 import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.VertexQuery;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
 import com.tinkerpop.gremlin.groovy.Gremlin;
 import com.tinkerpop.pipes.Pipe;
 import com.tinkerpop.pipes.util.iterators.SingleIterator;
 
+import eu.tradegrid.tinkerpop.persistor.algorithm.GraphSearch;
+import eu.tradegrid.tinkerpop.persistor.algorithm.SubgraphExtractor;
+import eu.tradegrid.tinkerpop.persistor.change.ChangePublisher;
+import eu.tradegrid.tinkerpop.persistor.commit.GroupCommitter;
+import eu.tradegrid.tinkerpop.persistor.compress.PayloadCompressor;
+import eu.tradegrid.tinkerpop.persistor.graph.NamedGraph;
+import eu.tradegrid.tinkerpop.persistor.job.BackgroundJob;
+import eu.tradegrid.tinkerpop.persistor.job.BulkRemoveJob;
+import eu.tradegrid.tinkerpop.persistor.job.GraphExportJob;
+import eu.tradegrid.tinkerpop.persistor.job.GraphImportJob;
+import eu.tradegrid.tinkerpop.persistor.job.KeyIndexJob;
+import eu.tradegrid.tinkerpop.persistor.quota.ClientQuotas;
+import eu.tradegrid.tinkerpop.persistor.replica.ReplicaRouter;
+import eu.tradegrid.tinkerpop.persistor.shard.ShardRouter;
+import eu.tradegrid.tinkerpop.persistor.tier.MemoryTier;
+import eu.tradegrid.tinkerpop.persistor.util.ElementFilter;
+import eu.tradegrid.tinkerpop.persistor.util.EndpointResolver;
+import eu.tradegrid.tinkerpop.persistor.util.GraphEvents;
+import eu.tradegrid.tinkerpop.persistor.util.GraphSONStreamReader;
 import eu.tradegrid.tinkerpop.persistor.util.JsonUtility;
+import eu.tradegrid.tinkerpop.persistor.util.PropertyPredicate;
+import eu.tradegrid.tinkerpop.persistor.util.StripedLocks;
+import eu.tradegrid.tinkerpop.persistor.util.TraversalCompiler;
 
 /**
  * Tinkerpop Persistor Bus Module
@@ -60,9 +103,38 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
     protected String address;
     protected Configuration tinkerpopConfig;
     protected JsonUtility jsonUtility;
+    protected TraversalCompiler traversalCompiler;
     
     protected ConcurrentHashMap<String, Pipe<Element, Object>> queryCache;
     
+    protected ExecutorService jobExecutor;
+    protected ConcurrentHashMap<String, BackgroundJob> jobs;
+    protected long jobRetention;
+    protected File importDirectory;
+    protected File exportDirectory;
+    
+    protected GroupCommitter groupCommitter;
+    protected StripedLocks upsertLocks;
+    
+    protected ShardRouter shardRouter;
+    protected ReplicaRouter replicaRouter;
+    
+    protected List<GraphChangedListener> changeListeners;
+    protected MemoryTier memoryTier;
+    protected ChangePublisher changePublisher;
+    protected long changeFlushTimer;
+    
+    protected ClientQuotas clientQuotas;
+    protected Map<Message<JsonObject>, List<Admission>> admissions;
+    protected Context workerContext;
+    protected String scatterToken;
+    
+    protected Map<String, NamedGraph> namedGraphs;
+    protected ClientQuotas graphQuotas;
+    
+    protected JsonObject searchLimits;
+    protected PayloadCompressor payloadCompressor;
+    
     /**
      * Start the Tinkerpop Persistor module.
      */
@@ -71,10 +143,141 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
         super.start();
         
         address = getOptionalStringConfig("address", "tinkerpop.persistor");
+        
+        JsonObject shardingConfig = config.getObject("sharding");
+        if (shardingConfig != null) {
+            shardRouter = new ShardRouter(shardingConfig);
+        }
+        
         tinkerpopConfig = loadTinkerpopConfig();
+        
+        JsonObject replicationConfig = config.getObject("replication");
+        if (replicationConfig != null && shardRouter != null) {
+            logger.warn("Read replicas are not supported in combination with sharding and are disabled");
+        } else if (replicationConfig != null) {
+            replicaRouter = new ReplicaRouter(replicationConfig);
+        }
         jsonUtility = new JsonUtility(tinkerpopConfig.getString("graphson.mode", "NORMAL"));
+        jsonUtility.setIdMapOffHeapThreshold(getOptionalLongConfig("idMapOffHeapThreshold", 1000000L));
+        traversalCompiler = new TraversalCompiler();
         
         queryCache = new ConcurrentHashMap<>();
+        // Only serializes the upserts of this instance; a unique index is needed across instances.
+        upsertLocks = new StripedLocks(64);
+        changeListeners = new CopyOnWriteArrayList<>();
+        
+        JsonObject memoryTierConfig = config.getObject("memoryTier");
+        if (memoryTierConfig != null && shardRouter != null) {
+            logger.warn("The memory tier is not supported in combination with sharding and is disabled");
+        } else if (memoryTierConfig != null) {
+            memoryTier = new MemoryTier(memoryTierConfig);
+            Graph graph = GraphFactory.open(tinkerpopConfig);
+            try {
+                logger.info(String.format("Loaded %d vertices into the memory tier", memoryTier.load(graph)));
+            } finally {
+                graph.shutdown();
+            }
+            changeListeners.add(memoryTier);
+        }
+        
+        JsonObject changeCaptureConfig = config.getObject("changeCapture");
+        if (changeCaptureConfig != null) {
+            changePublisher = new ChangePublisher(eb, logger, jsonUtility, 
+                    changeCaptureConfig.getString("address", address + ".changes"),
+                    changeCaptureConfig.getInteger("batchSize", 100));
+            changeListeners.add(changePublisher);
+            
+            changeFlushTimer = vertx.setPeriodic(changeCaptureConfig.getLong("maxDelay", 10L), 
+                    new Handler<Long>() {
+                
+                @Override
+                public void handle(Long timerId) {
+                    changePublisher.flush();
+                }
+            });
+        }
+        
+        searchLimits = config.getObject("searchLimits", new JsonObject());
+        payloadCompressor = new PayloadCompressor(config.getObject("compression", new JsonObject()));
+        
+        JsonObject quotasConfig = config.getObject("quotas");
+        if (quotasConfig != null) {
+            clientQuotas = new ClientQuotas(quotasConfig);
+        }
+        admissions = Collections.synchronizedMap(new IdentityHashMap<Message<JsonObject>, List<Admission>>());
+        workerContext = vertx.currentContext();
+        scatterToken = UUID.randomUUID().toString();
+        
+        namedGraphs = new HashMap<>();
+        JsonObject graphsConfig = config.getObject("graphs");
+        if (graphsConfig != null) {
+            JsonObject graphShares = new JsonObject();
+            for (String name : graphsConfig.getFieldNames()) {
+                NamedGraph namedGraph = new NamedGraph(name, graphsConfig.getObject(name));
+                namedGraphs.put(name, namedGraph);
+                graphShares.putObject(name, namedGraph.getQuota());
+            }
+            
+            // The named graphs share the worker capacity like clients share it with client quotas.
+            graphQuotas = new ClientQuotas(new JsonObject()
+                    .putNumber("maxConcurrent", getOptionalIntConfig("graphCapacity", 16))
+                    .putObject("clients", graphShares), "graphName", null);
+        }
+        
+        jobs = new ConcurrentHashMap<>();
+        jobRetention = getOptionalLongConfig("jobRetention", 3600000L);
+        
+        String importDirectoryConfig = getOptionalStringConfig("importDirectory", null);
+        if (importDirectoryConfig != null) {
+            importDirectory = new File(importDirectoryConfig);
+        }
+        String exportDirectoryConfig = getOptionalStringConfig("exportDirectory", null);
+        if (exportDirectoryConfig != null) {
+            exportDirectory = new File(exportDirectoryConfig);
+        }
+        jobExecutor = Executors.newFixedThreadPool(
+                getOptionalIntConfig("jobThreads", 1), new ThreadFactory() {
+            
+            private final AtomicInteger threadCount = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, 
+                        "tinkerpop-persistor-job-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        
+        JsonObject groupCommitConfig = config.getObject("groupCommit");
+        if (groupCommitConfig != null && shardRouter != null) {
+            logger.warn("Group commit is not supported in combination with sharding and is disabled");
+        } else if (groupCommitConfig != null) {
+            groupCommitter = new GroupCommitter(tinkerpopConfig, new GroupCommitter.WriteHandler() {
+                
+                @Override
+                public Object applyWrite(Message<JsonObject> message, Graph graph) {
+                    return TinkerpopPersistor.this.applyWrite(message, graph);
+                }
+                
+                @Override
+                public void replyWrite(Message<JsonObject> message, Object result) {
+                    TinkerpopPersistor.this.replyWrite(message, result);
+                }
+                
+                @Override
+                public void replyError(Message<JsonObject> message, Exception e) {
+                    sendError(message, String.format("Action '%s': %s", 
+                            message.body().getString("action"), e.getMessage()), e);
+                }
+            }, 
+            groupCommitConfig.getInteger("maxBatchSize", 100), 
+            groupCommitConfig.getLong("maxDelay", 5L),
+            groupCommitConfig.getInteger("maxQueueSize", 10000));
+            
+            groupCommitter.setChangeListeners(changeListeners);
+            groupCommitter.start();
+        }
         
         eb.registerHandler(address, this);
         
@@ -86,6 +289,17 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      */
     @Override
     public void stop() {
+        if (groupCommitter != null) {
+            groupCommitter.stop();
+        }
+        if (jobExecutor != null) {
+            jobExecutor.shutdownNow();
+        }
+        if (changePublisher != null) {
+            vertx.cancelTimer(changeFlushTimer);
+            changePublisher.flush();
+        }
+        
         logger.info("TinkerpopPersistor module stopped");
     }
 
@@ -99,76 +313,214 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      */
     @Override
     public void handle(Message<JsonObject> message) {
+        if (PayloadCompressor.isCompressed(message.body())) {
+            try {
+                payloadCompressor.decompress(message.body());
+            } catch (IOException e) {
+                sendError(message, "Invalid compressed message: " + e.getMessage());
+                return;
+            }
+        }
+        
+        // The messages that are scattered over the shards were admitted as a whole already.
+        if (scatterToken.equals(message.body().getString("scatterToken"))) {
+            message.body().removeField("scatterToken");
+            process(message);
+            return;
+        }
+        
+        if (clientQuotas == null) {
+            process(message);
+            return;
+        }
+        
+        admit(clientQuotas, "Client", message, new Handler<Message<JsonObject>>() {
+            
+            @Override
+            public void handle(Message<JsonObject> admitted) {
+                process(admitted);
+            }
+        });
+    }
+    
+    /**
+     * Execute a message when it is admitted by the quotas, or reject or queue it otherwise.
+     * 
+     * @param quotas the quotas that decide on the message
+     * @param kind the kind of client the quotas apply to, for the error messages
+     * @param message the incoming vertx event
+     * @param executor executes the message, and any queued message that is admitted after it
+     */
+    private void admit(ClientQuotas quotas, String kind, Message<JsonObject> message, 
+            Handler<Message<JsonObject>> executor) {
+        
+        switch (quotas.submit(message)) {
+            case RATE_LIMITED:
+                sendError(message, String.format("%s '%s': Rate limit exceeded", 
+                        kind, quotas.getClientId(message)));
+                return;
+            case QUEUE_FULL:
+                sendError(message, String.format("%s '%s': Too many pending requests", 
+                        kind, quotas.getClientId(message)));
+                return;
+            case QUEUED:
+                return;
+            default:
+                break;
+        }
+        
+        execute(new Admission(quotas, executor), message);
+    }
+    
+    /**
+     * Execute an admitted message. The message keeps its slot until its reply is sent (see
+     * {@link #complete(Message)}), so that the asynchronous actions count for the quotas too.
+     * 
+     * @param admission the quotas that admitted the message, and the executor of the message
+     * @param message the incoming vertx event
+     */
+    private void execute(Admission admission, Message<JsonObject> message) {
+        synchronized (admissions) {
+            List<Admission> held = admissions.get(message);
+            if (held == null) {
+                held = new ArrayList<>(2);
+                admissions.put(message, held);
+            }
+            held.add(admission);
+        }
+        
+        try {
+            admission.executor.handle(message);
+        } catch (RuntimeException | Error e) {
+            complete(message);
+            throw e;
+        }
+    }
+    
+    /**
+     * Free the slots of a message that has been replied to.
+     * 
+     * @param message the message
+     */
+    private void complete(Message<JsonObject> message) {
+        release(message, admissions.remove(message));
+    }
+    
+    /**
+     * Free slots that were held by a message. Every slot is handed to the next queued message 
+     * that is selected by its quotas, which is executed on a worker thread.
+     * 
+     * @param message the message
+     * @param held the admissions of the message, or null if it holds no slots
+     */
+    private void release(Message<JsonObject> message, List<Admission> held) {
+        if (held == null) {
+            return;
+        }
+        
+        for (final Admission admission : held) {
+            final Message<JsonObject> next = admission.quotas.release(admission.quotas.getClientId(message));
+            if (next != null) {
+                workerContext.runOnContext(new Handler<Void>() {
+                    
+                    @Override
+                    public void handle(Void event) {
+                        execute(admission, next);
+                    }
+                });
+            }
+        }
+    }
+    
+    /**
+     * Execute the action of a message that has been admitted by the client quotas, if any.
+     * 
+     * @param message the incoming vertx event
+     */
+    private void process(Message<JsonObject> message) {
         String action = getMandatoryString("action", message);
         if (action == null) {
             sendError(message, "Action must be specified");
             return;
         }
         
+        String graphName = message.body().getString("graphName");
+        if (graphName != null) {
+            handleNamedGraph(message, action, graphName);
+            return;
+        }
+        
+        if ("memory".equals(message.body().getString("tier"))) {
+            handleMemoryTier(message, action);
+            return;
+        }
+        
+        Configuration graphConfig = tinkerpopConfig;
+        if (shardRouter != null) {
+            String shard;
+            try {
+                shard = shardRouter.route(message.body());
+            } catch (IllegalArgumentException e) {
+                sendError(message, String.format("Action '%s': %s", action, e.getMessage()));
+                return;
+            }
+            
+            if (shard == null) {
+                if (ShardRouter.isBroadcastAction(action)) {
+                    scatter(message, action);
+                } else {
+                    sendError(message, String.format(
+                            "Action '%s': Cannot determine the shard. Specify a shard or partition key", action));
+                }
+                return;
+            }
+            graphConfig = shardRouter.getConfiguration(shard);
+        }
+        
+        // Small writes are committed together with other writes, if group commit is enabled.
+        if (groupCommitter != null && isGroupCommitAction(action)
+                && message.body().getBoolean("groupCommit", true)) {
+            
+            if (!groupCommitter.submit(message)) {
+                sendError(message, String.format("Action '%s': Group commit queue is full", action));
+            }
+            return;
+        }
+        
+        // Reads are served by a replica, unless the message requires primary consistency.
+        ReplicaRouter.Replica replica = null;
+        Graph replicaGraph = null;
+        if (replicaRouter != null && !"primary".equals(message.body().getString("consistency"))
+                && ReplicaRouter.isReadAction(action, message.body())) {
+            
+            replica = replicaRouter.select();
+            if (replica != null) {
+                try {
+                    replicaGraph = GraphFactory.open(replica.getConfiguration());
+                } catch (RuntimeException e) {
+                    if (replica.recordFailure()) {
+                        logger.warn(String.format("Read replica %d ejected after failing to open", 
+                                replica.getIndex()));
+                    }
+                    replica = null;
+                }
+            }
+        }
+        
         final Graph graph;
         try {
-            graph = GraphFactory.open(tinkerpopConfig);
+            graph = replicaGraph != null ? replicaGraph : observe(GraphFactory.open(graphConfig), action, message);
         } catch (RuntimeException e) {
             sendError(message, "Cannot open Graph using Tinkerpop configuration");
             return;
         }
         
+        long startTime = System.currentTimeMillis();
+        boolean failed = true;
+        
         try {
-            switch (action) {
-                case "addGraph":
-                    addGraph(message, graph);
-                    break;
-                case "addVertex":
-                case "addNode":
-                    addVertex(message, graph);
-                    break;
-                case "query":
-                    query(message, graph);
-                    break;
-                case "getVertices":
-                case "getNodes":
-                    getVertices(message, graph);
-                    break;
-                case "getVertex":
-                case "getNode":
-                    getVertex(message, graph);
-                    break;
-                case "removeVertex":
-                case "removeNode":
-                    removeVertex(message, graph);
-                    break;
-                case "addEdge":
-                case "addRelationship":
-                    addEdge(message, graph);
-                    break;
-                case "getEdge":
-                case "getRelationship":
-                    getEdge(message, graph);
-                    break;
-                case "getEdges":
-                case "getRelationships":
-                    getEdges(message, graph);
-                    break;
-                case "removeEdge":
-                case "removeRelationship":
-                    removeEdge(message, graph);
-                    break;
-                case "createKeyIndex":
-                    createKeyIndex(message, graph);
-                    break;
-                case "dropKeyIndex":
-                    dropKeyIndex(message, graph);
-                    break;
-                case "getIndexedKeys":
-                    getIndexedKeys(message, graph);
-                    break;
-                case "flushQueryCache":
-                    flushQueryCache(message, graph);
-                    break;
-                default:
-                    sendError(message, "Unsupported action " + action);
-                    break;
-            }
+            dispatch(action, message, graph);
+            failed = false;
         } catch (RuntimeException e) {
             if (graph instanceof TransactionalGraph) {
                 ((TransactionalGraph) graph).rollback();
@@ -184,6 +536,323 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
             throw e;
         } finally {
             graph.shutdown();
+            
+            if (replica != null) {
+                recordReplicaRead(replica, failed, System.currentTimeMillis() - startTime);
+            }
+        }
+    }
+    
+    /**
+     * Record the outcome of a read on a replica, which ejects the replica if it fails too often
+     * or is too slow.
+     */
+    private void recordReplicaRead(ReplicaRouter.Replica replica, boolean failed, long latency) {
+        if (failed) {
+            if (replica.recordFailure()) {
+                logger.warn(String.format("Read replica %d ejected because its actions fail", 
+                        replica.getIndex()));
+            }
+        } else if (replica.recordLatency(latency)) {
+            logger.warn(String.format("Read replica %d ejected because it is too slow", 
+                    replica.getIndex()));
+        }
+    }
+    
+    /**
+     * Execute an action on a named graph, once the graph has a free share of the worker capacity.
+     * Sharding, read replicas, group commit, the memory tier and change capture only apply to the
+     * default graph, so the action is executed directly on the named graph.
+     * 
+     * @param message the incoming vertx event
+     * @param action the action of the message
+     * @param graphName the name of the graph
+     */
+    private void handleNamedGraph(Message<JsonObject> message, String action, String graphName) {
+        if (!namedGraphs.containsKey(graphName)) {
+            sendError(message, String.format("Action '%s': Graph %s not found", action, graphName));
+            return;
+        }
+        if (message.body().getString("tier") != null) {
+            sendError(message, String.format(
+                    "Action '%s': The memory tier is only available for the default graph", action));
+            return;
+        }
+        
+        admit(graphQuotas, "Graph", message, new Handler<Message<JsonObject>>() {
+            
+            @Override
+            public void handle(Message<JsonObject> admitted) {
+                executeNamedGraph(admitted);
+            }
+        });
+    }
+    
+    private void executeNamedGraph(Message<JsonObject> message) {
+        String action = message.body().getString("action");
+        NamedGraph namedGraph = namedGraphs.get(message.body().getString("graphName"));
+        
+        Graph graph;
+        try {
+            graph = GraphFactory.open(namedGraph.getConfiguration());
+        } catch (RuntimeException e) {
+            namedGraph.record(0, true);
+            sendError(message, "Cannot open Graph using Tinkerpop configuration");
+            return;
+        }
+        
+        long startTime = System.currentTimeMillis();
+        boolean failed = true;
+        
+        try {
+            dispatch(action, message, graph);
+            failed = false;
+        } catch (RuntimeException e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            
+            sendError(message, 
+                    String.format("Action '%s': %s", action, e.getMessage()), e);
+        } finally {
+            graph.shutdown();
+            namedGraph.record(System.currentTimeMillis() - startTime, failed);
+        }
+    }
+    
+    /**
+     * Execute a read-only action on the in-memory tier instead of the db. The tier graph is
+     * shared and is not shut down.
+     * 
+     * @param message the incoming vertx event
+     * @param action the action of the message
+     */
+    private void handleMemoryTier(Message<JsonObject> message, String action) {
+        if (memoryTier == null) {
+            sendError(message, String.format("Action '%s': No memory tier is configured", action));
+            return;
+        }
+        if (!ReplicaRouter.isReadAction(action, message.body())) {
+            sendError(message, String.format(
+                    "Action '%s': Only read-only actions can be executed on the memory tier", action));
+            return;
+        }
+        
+        if (memoryTier.isStale() && !reloadMemoryTier(message, action)) {
+            return;
+        }
+        
+        Lock lock = memoryTier.readLock();
+        lock.lock();
+        try {
+            dispatch(action, message, memoryTier.getGraph());
+        } catch (RuntimeException e) {
+            sendError(message, 
+                    String.format("Action '%s': %s", action, e.getMessage()), e);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Reload the in-memory tier from the db, after a change could not be applied to it.
+     * 
+     * @return false if the tier cannot be reloaded, in which case an error has been sent
+     */
+    private boolean reloadMemoryTier(Message<JsonObject> message, String action) {
+        try {
+            Graph graph = GraphFactory.open(tinkerpopConfig);
+            try {
+                long count = memoryTier.reload(graph);
+                if (count >= 0) {
+                    logger.warn(String.format("Reloaded %d vertices into the memory tier after a sync error", count));
+                }
+            } finally {
+                graph.shutdown();
+            }
+        } catch (RuntimeException e) {
+            sendError(message, String.format("Action '%s': Cannot reload the memory tier", action), e);
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Wrap the graph of an action that modifies the graph, so that the change listeners are
+     * notified of the committed changes. Other graphs are returned as is. Filters look up the
+     * indexed keys of a wrapped graph in its base graph (see {@link ElementFilter}).
+     */
+    private Graph observe(Graph graph, String action, Message<JsonObject> message) {
+        switch (action) {
+            case "addGraph":
+            case "importGraph":
+            case "addVertex":
+            case "addNode":
+            case "upsertVertex":
+            case "upsertNode":
+            case "updateVertex":
+            case "updateNode":
+            case "removeVertex":
+            case "removeNode":
+            case "removeVertices":
+            case "removeNodes":
+            case "addEdge":
+            case "addRelationship":
+            case "upsertEdge":
+            case "upsertRelationship":
+            case "addEdges":
+            case "addRelationships":
+            case "updateEdge":
+            case "updateRelationship":
+            case "removeEdge":
+            case "removeRelationship":
+            case "removeEdges":
+            case "removeRelationships":
+                return GraphEvents.observe(graph, changeListeners);
+            case "query":
+                return ReplicaRouter.isReadAction(action, message.body()) 
+                        ? graph : GraphEvents.observe(graph, changeListeners);
+            default:
+                return graph;
+        }
+    }
+    
+    /**
+     * Execute the action of the message on the graph.
+     * 
+     * @param action the action to execute
+     * @param message the incoming vertx event
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    private void dispatch(String action, Message<JsonObject> message, Graph graph) {
+        switch (action) {
+            case "addGraph":
+                addGraph(message, graph);
+                break;
+            case "importGraph":
+                importGraph(message, graph);
+                break;
+            case "exportGraph":
+                exportGraph(message, graph);
+                break;
+            case "addVertex":
+            case "addNode":
+                addVertex(message, graph);
+                break;
+            case "query":
+                query(message, graph);
+                break;
+            case "upsertVertex":
+            case "upsertNode":
+                upsertVertex(message, graph);
+                break;
+            case "getVertices":
+            case "getNodes":
+                getVertices(message, graph);
+                break;
+            case "getVertex":
+            case "getNode":
+                getVertex(message, graph);
+                break;
+            case "removeVertex":
+            case "removeNode":
+                removeVertex(message, graph);
+                break;
+            case "removeVertices":
+            case "removeNodes":
+                removeVertices(message, graph);
+                break;
+            case "updateVertex":
+            case "updateNode":
+                updateVertex(message, graph);
+                break;
+            case "addEdge":
+            case "addRelationship":
+                addEdge(message, graph);
+                break;
+            case "upsertEdge":
+            case "upsertRelationship":
+                upsertEdge(message, graph);
+                break;
+            case "addEdges":
+            case "addRelationships":
+                addEdges(message, graph);
+                break;
+            case "getEdge":
+            case "getRelationship":
+                getEdge(message, graph);
+                break;
+            case "getEdges":
+            case "getRelationships":
+                getEdges(message, graph);
+                break;
+            case "removeEdge":
+            case "removeRelationship":
+                removeEdge(message, graph);
+                break;
+            case "removeEdges":
+            case "removeRelationships":
+                removeEdges(message, graph);
+                break;
+            case "updateEdge":
+            case "updateRelationship":
+                updateEdge(message, graph);
+                break;
+            case "countVertices":
+            case "countNodes":
+                countVertices(message, graph);
+                break;
+            case "countEdges":
+            case "countRelationships":
+                countEdges(message, graph);
+                break;
+            case "degree":
+                degree(message, graph);
+                break;
+            case "getNeighbors":
+                getNeighbors(message, graph, "vertices");
+                break;
+            case "getVertexEdges":
+            case "getNodeRelationships":
+                getNeighbors(message, graph, "edges");
+                break;
+            case "shortestPath":
+                shortestPath(message, graph);
+                break;
+            case "kHop":
+                kHop(message, graph);
+                break;
+            case "bfs":
+                bfs(message, graph);
+                break;
+            case "extractSubgraph":
+                extractSubgraph(message, graph);
+                break;
+            case "createKeyIndex":
+                createKeyIndex(message, graph);
+                break;
+            case "dropKeyIndex":
+                dropKeyIndex(message, graph);
+                break;
+            case "getIndexedKeys":
+                getIndexedKeys(message, graph);
+                break;
+            case "getIndexJob":
+            case "getJob":
+                getJob(message, graph);
+                break;
+            case "flushQueryCache":
+                flushQueryCache(message, graph);
+                break;
+            case "getClientUsage":
+                getClientUsage(message, graph);
+                break;
+            case "getMetrics":
+                getMetrics(message, graph);
+                break;
+            default:
+                sendError(message, "Unsupported action " + action);
+                break;
         }
     }
     
@@ -191,6 +860,10 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      * Add a complete {@link Graph} to the db that may consist of multiple vertices and
      * edges. The graph in the message body must follow the GraphSON format.</p>
      * 
+     * If Id's are generated by the db, the reply maps the supplied Id's of the added vertices
+     * and edges to their generated Id's. If 'returnGraph' is true the full graph is returned
+     * instead, which becomes expensive as the db grows.
+     * 
      * @param message the message containing information on the full Graph to create
      * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
      */
@@ -201,8 +874,10 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
             return;
         }
         
+        GraphSONStreamReader reader;
         try {
-            jsonUtility.deserializeGraph(graph, graphJson);
+            reader = jsonUtility.deserializeGraph(graph, graphJson, 
+                    message.body().getInteger("commitSize", 1000));
         } catch (UnsupportedEncodingException e) {
             sendError(message, "Action 'addGraph': The Graphson message is not UTF-8 encoded", e);
             return;
@@ -210,13 +885,11 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
             sendError(message, "Action 'addGraph': The Graphson message is invalid", e);
             return;
         }
-        
-        if (graph instanceof TransactionalGraph) {
-            ((TransactionalGraph) graph).commit();
-        }
 
-        // Need to return the resulting Graph, if Id's have been generated.
-        if (graph.getFeatures().ignoresSuppliedIds) {
+        // Need to return the resulting Id's, if Id's have been generated.
+        if (!graph.getFeatures().ignoresSuppliedIds) {
+            sendOK(message);
+        } else if (message.body().getBoolean("returnGraph", false)) {
             JsonObject reply;
             try {
                 reply = jsonUtility.serializeGraph(graph);
@@ -227,57 +900,169 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
             
             sendOK(message, reply);
         } else {
-            sendOK(message);
+            JsonObject reply = new JsonObject().putObject("ids", new JsonObject()
+                    .putObject("vertices", jsonUtility.serializeIdMapping(reader.getIdMapping()))
+                    .putObject("edges", jsonUtility.serializeIdMapping(reader.getEdgeIdMapping())));
+            
+            sendOK(message, reply);
         }
     }
     
     /**
-     * Add a new {@link Vertex} to the db and return a reply  with the Id of the 
-     * newly created vertex. The vertex in the message body must follow the GraphSON format.
-     * Only the first Vertex in the GraphSON message is processed, other vertices and
-     * edges are ignored.<p/>
+     * Import a GraphSON document from the file specified by 'path' in the configured 
+     * 'importDirectory' by streaming it into the graph, committing after every 'commitSize'
+     * elements (see {@link GraphImportJob}). 
+     * The file is gzip compressed if 'gzip' is true, which defaults to true for '.gz' files.
+     * This avoids sending large graphs through the event bus, as with the 'addGraph' action.
+     * <p/>
+     * The import runs on a background thread if 'async' is true, and the reply then only
+     * contains the 'jobId'. Otherwise the reply contains the element counts and throughput.
      * 
-     * Note that the id is not guaranteed to be similar to that received in the incoming,
-     * {@link Message} since Id generation may be database-vendor-specific.<p/>
-     * 
-     * If an error occurs and the graph was transactional, then a rollback will occur.<p/>
+     * @param message the message containing information on the file to import
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void importGraph(Message<JsonObject> message, Graph graph) {
+        String path = getMandatoryString("path", message);
+        if (path == null) {
+            return;
+        }
+        
+        int commitSize = message.body().getInteger("commitSize", 1000);
+        if (commitSize <= 0) {
+            sendError(message, "Action 'importGraph': commitSize must be positive");
+            return;
+        }
+        
+        File file = resolvePath(message, path, importDirectory, "importDirectory");
+        if (file == null) {
+            return;
+        }
+        
+        GraphImportJob job = new GraphImportJob(getTinkerpopConfig(message), jsonUtility, 
+                file.getPath(), message.body().getBoolean("gzip", path.endsWith(".gz")), commitSize);
+        job.setResolveDatabaseIds(message.body().getBoolean("resolveDatabaseIds", false));
+        job.setChangeListeners(getChangeListeners(message));
+        
+        if (message.body().getBoolean("async", false)) {
+            submitJob(message, job);
+            return;
+        }
+        
+        job.setGraph(graph);
+        job.run();
+        if (job.getStatus() == BackgroundJob.Status.FAILED) {
+            sendError(message, "Action 'importGraph': Cannot import graph. " + job.getError());
+            return;
+        }
+        
+        sendOK(message, job.toJson());
+    }
+    
+    /**
+     * Export the graph in GraphSON format by streaming it element by element, either to the
+     * new file specified by 'path' in the configured 'exportDirectory' or in chunks of 
+     * 'chunkSize' bytes to the event bus address specified by 'chunkAddress' (see 
+     * {@link GraphExportJob}). The export can be restricted to either 'vertices' or 'edges'
+     * with the 'elements' field, and by a 'vertexFilter' and 'edgeFilter'. If 'gzip' is true
+     * the output is compressed.
+     * <p/>
+     * Chunked exports always run on a background thread and the reply only contains the 'jobId'.
+     * File exports do so as well if 'async' is true.
      * 
-     * @param message the message containing information on the new Vertex to create
+     * @param message the message containing information on the export
      * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
      */
-    protected void addVertex(Message<JsonObject> message, Graph graph) {
-        JsonArray verticesJson = message.body().getArray("vertices");
-        if (verticesJson == null || verticesJson.size() == 0) {
-            sendError(message, "Action 'addVertex': No vertex data supplied.");
+    protected void exportGraph(Message<JsonObject> message, Graph graph) {
+        String path = message.body().getString("path");
+        String chunkAddress = message.body().getString("chunkAddress");
+        if (path == null && chunkAddress == null) {
+            sendError(message, "Action 'exportGraph': Either a path or a chunkAddress must be specified");
+            return;
         }
         
-        Vertex vertex;
+        String elements = message.body().getString("elements", "all");
+        if (!"all".equals(elements) && !"vertices".equals(elements) && !"edges".equals(elements)) {
+            sendError(message, "Action 'exportGraph': Unsupported elements " + elements);
+            return;
+        }
+        
+        ElementFilter vertexFilter = null;
+        ElementFilter edgeFilter = null;
         try {
-            vertex = jsonUtility.deserializeVertex(graph, (JsonObject) verticesJson.get(0));
-        } catch (IOException e) {
-            sendError(message, "Action 'addVertex': The Graphson message is invalid", e);
+            if (message.body().getObject("vertexFilter") != null) {
+                vertexFilter = ElementFilter.fromJson(message.body().getObject("vertexFilter"));
+            }
+            if (message.body().getObject("edgeFilter") != null) {
+                edgeFilter = ElementFilter.fromJson(message.body().getObject("edgeFilter"));
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'exportGraph': Invalid filter. " + e.getMessage());
             return;
         }
-
-        if (graph instanceof TransactionalGraph) {
-            ((TransactionalGraph) graph).commit();
-        } else if (graph.getFeatures().ignoresSuppliedIds) {
-            // Shutting down the graph should force Id generation.
-            graph.shutdown();
+        
+        GraphExportJob job = new GraphExportJob(getTinkerpopConfig(message), jsonUtility, 
+                !"edges".equals(elements), !"vertices".equals(elements),
+                vertexFilter, edgeFilter, message.body().getBoolean("gzip", false));
+        
+        if (chunkAddress != null) {
+            int chunkSize = message.body().getInteger("chunkSize", 65536);
+            if (chunkSize < 1024) {
+                sendError(message, "Action 'exportGraph': chunkSize must be at least 1024 bytes");
+                return;
+            }
+            job.setChunkTarget(eb, chunkAddress, chunkSize, 
+                    message.body().getLong("chunkTimeout", 30000L));
+            submitJob(message, job);
+            return;
         }
         
-        if (logger.isDebugEnabled()) {
-            logger.debug("Added Vertex with Id: " + vertex.getId().toString());
+        File file = resolvePath(message, path, exportDirectory, "exportDirectory");
+        if (file == null) {
+            return;
         }
-
-        JsonObject reply = new JsonObject().putValue("_id", vertex.getId());
-        try {
-            sendOK(message, reply);
-        } catch (EncodeException e) {
-            // Id is not a Json support datatype, serialize to string.
-            reply.putValue("_id", vertex.getId().toString());
-            sendOK(message, reply);
+        if (file.exists()) {
+            sendError(message, String.format("Action 'exportGraph': File %s already exists", path));
+            return;
+        }
+        
+        job.setFileTarget(file.getPath());
+        if (message.body().getBoolean("async", false)) {
+            submitJob(message, job);
+            return;
+        }
+        
+        job.setGraph(graph);
+        job.run();
+        if (job.getStatus() == BackgroundJob.Status.FAILED) {
+            sendError(message, "Action 'exportGraph': Cannot export graph. " + job.getError());
+            return;
+        }
+        
+        sendOK(message, job.toJson());
+    }
+    
+    /**
+     * Add a new {@link Vertex} to the db and return a reply  with the Id of the 
+     * newly created vertex. The vertex in the message body must follow the GraphSON format.
+     * Only the first Vertex in the GraphSON message is processed, other vertices and
+     * edges are ignored.<p/>
+     * 
+     * Note that the id is not guaranteed to be similar to that received in the incoming,
+     * {@link Message} since Id generation may be database-vendor-specific.<p/>
+     * 
+     * If an error occurs and the graph was transactional, then a rollback will occur.<p/>
+     * 
+     * @param message the message containing information on the new Vertex to create
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void addVertex(Message<JsonObject> message, Graph graph) {
+        Vertex vertex = writeVertex(message, graph);
+        if (vertex == null) {
+            return;
         }
+
+        commitWrite(graph);
+        replyWrite(message, vertex);
     }
     
     /**
@@ -286,6 +1071,15 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      * The query will first be compiled to a Gremlin {@link Pipe} which is then iterated and
      * returned as JSON in the message reply.
      * <p/>
+     * Instead of a query string a declarative 'traversal' array may be specified, which is
+     * translated directly into a Gremlin Java pipeline without Groovy compilation (see
+     * {@link TraversalCompiler}). Traversals are cheap to build and are not cached.
+     * <p/>
+     * With 'resultMode' set to 'paths' every distinct element is returned once, and each result
+     * becomes an array of steps that refer to those elements by Id (see 
+     * {@link JsonUtility#serializePaths(Iterable)}). This keeps path boundaries and avoids
+     * repeating common ancestors in hierarchical queries.
+     * <p/>
      * Currently there is only support for queries that deal with either {@link Vertex} or {@link Edge}
      * for their starts (and ends) types. 
      * 
@@ -300,12 +1094,22 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
             return;
         }
         
-        String query = getMandatoryString("query", message);
-        if (query == null) {
-            sendError(message, "Action 'query': No query specified.");
+        String resultMode = message.body().getString("resultMode", "flat");
+        if (!"flat".equals(resultMode) && !"paths".equals(resultMode)) {
+            sendError(message, "Action 'query': Unsupported resultMode: " + resultMode);
             return;
         }
         
+        JsonArray traversal = message.body().getArray("traversal");
+        String query = null;
+        if (traversal == null) {
+            query = getMandatoryString("query", message);
+            if (query == null) {
+                sendError(message, "Action 'query': No query specified.");
+                return;
+            }
+        }
+        
         Element element = null;
         if ("Vertex".equals(starts) == true) {
             element = graph.getVertex(id);
@@ -323,8 +1127,15 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
         }
         
         Pipe<Element, Object> pipe = null;
-        if (queryCache.containsKey(query)) {
-            pipe = queryCache.get(query);
+        if (traversal != null) {
+            try {
+                pipe = traversalCompiler.compile(traversal);
+            } catch (IllegalArgumentException e) {
+                sendError(message, "Action 'query': Invalid traversal. " + e.getMessage());
+                return;
+            }
+        } else if (getQueryCache(message).containsKey(query)) {
+            pipe = getQueryCache(message).get(query);
         } else {
             try {
                 pipe = Gremlin.compile(query);
@@ -334,12 +1145,25 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
             }
             
             if (message.body().getBoolean("cache", true)) {
-                queryCache.put(query, pipe);
+                getQueryCache(message).put(query, pipe);
             }
         }
         
         pipe.setStarts(new SingleIterator<Element>(element));
         
+        if ("paths".equals(resultMode)) {
+            JsonObject reply;
+            try {
+                reply = jsonUtility.serializePaths((Iterable<Object>) pipe);
+            } catch (IOException e) {
+                sendError(message, "Action 'query': Error converting Pipe to JSON.", e);
+                return;
+            }
+            
+            sendOK(message, reply);
+            return;
+        }
+        
         JsonArray queryResults;
         try {
             queryResults = jsonUtility.serializePipe(pipe);
@@ -359,6 +1183,9 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      * may contain optional 'key' and a 'value' fields to filter only on those vertices that
      * have the specified key/value pair.<p/>
      * 
+     * Alternatively a 'filter' object with multiple predicates and a 'limit' can be specified,
+     * which is resolved by the graph database through a Blueprints query (see {@link ElementFilter}).
+     * 
      * @param message the message containing information on the vertices to retrieve
      * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
      */
@@ -366,9 +1193,19 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
         String key = message.body().getString("key");
         Object value = message.body().getValue("value");
         
+        ElementFilter filter;
+        try {
+            filter = getElementFilter(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'getVertices': Invalid filter. " + e.getMessage());
+            return;
+        }
+        
         JsonArray verticesJson;
         try {
-            if (key == null) {
+            if (filter != null) {
+                verticesJson = jsonUtility.serializeElements(filter.vertices(graph));
+            } else if (key == null) {
                 verticesJson = jsonUtility.serializeElements(graph.getVertices());    
             } else if (value != null) {
                 verticesJson = jsonUtility.serializeElements(graph.getVertices(key, value));
@@ -416,7 +1253,9 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      * vertices are ignored.<p/>
      * 
      * The vertices for both the _inV and _outV vertex id's specified in the GraphSON message
-     * must both exist in the db.
+     * must both exist in the db. Instead of an Id, an endpoint may be a reference to a vertex
+     * by a unique property value, such as {"key": "externalId", "value": "A-1001"}, which is
+     * looked up through the key index.<p/>
      * 
      * Note that the id is not guaranteed to be similar to that received in the incoming,
      * {@link Message} since Id generation may be database-vendor-specific.<p/>
@@ -427,44 +1266,58 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
      */
     protected void addEdge(Message<JsonObject> message, Graph graph) {
-
-        // Formatted according to GraphSON format.
-        JsonArray edgesJson = message.body().getArray("edges");
-        JsonObject edgeJson = edgesJson.get(0);
-        Object inId = edgeJson.getField("_inV");
-        Object outId = edgeJson.getField("_outV");
-        
-        // The label is a required field in some database products.
-        if (edgeJson.getString("_label") == null) {
-            sendError(message, "Action 'addEdge': Key _label is a required field");
+        Edge edge = writeEdge(message, graph);
+        if (edge == null) {
             return;
         }
         
-        Vertex inVertex = graph.getVertex(inId);
-        Vertex outVertex = graph.getVertex(outId);
-        Edge edge;
+        commitWrite(graph);
+        replyWrite(message, edge);
+    }
+    
+    /**
+     * Add all edges in the GraphSON 'edges' array to the db in a single transaction and return
+     * the Id's of the new edges, in the order of the message. If any edge cannot be added, none
+     * of the edges are added.<p/>
+     * 
+     * Like with 'addEdge' the endpoints may be referenced by a key/value pair instead of their
+     * Id. Each distinct endpoint is looked up only once for the whole batch.
+     * 
+     * @param message the message containing the new edges to create
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void addEdges(Message<JsonObject> message, Graph graph) {
+        JsonArray edgesJson = message.body().getArray("edges");
+        if (edgesJson == null || edgesJson.size() == 0) {
+            sendError(message, "Action 'addEdges': No edge data supplied.");
+            return;
+        }
         
+        EndpointResolver resolver = new EndpointResolver(graph);
+        List<Edge> edges = new ArrayList<>(edgesJson.size());
         try {
-            edge = jsonUtility.deserializeEdge(graph, inVertex, outVertex, edgeJson);
-        } catch (IOException e) {
-            sendError(message, "Action 'addEdge': The Graphson message is invalid", e);
+            for (Object edgeJson : edgesJson) {
+                if (!(edgeJson instanceof JsonObject)) {
+                    throw new IllegalArgumentException("Edges must be JSON objects");
+                }
+                edges.add(createEdge(graph, (JsonObject) edgeJson, resolver));
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            sendError(message, String.format("Action 'addEdges': Cannot add edge %d. %s", 
+                    edges.size(), e.getMessage()));
             return;
         }
         
-        if (graph instanceof TransactionalGraph) {
-            ((TransactionalGraph) graph).commit();
-        } else if (graph.getFeatures().ignoresSuppliedIds) {
-            // Shutting down the graph should force Id generation.
-            graph.shutdown();
-        }
-
+        commitWrite(graph);
+        
         if (logger.isDebugEnabled()) {
-            logger.debug("Added Edge with Id: " + edge.getId().toString());
+            logger.debug(String.format("Added %d edges", edges.size()));
         }
         
-        JsonObject reply = new JsonObject().putValue("_id", edge.getId());
-
-        sendOK(message, reply);
+        sendOK(message, new JsonObject().putArray("ids", jsonUtility.serializeIds(edges)));
     }
     
     /**
@@ -482,6 +1335,9 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      * may contain optional 'key' and a 'value' fields to filter only on those edges that
      * have the specified key/value pair.<p/>
      * 
+     * Alternatively a 'filter' object with multiple predicates and a 'limit' can be specified,
+     * which is resolved by the graph database through a Blueprints query (see {@link ElementFilter}).
+     * 
      * @param message the message containing information on the edges to retrieve
      * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
      */
@@ -489,9 +1345,19 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
         String key = message.body().getString("key");
         Object value = message.body().getValue("value");
         
+        ElementFilter filter;
+        try {
+            filter = getElementFilter(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'getEdges': Invalid filter. " + e.getMessage());
+            return;
+        }
+        
         JsonArray edges;
         try {
-            if (key == null) {
+            if (filter != null) {
+                edges = jsonUtility.serializeElements(filter.edges(graph));
+            } else if (key == null) {
                 edges = jsonUtility.serializeElements(graph.getEdges());    
             } else if (value != null) {
                 edges = jsonUtility.serializeElements(graph.getEdges(key, value));
@@ -522,80 +1388,761 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
     protected void removeEdge(Message<JsonObject> message, Graph graph) {
         removeElement(message, graph, "Edge");
     }
-        
+    
     /**
-     * Create an index in the underlying graph database based on the provided key and optional
-     * parameters.
+     * Remove multiple vertices, either those whose Id's are listed in the 'ids' array, or all 
+     * vertices matching a 'key' and 'value' or a 'filter'. The vertices are removed in chunks of
+     * 'commitSize' vertices that are committed one after the other (see {@link BulkRemoveJob}).
+     * <p/>
+     * The removal runs on a background thread if 'async' is true, and the reply then only
+     * contains the 'jobId'. Otherwise the reply contains the number of deleted vertices.
      * 
-     * @param message the message containing information on the Key Index to create
+     * @param message the message containing information on the vertices to remove
      * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
      */
-    protected void createKeyIndex(Message<JsonObject> message, Graph graph) {
+    protected void removeVertices(Message<JsonObject> message, Graph graph) {
+        removeElements(message, graph, Vertex.class);
+    }
+    
+    /**
+     * Remove multiple edges. This is similar to 'removeVertices'.
+     * 
+     * @param message the message containing information on the edges to remove
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void removeEdges(Message<JsonObject> message, Graph graph) {
+        removeElements(message, graph, Edge.class);
+    }
+    
+    /**
+     * Set and remove properties of the {@link Vertex} with the id specified in the {@link Message},
+     * or of multiple vertices listed in an 'updates' array, in a single transaction. Each update 
+     * contains an '_id', a 'set' object with the properties to set and a 'remove' array with the
+     * keys of the properties to remove. Other properties and the edges of the vertex are left 
+     * as they are.<p/>
+     * 
+     * The reply only contains the Id's of the vertices that actually changed.
+     * 
+     * @param message the message containing the property updates
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void updateVertex(Message<JsonObject> message, Graph graph) {
+        updateElements(message, graph, "Vertex");
+    }
+    
+    /**
+     * Set and remove properties of one or more edges. This is similar to 'updateVertex'.
+     * 
+     * @param message the message containing the property updates
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void updateEdge(Message<JsonObject> message, Graph graph) {
+        updateElements(message, graph, "Edge");
+    }
+    
+    /**
+     * Create or update the vertices in the GraphSON 'vertices' array, which are identified by 
+     * their value for the property 'key'. A vertex that has this value is looked up through the
+     * key index (if one exists) and its properties are updated with the supplied properties, 
+     * otherwise a new vertex is created. All vertices are upserted in a single transaction.<p/>
+     * 
+     * Concurrent upserts of the same key value within this module are serialized, so that they 
+     * cannot both create a vertex. The reply contains the Id of each vertex and whether it was
+     * created, in the order of the message.
+     * 
+     * @param message the message containing the key and the vertices to upsert
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void upsertVertex(Message<JsonObject> message, Graph graph) {
+        String key = getMandatoryString("key", message);
+        if (key == null) {
+            return;
+        }
         
-        if (graph.getFeatures().supportsKeyIndices && graph instanceof KeyIndexableGraph) {
-            String key = getMandatoryString("key", message);
+        JsonArray verticesJson = message.body().getArray("vertices");
+        if (verticesJson == null || verticesJson.size() == 0) {
+            sendError(message, "Action 'upsertVertex': No vertex data supplied.");
+            return;
+        }
+        
+        List<Map<String, Object>> properties = new ArrayList<>(verticesJson.size());
+        List<Object> lockKeys = new ArrayList<>(verticesJson.size());
+        for (Object vertexJson : verticesJson) {
+            Map<String, Object> vertexProperties = getUpsertProperties(message, vertexJson);
+            if (vertexProperties == null) {
+                return;
+            }
             
-            Class<? extends Element> elementClass = getIndexElementClass(message);
-            if (elementClass == null) {
-                sendError(message, "Action 'createKeyIndex': Unsupported elementClass " + elementClass);
+            Object value = vertexProperties.get(key);
+            if (value == null) {
+                sendError(message, String.format(
+                        "Action 'upsertVertex': Every vertex must have a value for key %s", key));
                 return;
             }
             
-            Parameter<String, Object>[] parameters = getIndexParameters(message);
-
-            try {
-                if (parameters == null) {
-                    ((KeyIndexableGraph) graph).createKeyIndex(key, elementClass);
+            properties.add(vertexProperties);
+            lockKeys.add(Arrays.asList("Vertex", key, value));
+        }
+        
+        List<Lock> locks = upsertLocks.lockAll(lockKeys);
+        try {
+            Map<Object, Vertex> upsertedByValue = new HashMap<>();
+            List<Element> upserted = new ArrayList<>(verticesJson.size());
+            List<Boolean> created = new ArrayList<>(verticesJson.size());
+            
+            for (int i = 0; i < verticesJson.size(); i++) {
+                Object value = properties.get(i).get(key);
+                
+                // Vertices created earlier in this batch may not be visible in the index yet.
+                Vertex vertex = upsertedByValue.get(value);
+                if (vertex == null) {
+                    Iterator<Vertex> vertices = graph.getVertices(key, value).iterator();
+                    vertex = vertices.hasNext() ? vertices.next() : null;
+                }
+                
+                if (vertex == null) {
+                    vertex = jsonUtility.deserializeVertex(graph, (JsonObject) verticesJson.get(i));
+                    created.add(true);
                 } else {
-                    ((KeyIndexableGraph) graph).createKeyIndex(key, elementClass, parameters);
+                    setProperties(vertex, properties.get(i));
+                    created.add(false);
                 }
-            } catch (RuntimeException e) {
-                sendError(message, "Action 'createKeyIndex': Cannot create index with key " + key, e);
+                
+                upsertedByValue.put(value, vertex);
+                upserted.add(vertex);
             }
             
-            sendOK(message);
-        } else {
-            sendError(message, "Action 'createKeyIndex': Graph does not support key indices");
+            commitWrite(graph);
+            replyUpserted(message, upserted, created);
+        } catch (IOException e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            sendError(message, "Action 'upsertVertex': The Graphson message is invalid", e);
+        } finally {
+            upsertLocks.unlockAll(locks);
         }
     }
-
+    
     /**
-     * Drop an index in the underlying graph database based on the provided key. The available
-     * index keys can be found by first sending a 'getIndexedKeys' action to the persistor.
+     * Create or update the edges in the GraphSON 'edges' array. An edge is identified by its
+     * '_outV', '_inV' and '_label' and, if the message specifies a 'key', by its value for that
+     * property. Existing edges are looked up through a vertex-centric query on the out vertex 
+     * and their properties are updated, otherwise a new edge is created. All edges are upserted 
+     * in a single transaction.<p/>
      * 
-     * @param message the message containing information on the Key Index to create
+     * The reply contains the Id of each edge and whether it was created, in the order of the message.
+     * 
+     * @param message the message containing the edges to upsert
      * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
      */
-    protected void dropKeyIndex(Message<JsonObject> message, Graph graph) {
+    protected void upsertEdge(Message<JsonObject> message, Graph graph) {
+        String key = message.body().getString("key");
         
-        if (graph.getFeatures().supportsKeyIndices && graph instanceof KeyIndexableGraph) {
-            String key = getMandatoryString("key", message);
-
-            Class<? extends Element> elementClass = getIndexElementClass(message);
-            if (elementClass == null) {
-                sendError(message, "Action 'dropKeyIndex': Unsupported elementClass " + elementClass);
+        JsonArray edgesJson = message.body().getArray("edges");
+        if (edgesJson == null || edgesJson.size() == 0) {
+            sendError(message, "Action 'upsertEdge': No edge data supplied.");
+            return;
+        }
+        
+        List<Map<String, Object>> properties = new ArrayList<>(edgesJson.size());
+        List<Object> lockKeys = new ArrayList<>(edgesJson.size());
+        for (Object edgeObject : edgesJson) {
+            Map<String, Object> edgeProperties = getUpsertProperties(message, edgeObject);
+            if (edgeProperties == null) {
                 return;
             }
             
-            try {
-                ((KeyIndexableGraph) graph).dropKeyIndex(key, elementClass);
-            } catch (RuntimeException e) {
-                sendError(message, "Action 'dropKeyIndex': Cannot drop index with key " + key, e);
+            JsonObject edgeJson = (JsonObject) edgeObject;
+            Object value = key == null ? null : edgeProperties.get(key);
+            if (edgeJson.getField("_outV") == null || edgeJson.getField("_inV") == null 
+                    || edgeJson.getString("_label") == null) {
+                sendError(message, "Action 'upsertEdge': Every edge must have an _outV, _inV and _label");
+                return;
+            } else if (key != null && value == null) {
+                sendError(message, String.format(
+                        "Action 'upsertEdge': Every edge must have a value for key %s", key));
+                return;
             }
             
-            sendOK(message);
-        } else {
-            sendError(message, "Action 'dropKeyIndex': Graph does not support key indices");
+            properties.add(edgeProperties);
+            lockKeys.add(Arrays.asList("Edge", edgeJson.getField("_outV"), edgeJson.getField("_inV"),
+                    edgeJson.getString("_label"), value));
         }
-    }
-    
-    /**
-     * Get the list of keys for all of the indices that exist in the underlying graph database.
-     * 
-     * @param message the message that contains the element class for which to retrieve the indices
-     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
-     */
-    protected void getIndexedKeys(Message<JsonObject> message, Graph graph) {
+        
+        List<Lock> locks = upsertLocks.lockAll(lockKeys);
+        try {
+            Map<Object, Edge> upsertedByKey = new HashMap<>();
+            List<Element> upserted = new ArrayList<>(edgesJson.size());
+            List<Boolean> created = new ArrayList<>(edgesJson.size());
+            
+            for (int i = 0; i < edgesJson.size(); i++) {
+                JsonObject edgeJson = edgesJson.get(i);
+                Vertex outVertex = graph.getVertex(edgeJson.getField("_outV"));
+                Vertex inVertex = graph.getVertex(edgeJson.getField("_inV"));
+                if (outVertex == null || inVertex == null) {
+                    if (graph instanceof TransactionalGraph) {
+                        ((TransactionalGraph) graph).rollback();
+                    }
+                    sendError(message, String.format("Action 'upsertEdge': Vertex %s not found", 
+                            outVertex == null ? edgeJson.getField("_outV") : edgeJson.getField("_inV")));
+                    return;
+                }
+                
+                Edge edge = upsertedByKey.get(lockKeys.get(i));
+                if (edge == null) {
+                    edge = findEdge(outVertex, inVertex, edgeJson.getString("_label"), 
+                            key, key == null ? null : properties.get(i).get(key));
+                }
+                
+                if (edge == null) {
+                    edge = jsonUtility.deserializeEdge(graph, inVertex, outVertex, edgeJson);
+                    created.add(true);
+                } else {
+                    setProperties(edge, properties.get(i));
+                    created.add(false);
+                }
+                
+                upsertedByKey.put(lockKeys.get(i), edge);
+                upserted.add(edge);
+            }
+            
+            commitWrite(graph);
+            replyUpserted(message, upserted, created);
+        } catch (IOException e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            sendError(message, "Action 'upsertEdge': The Graphson message is invalid", e);
+        } finally {
+            upsertLocks.unlockAll(locks);
+        }
+    }
+        
+    /**
+     * Retrieve the adjacent vertices or incident edges of the {@link Vertex} with the id specified
+     * in the {@link Message} using a vertex-centric {@link VertexQuery}, so no Gremlin query needs
+     * to be compiled. The message may contain a 'direction' (OUT, IN or BOTH, the default), an array
+     * of edge 'labels' and a 'filter' on the properties of the edges. The 'returns' field selects
+     * whether 'vertices', 'edges', 'vertexIds' or 'edgeIds' are returned.<p/>
+     * 
+     * @param message the message containing information on the Vertex and its neighborhood
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     * @param defaultReturns what to return if the message does not specify it
+     */
+    protected void getNeighbors(Message<JsonObject> message, Graph graph, String defaultReturns) {
+        String action = message.body().getString("action");
+        Object id = getMandatoryValue(message, "_id");
+        if (id == null) {
+            return;
+        }
+        
+        Direction direction;
+        try {
+            direction = Direction.valueOf(message.body().getString("direction", "BOTH").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            sendError(message, String.format("Action '%s': Unsupported direction %s", 
+                    action, message.body().getString("direction")));
+            return;
+        }
+        
+        ElementFilter filter;
+        try {
+            filter = getElementFilter(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, String.format("Action '%s': Invalid filter. %s", action, e.getMessage()));
+            return;
+        }
+        
+        Vertex vertex = graph.getVertex(id);
+        if (vertex == null) {
+            sendError(message, String.format("Action '%s': Vertex %s not found", action, id.toString()));
+            return;
+        }
+        
+        VertexQuery vertexQuery = vertex.query().direction(direction).labels(getLabels(message));
+        if (filter != null) {
+            filter.applyTo(vertexQuery);
+        }
+        
+        String returns = message.body().getString("returns", defaultReturns);
+        JsonObject reply = new JsonObject();
+        try {
+            switch (returns) {
+                case "vertices":
+                    reply.putObject("graph", new JsonObject()
+                            .putString("mode", jsonUtility.getGraphSONMode())
+                            .putArray("vertices", jsonUtility.serializeElements(vertexQuery.vertices())));
+                    break;
+                case "edges":
+                    reply.putObject("graph", new JsonObject()
+                            .putString("mode", jsonUtility.getGraphSONMode())
+                            .putArray("edges", jsonUtility.serializeElements(vertexQuery.edges())));
+                    break;
+                case "vertexIds":
+                    reply.putArray("ids", jsonUtility.serializeIds(vertexQuery.vertices()));
+                    break;
+                case "edgeIds":
+                    reply.putArray("ids", jsonUtility.serializeIds(vertexQuery.edges()));
+                    break;
+                default:
+                    sendError(message, String.format("Action '%s': Unsupported returns %s", action, returns));
+                    return;
+            }
+        } catch (IOException e) {
+            sendError(message, String.format("Action '%s': Cannot convert %s to JSON", action, returns), e);
+            return;
+        }
+        
+        sendOK(message, reply);
+    }
+    
+    /**
+     * Find a shortest path from the Vertex with Id 'from' to the Vertex with Id 'to' by a 
+     * bidirectional breadth-first search (see {@link GraphSearch}). Like with 'getNeighbors' the 
+     * edges that are followed can be restricted by 'direction' (OUT, IN or BOTH, the default), 
+     * edge 'labels' and a 'filter' on the properties of the edges. The search is bounded by 
+     * 'maxDepth', 'maxFrontier' and 'maxVisited', which cannot exceed the configured 'searchLimits'.
+     * <p/>
+     * The reply contains the Id's of the vertices on the 'path', or the vertices themselves if 
+     * 'returns' is 'vertices'. If no path is found, 'found' is false and 'truncated' tells whether
+     * the search gave up because of the limits.
+     * 
+     * @param message the message containing information on the path to find
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void shortestPath(Message<JsonObject> message, Graph graph) {
+        GraphSearch search;
+        try {
+            search = getGraphSearch(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'shortestPath': " + e.getMessage());
+            return;
+        }
+        
+        Vertex from = getSearchVertex(message, graph, "from");
+        if (from == null) {
+            return;
+        }
+        Vertex to = getSearchVertex(message, graph, "to");
+        if (to == null) {
+            return;
+        }
+        
+        List<Object> path = search.shortestPath(from, to);
+        
+        JsonObject reply = new JsonObject().putBoolean("found", path != null);
+        if (path != null) {
+            reply.putArray("path", serializeIdList(path));
+        }
+        replySearch(message, graph, search, reply, path);
+    }
+    
+    /**
+     * Retrieve the vertices within 'depth' (default 2) hops of the Vertex with the '_id', by
+     * distance. The edges that are followed and the limits of the search are specified like with
+     * the 'shortestPath' action. The reply contains an array of Id's for every distance in 
+     * 'levels', and also the vertices themselves if 'returns' is 'vertices'.
+     * 
+     * @param message the message containing information on the neighborhood to retrieve
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void kHop(Message<JsonObject> message, Graph graph) {
+        GraphSearch search;
+        try {
+            search = getGraphSearch(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'kHop': " + e.getMessage());
+            return;
+        }
+        
+        Vertex vertex = getSearchVertex(message, graph, "_id");
+        if (vertex == null) {
+            return;
+        }
+        
+        List<List<Object>> levels = search.kHop(vertex, message.body().getInteger("depth", 2));
+        
+        JsonArray levelsJson = new JsonArray();
+        List<Object> ids = new ArrayList<>();
+        for (List<Object> level : levels) {
+            levelsJson.addArray(serializeIdList(level));
+            ids.addAll(level);
+        }
+        replySearch(message, graph, search, new JsonObject().putArray("levels", levelsJson), ids);
+    }
+    
+    /**
+     * Visit the vertices breadth-first from the Vertex with the '_id'. The edges that are 
+     * followed and the limits of the search are specified like with the 'shortestPath' action.
+     * <p/>
+     * If 'until' predicates are specified, the search ends at the first vertex that satisfies all
+     * of them, and the reply contains the 'path' to that vertex. Otherwise all vertices within 
+     * the limits are visited. The reply contains the Id's of the visited vertices in the order of
+     * their visit in 'ids', and also the vertices themselves if 'returns' is 'vertices'.
+     * 
+     * @param message the message containing information on the search
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void bfs(Message<JsonObject> message, Graph graph) {
+        GraphSearch search;
+        List<PropertyPredicate> until = null;
+        try {
+            search = getGraphSearch(message);
+            if (message.body().getField("until") != null) {
+                until = PropertyPredicate.listFromJson(message.body().getField("until"));
+            }
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'bfs': " + e.getMessage());
+            return;
+        }
+        
+        Vertex vertex = getSearchVertex(message, graph, "_id");
+        if (vertex == null) {
+            return;
+        }
+        
+        List<Object> ids = search.bfs(vertex, until);
+        
+        JsonObject reply = new JsonObject().putArray("ids", serializeIdList(ids));
+        if (until != null) {
+            reply.putBoolean("found", search.getFound() != null);
+            if (search.getFound() != null) {
+                reply.putArray("path", serializeIdList(search.getPath(search.getFound())));
+            }
+        }
+        replySearch(message, graph, search, reply, ids);
+    }
+    
+    /**
+     * Retrieve the subgraph around one ('_id') or more ('ids') seed vertices in a single call (see
+     * {@link SubgraphExtractor}). The subgraph consists of the vertices within 'depth' (default 1)
+     * hops of the seeds, following the edges by 'direction', edge 'labels' and 'filter' like with
+     * 'getNeighbors', and of the edges between those vertices. The number of elements is limited
+     * by 'maxElements', which cannot exceed the configured 'searchLimits'.
+     * <p/>
+     * The reply is a GraphSON document with every element once, which can be passed as is to the
+     * 'addGraph' action of another persistor.
+     * 
+     * @param message the message containing information on the subgraph to retrieve
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void extractSubgraph(Message<JsonObject> message, Graph graph) {
+        JsonArray ids = message.body().getArray("ids");
+        if (ids == null) {
+            Object id = getMandatoryValue(message, "_id");
+            if (id == null) {
+                return;
+            }
+            ids = new JsonArray().add(id);
+        }
+        
+        String directionName = message.body().getString("direction", "BOTH");
+        Direction direction;
+        try {
+            direction = Direction.valueOf(directionName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'extractSubgraph': Unsupported direction " + directionName);
+            return;
+        }
+        
+        ElementFilter filter;
+        try {
+            filter = getElementFilter(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'extractSubgraph': Invalid filter. " + e.getMessage());
+            return;
+        }
+        
+        List<Vertex> seeds = new ArrayList<>();
+        for (Object id : ids) {
+            Vertex vertex = graph.getVertex(id);
+            if (vertex == null) {
+                sendError(message, String.format("Action 'extractSubgraph': Vertex %s not found", id));
+                return;
+            }
+            seeds.add(vertex);
+        }
+        
+        SubgraphExtractor extractor = new SubgraphExtractor(direction, getLabels(message), filter, 
+                getSearchLimit(message, "maxElements", 10000));
+        extractor.extract(seeds, message.body().getInteger("depth", 1));
+        
+        JsonObject reply;
+        try {
+            reply = new JsonObject().putObject("graph", new JsonObject()
+                    .putString("mode", jsonUtility.getGraphSONMode())
+                    .putArray("vertices", jsonUtility.serializeElements(extractor.getVertices()))
+                    .putArray("edges", jsonUtility.serializeElements(extractor.getEdges())));
+        } catch (IOException e) {
+            sendError(message, "Action 'extractSubgraph': Cannot convert subgraph to JSON", e);
+            return;
+        }
+        
+        reply.putBoolean("truncated", extractor.isTruncated());
+        sendOK(message, reply);
+    }
+    
+    /**
+     * Create the search for the 'shortestPath', 'kHop' and 'bfs' actions from the message.
+     * 
+     * @throws IllegalArgumentException if the direction or the filter is invalid
+     */
+    private GraphSearch getGraphSearch(Message<JsonObject> message) {
+        String directionName = message.body().getString("direction", "BOTH");
+        Direction direction;
+        try {
+            direction = Direction.valueOf(directionName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unsupported direction " + directionName);
+        }
+        
+        GraphSearch search = new GraphSearch(direction, getLabels(message), getElementFilter(message), 
+                jsonUtility.getIdMapOffHeapThreshold());
+        search.setMaxDepth(getSearchLimit(message, "maxDepth", 6));
+        search.setMaxFrontier(getSearchLimit(message, "maxFrontier", 10000));
+        search.setMaxVisited(getSearchLimit(message, "maxVisited", 100000));
+        return search;
+    }
+    
+    /**
+     * @return the limit of the message, which cannot exceed the configured limit
+     */
+    private int getSearchLimit(Message<JsonObject> message, String limit, int defaultValue) {
+        int configuredLimit = searchLimits.getInteger(limit, defaultValue);
+        return Math.min(configuredLimit, message.body().getInteger(limit, configuredLimit));
+    }
+    
+    private Vertex getSearchVertex(Message<JsonObject> message, Graph graph, String fieldName) {
+        Object id = getMandatoryValue(message, fieldName);
+        if (id == null) {
+            return null;
+        }
+        
+        Vertex vertex = graph.getVertex(id);
+        if (vertex == null) {
+            sendError(message, String.format("Action '%s': Vertex %s not found", 
+                    message.body().getString("action"), id.toString()));
+        }
+        return vertex;
+    }
+    
+    /**
+     * Complete the reply of a search with its statistics and, if 'returns' is 'vertices', with
+     * the vertices with the Id's.
+     */
+    private void replySearch(Message<JsonObject> message, Graph graph, GraphSearch search, 
+            JsonObject reply, List<Object> ids) {
+        
+        String action = message.body().getString("action");
+        String returns = message.body().getString("returns", "vertexIds");
+        if ("vertices".equals(returns)) {
+            List<Vertex> vertices = new ArrayList<>();
+            if (ids != null) {
+                for (Object id : ids) {
+                    vertices.add(graph.getVertex(id));
+                }
+            }
+            
+            try {
+                reply.putObject("graph", new JsonObject()
+                        .putString("mode", jsonUtility.getGraphSONMode())
+                        .putArray("vertices", jsonUtility.serializeElements(vertices)));
+            } catch (IOException e) {
+                sendError(message, String.format("Action '%s': Cannot convert vertices to JSON", action), e);
+                return;
+            }
+        } else if (!"vertexIds".equals(returns)) {
+            sendError(message, String.format("Action '%s': Unsupported returns %s", action, returns));
+            return;
+        }
+        
+        reply.putBoolean("truncated", search.isTruncated());
+        reply.putNumber("visited", search.getVisitedCount());
+        sendOK(message, reply);
+    }
+    
+    private JsonArray serializeIdList(List<Object> ids) {
+        JsonArray idsJson = new JsonArray();
+        for (Object id : ids) {
+            idsJson.add(jsonUtility.serializeId(id));
+        }
+        return idsJson;
+    }
+    
+    /**
+     * Count the vertices in the db without serializing them. The {@link Message} may contain 
+     * optional 'key' and 'value' fields, or a 'filter', similar to the 'getVertices' action.<p/>
+     * 
+     * @param message the message containing information on the vertices to count
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void countVertices(Message<JsonObject> message, Graph graph) {
+        countElements(message, graph, "Vertex");
+    }
+    
+    /**
+     * Count the edges in the db without serializing them. The {@link Message} may contain 
+     * optional 'key' and 'value' fields, or a 'filter', similar to the 'getEdges' action.<p/>
+     * 
+     * @param message the message containing information on the edges to count
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void countEdges(Message<JsonObject> message, Graph graph) {
+        countElements(message, graph, "Edge");
+    }
+    
+    /**
+     * Retrieve the degree of one ('_id') or more ('ids') vertices, i.e. the number of incident 
+     * edges, optionally restricted by 'direction' (OUT, IN or BOTH, the default), edge 'labels' 
+     * and a 'filter' on the properties of the edges. The degree is counted by the 
+     * {@link VertexQuery} of the vertex, which allows the underlying graphdb to use its 
+     * native count where available.<p/>
+     * 
+     * @param message the message containing information on the vertices and edges to count
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void degree(Message<JsonObject> message, Graph graph) {
+        JsonArray ids = message.body().getArray("ids");
+        if (ids == null) {
+            Object id = getMandatoryValue(message, "_id");
+            if (id == null) {
+                return;
+            }
+            ids = new JsonArray().add(id);
+        }
+        
+        Direction direction;
+        try {
+            direction = Direction.valueOf(message.body().getString("direction", "BOTH").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'degree': Unsupported direction " 
+                    + message.body().getString("direction"));
+            return;
+        }
+        
+        ElementFilter filter;
+        try {
+            filter = getElementFilter(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'degree': Invalid filter. " + e.getMessage());
+            return;
+        }
+        
+        String[] labels = getLabels(message);
+        JsonArray degrees = new JsonArray();
+        for (Object id : ids) {
+            Vertex vertex = graph.getVertex(id);
+            if (vertex == null) {
+                sendError(message, String.format("Action 'degree': Vertex %s not found", id.toString()));
+                return;
+            }
+            
+            VertexQuery vertexQuery = vertex.query().direction(direction).labels(labels);
+            if (filter != null) {
+                filter.applyTo(vertexQuery);
+            }
+            
+            degrees.addObject(new JsonObject()
+                    .putValue("_id", id)
+                    .putNumber("degree", vertexQuery.count()));
+        }
+        
+        JsonObject reply;
+        if (message.body().getArray("ids") == null) {
+            reply = degrees.get(0);
+        } else {
+            reply = new JsonObject().putArray("degrees", degrees);
+        }
+        
+        sendOK(message, reply);
+    }
+    
+    /**
+     * Create an index in the underlying graph database based on the provided key and optional
+     * parameters.
+     * <p/>
+     * If 'async' is true, the index is created by a {@link KeyIndexJob} on a background thread
+     * and the reply only contains the 'jobId' with which the progress can be retrieved using 
+     * the 'getIndexJob' action.
+     * 
+     * @param message the message containing information on the Key Index to create
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void createKeyIndex(Message<JsonObject> message, Graph graph) {
+        
+        if (graph.getFeatures().supportsKeyIndices && graph instanceof KeyIndexableGraph) {
+            String key = getMandatoryString("key", message);
+            
+            Class<? extends Element> elementClass = getIndexElementClass(message);
+            if (elementClass == null) {
+                sendError(message, "Action 'createKeyIndex': Unsupported elementClass " + elementClass);
+                return;
+            }
+            
+            Parameter<String, Object>[] parameters = getIndexParameters(message);
+            
+            if (message.body().getBoolean("async", false)) {
+                KeyIndexJob job = new KeyIndexJob(getTinkerpopConfig(message), key, elementClass, parameters,
+                        message.body().getBoolean("scanElements", false));
+                submitJob(message, job);
+                return;
+            }
+
+            try {
+                if (parameters == null) {
+                    ((KeyIndexableGraph) graph).createKeyIndex(key, elementClass);
+                } else {
+                    ((KeyIndexableGraph) graph).createKeyIndex(key, elementClass, parameters);
+                }
+            } catch (RuntimeException e) {
+                sendError(message, "Action 'createKeyIndex': Cannot create index with key " + key, e);
+                return;
+            }
+            
+            sendOK(message);
+        } else {
+            sendError(message, "Action 'createKeyIndex': Graph does not support key indices");
+        }
+    }
+
+    /**
+     * Drop an index in the underlying graph database based on the provided key. The available
+     * index keys can be found by first sending a 'getIndexedKeys' action to the persistor.
+     * 
+     * @param message the message containing information on the Key Index to create
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void dropKeyIndex(Message<JsonObject> message, Graph graph) {
+        
+        if (graph.getFeatures().supportsKeyIndices && graph instanceof KeyIndexableGraph) {
+            String key = getMandatoryString("key", message);
+
+            Class<? extends Element> elementClass = getIndexElementClass(message);
+            if (elementClass == null) {
+                sendError(message, "Action 'dropKeyIndex': Unsupported elementClass " + elementClass);
+                return;
+            }
+            
+            try {
+                ((KeyIndexableGraph) graph).dropKeyIndex(key, elementClass);
+            } catch (RuntimeException e) {
+                sendError(message, "Action 'dropKeyIndex': Cannot drop index with key " + key, e);
+            }
+            
+            sendOK(message);
+        } else {
+            sendError(message, "Action 'dropKeyIndex': Graph does not support key indices");
+        }
+    }
+    
+    /**
+     * Get the list of keys for all of the indices that exist in the underlying graph database.
+     * 
+     * @param message the message that contains the element class for which to retrieve the indices
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void getIndexedKeys(Message<JsonObject> message, Graph graph) {
         
         if (graph.getFeatures().supportsKeyIndices && graph instanceof KeyIndexableGraph) {
             try {
@@ -618,16 +2165,190 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
         }
     }
     
+    /**
+     * Retrieve the progress of the background job with the 'jobId' specified in the 
+     * {@link Message}.
+     * 
+     * @param message the message that contains the id of the job
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void getJob(Message<JsonObject> message, Graph graph) {
+        String jobId = getMandatoryString("jobId", message);
+        if (jobId == null) {
+            return;
+        }
+        
+        BackgroundJob job = jobs.get(jobId);
+        if (job == null) {
+            sendError(message, String.format("Action '%s': Job %s not found", 
+                    message.body().getString("action"), jobId));
+            return;
+        }
+        
+        sendOK(message, job.toJson());
+    }
+    
     protected void flushQueryCache(Message<JsonObject> message, Graph graph) {
         String query = message.body().getString("query");
         if (query == null) {
-            queryCache.clear();
+            getQueryCache(message).clear();
         } else {
-            queryCache.remove(query);
+            getQueryCache(message).remove(query);
         }
         sendOK(message);
     }
     
+    /**
+     * Get the usage counters of the client specified by 'clientId', or of all clients that
+     * have sent messages if no client is specified.
+     * 
+     * @param message the message that optionally contains the 'clientId'
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void getClientUsage(Message<JsonObject> message, Graph graph) {
+        if (clientQuotas == null) {
+            sendError(message, "Action 'getClientUsage': No client quotas are configured");
+            return;
+        }
+        
+        sendOK(message, new JsonObject().putObject("clients", 
+                clientQuotas.getUsage(message.body().getString("clientId"))));
+    }
+    
+    /**
+     * Get the metrics of the module, such as the compression ratio of the compressed replies
+     * and requests.
+     * 
+     * @param message the message
+     * @param graph the Tinkerpop graph that is used to communicate with the underlying graphdb
+     */
+    protected void getMetrics(Message<JsonObject> message, Graph graph) {
+        JsonObject reply = new JsonObject().putObject("compression", payloadCompressor.getMetrics());
+        
+        if (groupCommitter != null) {
+            reply.putObject("groupCommit", groupCommitter.getMetrics());
+        }
+        if (memoryTier != null) {
+            reply.putObject("memoryTier", memoryTier.getMetrics());
+        }
+        
+        if (!namedGraphs.isEmpty()) {
+            JsonObject graphsJson = new JsonObject();
+            for (NamedGraph namedGraph : namedGraphs.values()) {
+                JsonObject graphJson = namedGraph.getMetrics();
+                JsonObject usage = graphQuotas.getUsage(namedGraph.getName()).getObject(namedGraph.getName());
+                if (usage != null) {
+                    graphJson.putObject("usage", usage);
+                }
+                graphsJson.putObject(namedGraph.getName(), graphJson);
+            }
+            reply.putObject("graphs", graphsJson);
+        }
+        
+        sendOK(message, reply);
+    }
+    
+    /**
+     * Reply to a successful action. If the message has 'compress' set to true, a large reply is
+     * compressed (see {@link PayloadCompressor}).
+     */
+    @Override
+    protected void sendOK(Message<JsonObject> message, JsonObject json) {
+        if (json != null && message.body().getBoolean("compress", false)) {
+            json = payloadCompressor.compress(json);
+        }
+        super.sendOK(message, json);
+    }
+    
+    @Override
+    protected void sendStatus(String status, Message<JsonObject> message, JsonObject json) {
+        super.sendStatus(status, message, json);
+        complete(message);
+    }
+    
+    @Override
+    protected void sendError(Message<JsonObject> message, String error, Exception e) {
+        super.sendError(message, error, e);
+        complete(message);
+    }
+    
+    /**
+     * Register the job and execute it on a background thread. Jobs that finished longer ago
+     * than the configured 'jobRetention' are removed from the registry. The job keeps the
+     * quota slots of its message until it finishes.
+     */
+    private void submitJob(final Message<JsonObject> message, final BackgroundJob job) {
+        long expired = System.currentTimeMillis() - jobRetention;
+        for (BackgroundJob registeredJob : jobs.values()) {
+            if (registeredJob.isFinished() && registeredJob.getLastActivityTime() < expired) {
+                jobs.remove(registeredJob.getId());
+            }
+        }
+        
+        jobs.put(job.getId(), job);
+        final List<Admission> held = admissions.remove(message);
+        try {
+            jobExecutor.execute(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        job.run();
+                    } finally {
+                        release(message, held);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId());
+            release(message, held);
+            sendError(message, String.format("Action '%s': Cannot start background job", 
+                    message.body().getString("action")), e);
+            return;
+        }
+        
+        sendOK(message, new JsonObject().putString("jobId", job.getId()));
+    }
+    
+    /**
+     * Resolve the 'path' of a message against a configured directory. The path must be relative
+     * and may not leave the directory, e.g. with '..' or through a symbolic link.
+     * 
+     * @param message the message that contains the path
+     * @param path the path of the file
+     * @param directory the directory, or null if none is configured
+     * @param directorySetting the name of the directory setting, for the error messages
+     * @return the file, or null if the path is not allowed, in which case an error has been sent
+     */
+    private File resolvePath(Message<JsonObject> message, String path, File directory, 
+            String directorySetting) {
+        
+        String action = message.body().getString("action");
+        if (directory == null) {
+            sendError(message, String.format("Action '%s': No %s is configured", action, directorySetting));
+            return null;
+        }
+        
+        File file = null;
+        if (!new File(path).isAbsolute()) {
+            try {
+                File base = directory.getCanonicalFile();
+                File resolved = new File(base, path).getCanonicalFile();
+                if (!resolved.equals(base) && resolved.toPath().startsWith(base.toPath())) {
+                    file = resolved;
+                }
+            } catch (IOException e) {
+                logger.warn(String.format("Cannot resolve path %s in %s", path, directory), e);
+            }
+        }
+        
+        if (file == null) {
+            sendError(message, String.format("Action '%s': Path %s is not within the %s", 
+                    action, path, directorySetting));
+        }
+        return file;
+    }
+    
     private Class<? extends Element> getIndexElementClass(Message<JsonObject> message) {
         String elementClass = getMandatoryString("elementClass", message);
 
@@ -650,7 +2371,44 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
             parameters = (Parameter<String, Object>[]) indexParameters.toMap().entrySet().toArray();
         }
         
-        return parameters;
+        return parameters;
+    }
+    
+    private String[] getLabels(Message<JsonObject> message) {
+        JsonArray labelsJson = message.body().getArray("labels");
+        if (labelsJson == null) {
+            return new String[0];
+        }
+        
+        String[] labels = new String[labelsJson.size()];
+        for (int i = 0; i < labelsJson.size(); i++) {
+            labels[i] = labelsJson.get(i);
+        }
+        return labels;
+    }
+    
+    /**
+     * Get the optional 'filter' from the message. If the message also contains a 'key' and
+     * 'value', then these are added to the filter as an exact match.
+     * 
+     * @return the filter, or null if the message does not contain one
+     * @throws IllegalArgumentException if the filter is invalid
+     */
+    private ElementFilter getElementFilter(Message<JsonObject> message) {
+        JsonObject filterJson = message.body().getObject("filter");
+        if (filterJson == null) {
+            return null;
+        }
+        
+        ElementFilter filter = ElementFilter.fromJson(filterJson);
+        
+        String key = message.body().getString("key");
+        Object value = message.body().getValue("value");
+        if (key != null && value != null) {
+            filter.addKeyValue(key, value);
+        }
+        
+        return filter;
     }
     
     private void getElement(Message<JsonObject> message, 
@@ -688,45 +2446,522 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
         sendOK(message, reply);
     }
     
+    private void countElements(Message<JsonObject> message, 
+            final Graph graph, String elementType) {
+        
+        String key = message.body().getString("key");
+        Object value = message.body().getValue("value");
+        
+        ElementFilter filter;
+        try {
+            filter = getElementFilter(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, String.format(
+                    "Action 'count%s': Invalid filter. %s", elementType, e.getMessage()));
+            return;
+        }
+        
+        if (filter == null && key != null) {
+            if (value == null) {
+                sendError(message, String.format(
+                        "Action 'count%s': Both a key and a value must be specified", elementType));
+                return;
+            }
+            filter = ElementFilter.forKeyValue(key, value);
+        }
+        
+        Iterable<? extends Element> elements;
+        if (elementType.equals("Vertex")) {
+            elements = filter == null ? graph.getVertices() : filter.vertices(graph);
+        } else {
+            elements = filter == null ? graph.getEdges() : filter.edges(graph);
+        }
+        
+        long count = 0;
+        for (Iterator<? extends Element> iterator = elements.iterator(); iterator.hasNext(); iterator.next()) {
+            count++;
+        }
+        
+        sendOK(message, new JsonObject().putNumber("count", count));
+    }
+    
     private void removeElement(Message<JsonObject> message, 
             final Graph graph, String elementType) {
         
-        Object id = getMandatoryValue(message, "_id");
+        Object id;
+        try {
+            id = writeRemoval(message, graph, elementType);
+        } catch (RuntimeException e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            
+            sendError(message, 
+                    String.format("Action 'remove%s': Error removing %s with Id %s", 
+                    elementType, elementType, message.body().getField("_id")));
+            return;
+        }
+        
         if (id == null) {
             return;
         }
+
+        if (graph instanceof TransactionalGraph) {
+            ((TransactionalGraph) graph).commit();
+        }
         
-        Element element = elementType.equals("Vertex") ? graph.getVertex(id) : graph.getEdge(id);
-        if (element ==  null) {
-            sendError(message, 
-                    String.format("Action 'remove%s': Cannot remove. %s %s not found", 
-                    elementType, elementType, id.toString()));
+        replyWrite(message, id);
+    }
+    
+    @SuppressWarnings("unchecked")
+    private void removeElements(Message<JsonObject> message, 
+            final Graph graph, Class<? extends Element> elementClass) {
+        
+        String action = message.body().getString("action");
+        JsonArray ids = message.body().getArray("ids");
+        String key = message.body().getString("key");
+        Object value = message.body().getValue("value");
+        
+        ElementFilter filter;
+        try {
+            filter = getElementFilter(message);
+        } catch (IllegalArgumentException e) {
+            sendError(message, String.format("Action '%s': Invalid filter. %s", action, e.getMessage()));
+            return;
+        }
+        
+        if (filter == null && key != null) {
+            if (value == null) {
+                sendError(message, String.format(
+                        "Action '%s': Both a key and a value must be specified", action));
+                return;
+            }
+            filter = ElementFilter.forKeyValue(key, value);
+        }
+        
+        if (ids == null && (filter == null || filter.getPredicates().isEmpty())) {
+            // Never remove all elements by accident.
+            sendError(message, String.format(
+                    "Action '%s': Either ids, a key and value or filter predicates must be specified", action));
+            return;
+        }
+        
+        int commitSize = message.body().getInteger("commitSize", 1000);
+        if (commitSize <= 0) {
+            sendError(message, String.format("Action '%s': commitSize must be positive", action));
+            return;
+        }
+        
+        BulkRemoveJob job = new BulkRemoveJob(getTinkerpopConfig(message), elementClass, 
+                ids == null ? null : (List<Object>) ids.toList(), filter, commitSize);
+        job.setChangeListeners(getChangeListeners(message));
+        
+        if (message.body().getBoolean("async", false)) {
+            submitJob(message, job);
+            return;
+        }
+        
+        job.setGraph(graph);
+        job.run();
+        if (job.getStatus() == BackgroundJob.Status.FAILED) {
+            sendError(message, String.format("Action '%s': Cannot remove all elements, %d were deleted. %s", 
+                    action, job.toJson().getLong("deleted"), job.getError()));
             return;
         }
         
+        sendOK(message, job.toJson());
+    }
+    
+    private void updateElements(Message<JsonObject> message, 
+            final Graph graph, String elementType) {
+        
+        JsonArray updatesJson = message.body().getArray("updates");
+        if (updatesJson == null) {
+            if (message.body().getField("_id") == null) {
+                sendError(message, String.format(
+                        "Action 'update%s': Either _id or updates must be specified", elementType));
+                return;
+            }
+            updatesJson = new JsonArray().addObject(message.body());
+        }
+        
+        JsonArray changedIds = new JsonArray();
         try {
-            if (elementType.equals("Vertex")) {
-                graph.removeVertex((Vertex) element);
-            } else {
-                graph.removeEdge((Edge) element);
+            for (Object updateObject : updatesJson) {
+                JsonObject updateJson = updateObject instanceof JsonObject ? (JsonObject) updateObject : null;
+                Object id = updateJson == null ? null : updateJson.getField("_id");
+                if (id == null) {
+                    throw new IllegalArgumentException("Every update must specify an _id");
+                }
+                
+                Element element = elementType.equals("Vertex") ? graph.getVertex(id) : graph.getEdge(id);
+                if (element == null) {
+                    throw new IllegalArgumentException(
+                            String.format("%s %s not found", elementType, id.toString()));
+                }
+                
+                if (updateProperties(element, updateJson)) {
+                    changedIds.add(id);
+                }
             }
-        } catch (Exception e) {
-            sendError(message, 
-                    String.format("Action 'remove%s': Error removing %s with Id %s", 
-                    elementType, elementType, id.toString()));
+        } catch (IllegalArgumentException | IOException e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            sendError(message, String.format(
+                    "Action 'update%s': Cannot update. %s", elementType, e.getMessage()));
             return;
         }
+        
+        if (graph instanceof TransactionalGraph) {
+            ((TransactionalGraph) graph).commit();
+        }
+        
+        sendOK(message, new JsonObject().putArray("ids", changedIds));
+    }
+    
+    /**
+     * Apply the 'set' and 'remove' parts of an update to the element. Properties that already
+     * have the value are left alone; numbers are compared by value, regardless of their type.
+     * 
+     * @return true if any property of the element changed
+     */
+    private boolean updateProperties(Element element, JsonObject updateJson) throws IOException {
+        boolean changed = false;
+        
+        JsonObject setJson = updateJson.getObject("set");
+        if (setJson != null) {
+            for (Map.Entry<String, Object> property : 
+                    jsonUtility.deserializeProperties(setJson).entrySet()) {
+                
+                Object current = element.getProperty(property.getKey());
+                if (property.getValue() == null) {
+                    // Setting a null value is the same as removing the property.
+                    if (current != null) {
+                        element.removeProperty(property.getKey());
+                        changed = true;
+                    }
+                } else if (!PropertyPredicate.valuesEqual(property.getValue(), current)) {
+                    element.setProperty(property.getKey(), property.getValue());
+                    changed = true;
+                }
+            }
+        }
+        
+        JsonArray removeJson = updateJson.getArray("remove");
+        if (removeJson != null) {
+            for (Object key : removeJson) {
+                if (element.removeProperty(key.toString()) != null) {
+                    changed = true;
+                }
+            }
+        }
+        
+        return changed;
+    }
+    
+    private Map<String, Object> getUpsertProperties(Message<JsonObject> message, Object elementJson) {
+        String action = message.body().getString("action");
+        if (!(elementJson instanceof JsonObject)) {
+            sendError(message, String.format("Action '%s': Elements must be JSON objects", action));
+            return null;
+        }
+        
+        try {
+            return jsonUtility.deserializeProperties((JsonObject) elementJson);
+        } catch (IOException e) {
+            sendError(message, String.format("Action '%s': The Graphson message is invalid", action), e);
+            return null;
+        }
+    }
+    
+    private Edge findEdge(Vertex outVertex, Vertex inVertex, String label, String key, Object value) {
+        VertexQuery query = outVertex.query().direction(Direction.OUT).labels(label);
+        if (key != null) {
+            query.has(key, value);
+        }
+        
+        for (Edge edge : query.edges()) {
+            if (edge.getVertex(Direction.IN).getId().equals(inVertex.getId())) {
+                return edge;
+            }
+        }
+        return null;
+    }
+    
+    private void setProperties(Element element, Map<String, Object> properties) {
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            element.setProperty(property.getKey(), property.getValue());
+        }
+    }
+    
+    private void replyUpserted(Message<JsonObject> message, 
+            List<Element> upserted, List<Boolean> created) {
+        
+        JsonArray results = new JsonArray();
+        for (int i = 0; i < upserted.size(); i++) {
+            results.addObject(new JsonObject()
+                    .putValue("_id", jsonUtility.serializeId(upserted.get(i).getId()))
+                    .putBoolean("created", created.get(i)));
+        }
+        
+        sendOK(message, new JsonObject().putArray("results", results));
+    }
+    
+    private boolean isGroupCommitAction(String action) {
+        switch (action) {
+            case "addVertex":
+            case "addNode":
+            case "addEdge":
+            case "addRelationship":
+            case "removeVertex":
+            case "removeNode":
+            case "removeEdge":
+            case "removeRelationship":
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /**
+     * Apply a write action that is part of a group commit, without committing.
+     * 
+     * @return the added element or the Id of the removed element, or null if an error reply was sent
+     */
+    private Object applyWrite(Message<JsonObject> message, Graph graph) {
+        switch (message.body().getString("action")) {
+            case "addVertex":
+            case "addNode":
+                return writeVertex(message, graph);
+            case "addEdge":
+            case "addRelationship":
+                return writeEdge(message, graph);
+            case "removeVertex":
+            case "removeNode":
+                return writeRemoval(message, graph, "Vertex");
+            default:
+                return writeRemoval(message, graph, "Edge");
+        }
+    }
+    
+    /**
+     * Add the first vertex in the GraphSON message to the graph, without committing.
+     * 
+     * @return the new vertex, or null if an error reply was sent
+     */
+    private Vertex writeVertex(Message<JsonObject> message, Graph graph) {
+        JsonArray verticesJson = message.body().getArray("vertices");
+        if (verticesJson == null || verticesJson.size() == 0) {
+            sendError(message, "Action 'addVertex': No vertex data supplied.");
+            return null;
+        }
+        
+        try {
+            return jsonUtility.deserializeVertex(graph, (JsonObject) verticesJson.get(0));
+        } catch (IOException e) {
+            sendError(message, "Action 'addVertex': The Graphson message is invalid", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Add the first edge in the GraphSON message to the graph, without committing.
+     * 
+     * @return the new edge, or null if an error reply was sent
+     */
+    private Edge writeEdge(Message<JsonObject> message, Graph graph) {
 
+        // Formatted according to GraphSON format.
+        JsonArray edgesJson = message.body().getArray("edges");
+        if (edgesJson == null || edgesJson.size() == 0) {
+            sendError(message, "Action 'addEdge': No edge data supplied.");
+            return null;
+        }
+        
+        try {
+            return createEdge(graph, (JsonObject) edgesJson.get(0), new EndpointResolver(graph));
+        } catch (IllegalArgumentException e) {
+            sendError(message, "Action 'addEdge': " + e.getMessage());
+            return null;
+        } catch (IOException e) {
+            sendError(message, "Action 'addEdge': The Graphson message is invalid", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Add an edge to the graph, resolving its '_outV' and '_inV' endpoints (see {@link EndpointResolver}).
+     * 
+     * @throws IllegalArgumentException if the label is missing or an endpoint cannot be resolved
+     */
+    private Edge createEdge(Graph graph, JsonObject edgeJson, EndpointResolver resolver) 
+            throws IOException {
+        
+        // The label is a required field in some database products.
+        if (edgeJson.getString("_label") == null) {
+            throw new IllegalArgumentException("Key _label is a required field");
+        }
+        
+        Object outId = edgeJson.getField("_outV");
+        Object inId = edgeJson.getField("_inV");
+        Vertex outVertex = resolver.resolve(outId);
+        Vertex inVertex = resolver.resolve(inId);
+        if (inVertex == null || outVertex == null) {
+            throw new IllegalArgumentException(
+                    String.format("Vertex %s not found", outVertex == null ? outId : inId));
+        }
+        
+        return jsonUtility.deserializeEdge(graph, inVertex, outVertex, edgeJson);
+    }
+    
+    /**
+     * Remove the vertex or edge with the Id specified in the message, without committing.
+     * 
+     * @return the Id of the removed element, or null if an error reply was sent
+     */
+    private Object writeRemoval(Message<JsonObject> message, Graph graph, String elementType) {
+        Object id = getMandatoryValue(message, "_id");
+        if (id == null) {
+            return null;
+        }
+        
+        Element element = elementType.equals("Vertex") ? graph.getVertex(id) : graph.getEdge(id);
+        if (element ==  null) {
+            sendError(message, 
+                    String.format("Action 'remove%s': Cannot remove. %s %s not found", 
+                    elementType, elementType, id.toString()));
+            return null;
+        }
+        
+        if (elementType.equals("Vertex")) {
+            graph.removeVertex((Vertex) element);
+        } else {
+            graph.removeEdge((Edge) element);
+        }
+        
+        return id;
+    }
+    
+    /**
+     * Commit the graph after a single element was added.
+     */
+    private void commitWrite(Graph graph) {
         if (graph instanceof TransactionalGraph) {
             ((TransactionalGraph) graph).commit();
+        } else if (graph.getFeatures().ignoresSuppliedIds) {
+            // Shutting down the graph should force Id generation.
+            graph.shutdown();
         }
+    }
+    
+    /**
+     * Reply with the Id of the element that was added or removed, after it has been committed.
+     */
+    private void replyWrite(Message<JsonObject> message, Object result) {
+        Object id = result instanceof Element ? ((Element) result).getId() : result;
         
         if (logger.isDebugEnabled()) {
-            logger.debug(String.format("Removed %s with Id %s", elementType, id.toString()));
+            logger.debug(String.format("Action '%s': Committed element with Id %s", 
+                    message.body().getString("action"), id.toString()));
         }
         
-        JsonObject reply = new JsonObject().putValue("_id", id);
-        sendOK(message, reply);
+        // Id's that are not a Json supported datatype are serialized to string.
+        sendOK(message, new JsonObject().putValue("_id", jsonUtility.serializeId(id)));
+    }
+    
+    /**
+     * Get the configuration of the graph database that the message is executed on, which is
+     * the configuration of its named graph if it specifies a 'graphName', or of its shard if the
+     * module is sharded.
+     * 
+     * @param message the message being handled
+     * @return the graph database configuration
+     */
+    protected Configuration getTinkerpopConfig(Message<JsonObject> message) {
+        String graphName = message.body().getString("graphName");
+        if (graphName != null) {
+            return namedGraphs.get(graphName).getConfiguration();
+        }
+        if (shardRouter == null) {
+            return tinkerpopConfig;
+        }
+        return shardRouter.getConfiguration(shardRouter.route(message.body()));
+    }
+    
+    /**
+     * Get the query cache of the graph that the message is executed on.
+     * 
+     * @param message the message being handled
+     * @return the query cache of the named graph, or of the default graph
+     */
+    protected ConcurrentHashMap<String, Pipe<Element, Object>> getQueryCache(Message<JsonObject> message) {
+        String graphName = message.body().getString("graphName");
+        return graphName == null ? queryCache : namedGraphs.get(graphName).getQueryCache();
+    }
+    
+    /**
+     * Get the listeners that must be notified of the changes of the message. Changes to named
+     * graphs are not captured.
+     * 
+     * @param message the message being handled
+     * @return the change listeners
+     */
+    protected List<GraphChangedListener> getChangeListeners(Message<JsonObject> message) {
+        if (message.body().getString("graphName") != null) {
+            return Collections.emptyList();
+        }
+        return changeListeners;
+    }
+    
+    /**
+     * Execute a message that does not specify a partition on all shards in parallel, by sending
+     * it to this module once for every shard, and reply with the merged replies of the shards.
+     * The messages to the shards bypass the client quotas; the message itself keeps its slot 
+     * until the merged reply is sent.
+     * 
+     * @param message the message to execute on all shards
+     * @param action the action of the message
+     */
+    private void scatter(final Message<JsonObject> message, final String action) {
+        final Set<String> shards = shardRouter.getShardNames();
+        final Map<String, JsonObject> replies = new ConcurrentHashMap<>();
+        final AtomicInteger pending = new AtomicInteger(shards.size());
+        
+        JsonObject filterJson = message.body().getObject("filter");
+        final int limit = filterJson == null ? 0 : filterJson.getInteger("limit", 0);
+        
+        for (final String shard : shards) {
+            JsonObject shardMessage = message.body().copy()
+                    .putString("shard", shard)
+                    .putString("scatterToken", scatterToken);
+            // The replies of the shards are merged, so they must not be compressed.
+            shardMessage.removeField("compress");
+            
+            eb.send(address, shardMessage, new Handler<Message<JsonObject>>() {
+
+                @Override
+                public void handle(Message<JsonObject> reply) {
+                    replies.put(shard, reply.body());
+                    if (pending.decrementAndGet() == 0) {
+                        
+                        // Merge in the configured order of the shards.
+                        Map<String, JsonObject> ordered = new LinkedHashMap<>();
+                        for (String name : shards) {
+                            ordered.put(name, replies.get(name));
+                        }
+                        JsonObject merged = ShardRouter.merge(action, ordered, limit);
+                        if ("ok".equals(merged.getString("status"))) {
+                            merged.removeField("status");
+                            sendOK(message, merged);
+                        } else {
+                            merged.removeField("status");
+                            sendStatus("error", message, merged);
+                        }
+                    }
+                }
+            });
+        }
     }
     
     /**
@@ -737,7 +2972,9 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
      */
     private Configuration loadTinkerpopConfig() {
         JsonObject tinkerpopConfigJson = config.getObject("tinkerpopConfig");
-        if (tinkerpopConfigJson == null) {
+        if (tinkerpopConfigJson == null && shardRouter != null) {
+            return shardRouter.getDefaultConfiguration();
+        } else if (tinkerpopConfigJson == null) {
             throw new IllegalArgumentException(
                     "tinkerpopConfig section must be specified in config");
         }
@@ -756,4 +2993,18 @@ public class TinkerpopPersistor extends BusModBase implements Handler<Message<Js
         }
         return value;
     }
+    
+    /**
+     * A slot that a message holds in the quotas that admitted it.
+     */
+    private static class Admission {
+        
+        final ClientQuotas quotas;
+        final Handler<Message<JsonObject>> executor;
+        
+        Admission(ClientQuotas quotas, Handler<Message<JsonObject>> executor) {
+            this.quotas = quotas;
+            this.executor = executor;
+        }
+    }
 }
@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.algorithm;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.VertexQuery;
+
+import eu.tradegrid.tinkerpop.persistor.util.ElementFilter;
+import eu.tradegrid.tinkerpop.persistor.util.IdMap;
+import eu.tradegrid.tinkerpop.persistor.util.PropertyPredicate;
+
+/**
+ * Breadth-first searches over the Blueprints API that run in bounded time and memory, as an
+ * alternative to Gremlin 'loop' queries. The edges that are followed are restricted by the
+ * direction, the edge labels and an optional edge filter.
+ * <p/>
+ * Every search stops expanding beyond 'maxDepth' edges from the start, and gives up when a level
+ * holds more than 'maxFrontier' vertices or more than 'maxVisited' vertices have been visited in
+ * total, in which case {@link #isTruncated()} is true. The visited vertices are kept in an
+ * {@link IdMap} that maps each vertex Id to the Id of the vertex it was reached from, which is
+ * compact for numeric Id's and gives the path to every visited vertex.
+ * <p/>
+ * A search is not thread-safe, and holds the state of a single search at a time.
+ */
+public class GraphSearch {
+
+    private final Direction direction;
+    private final String[] labels;
+    private final ElementFilter edgeFilter;
+    private final long offHeapThreshold;
+
+    private int maxDepth = 6;
+    private int maxFrontier = 10000;
+    private int maxVisited = 100000;
+
+    private IdMap parents;
+    private int visitedCount;
+    private boolean truncated;
+    private Object hit;
+
+    /**
+     * @param direction the direction of the edges to follow from a vertex
+     * @param labels the labels of the edges to follow, or none for all labels
+     * @param edgeFilter the predicates the edges to follow must satisfy, or null
+     * @param offHeapThreshold the number of visited vertices beyond which the visited set is
+     *        kept off-heap (see {@link IdMap})
+     */
+    public GraphSearch(Direction direction, String[] labels, ElementFilter edgeFilter, long offHeapThreshold) {
+        this.direction = direction;
+        this.labels = labels;
+        this.edgeFilter = edgeFilter;
+        this.offHeapThreshold = offHeapThreshold;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    public void setMaxFrontier(int maxFrontier) {
+        this.maxFrontier = maxFrontier;
+    }
+
+    public void setMaxVisited(int maxVisited) {
+        this.maxVisited = maxVisited;
+    }
+
+    /**
+     * @return true if the last search stopped because of the frontier or visited limit
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * @return the number of vertices visited by the last search, including the start
+     */
+    public int getVisitedCount() {
+        return visitedCount;
+    }
+
+    /**
+     * Find a shortest path between two vertices by searching from both ends at the same time,
+     * each time expanding the side with the smaller frontier. The search from the target follows
+     * the edges in the opposite direction. The search ends as soon as both sides meet.
+     *
+     * @param source the start of the path
+     * @param target the end of the path
+     * @return the Id's of the vertices on the path, or null if there is no path within the limits
+     */
+    public List<Object> shortestPath(Vertex source, Vertex target) {
+        IdMap forward = start(source);
+        if (source.getId().equals(target.getId())) {
+            return pathTo(forward, source.getId());
+        }
+
+        IdMap backward = new IdMap(offHeapThreshold);
+        backward.put(target.getId(), target.getId());
+        visitedCount++;
+
+        List<Vertex> forwardFrontier = new ArrayList<>();
+        forwardFrontier.add(source);
+        List<Vertex> backwardFrontier = new ArrayList<>();
+        backwardFrontier.add(target);
+
+        for (int depth = 0; depth < maxDepth; depth++) {
+            if (forwardFrontier.size() <= backwardFrontier.size()) {
+                forwardFrontier = expand(forwardFrontier, direction, forward, backward, null);
+            } else {
+                backwardFrontier = expand(backwardFrontier, direction.opposite(), backward, forward, null);
+            }
+
+            if (hit != null) {
+                List<Object> path = pathTo(forward, hit);
+                List<Object> rest = pathTo(backward, hit);
+                for (int i = rest.size() - 2; i >= 0; i--) {
+                    path.add(rest.get(i));
+                }
+                return path;
+            }
+            if (truncated || forwardFrontier.isEmpty() || backwardFrontier.isEmpty()) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the vertices within a number of hops from a vertex, by distance.
+     *
+     * @param source the vertex to start from
+     * @param hops the maximum distance, which is capped at 'maxDepth'
+     * @return for every distance from 1 up, the Id's of the vertices at that distance
+     */
+    public List<List<Object>> kHop(Vertex source, int hops) {
+        start(source);
+
+        List<List<Object>> levels = new ArrayList<>();
+        List<Vertex> frontier = new ArrayList<>();
+        frontier.add(source);
+
+        for (int depth = 0; depth < Math.min(hops, maxDepth) && !frontier.isEmpty() && !truncated; depth++) {
+            frontier = expand(frontier, direction, parents, null, null);
+            if (!frontier.isEmpty()) {
+                levels.add(getIds(frontier));
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Visit the vertices breadth-first from a vertex, optionally until a vertex is found that
+     * satisfies all of the 'until' predicates. The path to that vertex is then available from
+     * {@link #getPath(Object)}.
+     *
+     * @param source the vertex to start from
+     * @param until the predicates of the vertex to search for, or null to visit all vertices
+     *        within the limits
+     * @return the Id's of the visited vertices in the order of their visit, excluding the start
+     */
+    public List<Object> bfs(Vertex source, List<PropertyPredicate> until) {
+        start(source);
+
+        List<Object> visited = new ArrayList<>();
+        if (until != null && PropertyPredicate.evaluateAll(until, source)) {
+            hit = source.getId();
+            return visited;
+        }
+
+        List<Vertex> frontier = new ArrayList<>();
+        frontier.add(source);
+
+        for (int depth = 0; depth < maxDepth && !frontier.isEmpty() && !truncated && hit == null; depth++) {
+            frontier = expand(frontier, direction, parents, null, until);
+            visited.addAll(getIds(frontier));
+        }
+        return visited;
+    }
+
+    /**
+     * @return the Id of the vertex found by the last 'bfs', or null if none was found
+     */
+    public Object getFound() {
+        return hit;
+    }
+
+    /**
+     * Get the path from the start of the last 'kHop' or 'bfs' to a visited vertex.
+     *
+     * @param id the Id of the visited vertex
+     * @return the Id's of the vertices on the path, or null if the vertex was not visited
+     */
+    public List<Object> getPath(Object id) {
+        if (parents == null || parents.get(id) == null) {
+            return null;
+        }
+        return pathTo(parents, id);
+    }
+
+    private IdMap start(Vertex source) {
+        parents = new IdMap(offHeapThreshold);
+        parents.put(source.getId(), source.getId());
+        visitedCount = 1;
+        truncated = false;
+        hit = null;
+        return parents;
+    }
+
+    /**
+     * Expand a level of the search. Stops early when a vertex is reached that was visited by
+     * the search from the other side, or that satisfies the 'until' predicates. In both cases
+     * the vertex is recorded as the hit.
+     *
+     * @return the vertices of the next level
+     */
+    private List<Vertex> expand(List<Vertex> frontier, Direction expandDirection, IdMap visited,
+            IdMap otherVisited, List<PropertyPredicate> until) {
+
+        List<Vertex> next = new ArrayList<>();
+        for (Vertex vertex : frontier) {
+            VertexQuery query = vertex.query().direction(expandDirection).labels(labels);
+            if (edgeFilter != null) {
+                edgeFilter.applyTo(query);
+            }
+
+            for (Vertex neighbor : query.vertices()) {
+                Object id = neighbor.getId();
+                if (visited.get(id) != null) {
+                    continue;
+                }
+
+                visited.put(id, vertex.getId());
+                visitedCount++;
+                next.add(neighbor);
+
+                if ((otherVisited != null && otherVisited.get(id) != null)
+                        || (until != null && PropertyPredicate.evaluateAll(until, neighbor))) {
+                    hit = id;
+                    return next;
+                }
+                if (next.size() > maxFrontier || visitedCount > maxVisited) {
+                    truncated = true;
+                    return next;
+                }
+            }
+        }
+        return next;
+    }
+
+    private static List<Object> pathTo(IdMap parents, Object id) {
+        LinkedList<Object> path = new LinkedList<>();
+        Object current = id;
+        while (true) {
+            path.addFirst(current);
+            Object parent = parents.get(current);
+            if (parent == null || parent.equals(current)) {
+                return path;
+            }
+            current = parent;
+        }
+    }
+
+    private static List<Object> getIds(List<Vertex> vertices) {
+        List<Object> ids = new ArrayList<>(vertices.size());
+        for (Vertex vertex : vertices) {
+            ids.add(vertex.getId());
+        }
+        return ids;
+    }
+}
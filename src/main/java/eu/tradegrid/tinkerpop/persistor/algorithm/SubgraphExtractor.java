@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.algorithm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.VertexQuery;
+
+import eu.tradegrid.tinkerpop.persistor.util.ElementFilter;
+
+/**
+ * Extracts the subgraph around a set of seed vertices. The vertices within a number of hops of
+ * the seeds are collected breadth-first, following the edges by direction, labels and an optional
+ * edge filter. The subgraph then consists of those vertices and all edges between them that have
+ * one of the labels and satisfy the edge filter, regardless of their direction.
+ * <p/>
+ * The number of elements is limited by a budget. Vertices are collected first. When they exhaust
+ * the budget, only the half of them that is closest to the seeds is kept, and the other half of
+ * the budget is left to the edges between those vertices. A subgraph that is cut off in either
+ * phase is reported by {@link #isTruncated()}. Every element is contained only once.
+ */
+public class SubgraphExtractor {
+
+    private final Direction direction;
+    private final String[] labels;
+    private final ElementFilter edgeFilter;
+    private final int maxElements;
+
+    private final Map<Object, Vertex> vertices = new LinkedHashMap<>();
+    private final Map<Object, Edge> edges = new LinkedHashMap<>();
+    private boolean truncated;
+
+    /**
+     * @param direction the direction of the edges to follow from a vertex
+     * @param labels the labels of the edges of the subgraph, or none for all labels
+     * @param edgeFilter the predicates the edges of the subgraph must satisfy, or null
+     * @param maxElements the maximum number of vertices and edges in the subgraph
+     */
+    public SubgraphExtractor(Direction direction, String[] labels, ElementFilter edgeFilter, int maxElements) {
+        this.direction = direction;
+        this.labels = labels;
+        this.edgeFilter = edgeFilter;
+        this.maxElements = maxElements;
+    }
+
+    /**
+     * Extract the subgraph.
+     *
+     * @param seeds the vertices to start from
+     * @param depth the maximum number of hops from the seeds
+     */
+    public void extract(List<Vertex> seeds, int depth) {
+        if (!collectVertices(seeds, depth)) {
+            // The vertices are in breadth-first order, so the ones closest to the seeds are kept.
+            List<Vertex> closest = new ArrayList<>(vertices.values())
+                    .subList(0, Math.min(vertices.size(), maxElements - maxElements / 2));
+            vertices.clear();
+            for (Vertex vertex : closest) {
+                vertices.put(vertex.getId(), vertex);
+            }
+        }
+
+        // Every edge between two collected vertices is found once, from its out vertex.
+        for (Vertex vertex : vertices.values()) {
+            for (Edge edge : query(vertex, Direction.OUT).edges()) {
+                if (!vertices.containsKey(edge.getVertex(Direction.IN).getId())
+                        || edges.containsKey(edge.getId())) {
+                    continue;
+                }
+                if (vertices.size() + edges.size() >= maxElements) {
+                    truncated = true;
+                    return;
+                }
+                edges.put(edge.getId(), edge);
+            }
+        }
+    }
+
+    /**
+     * Collect the vertices breadth-first, until the depth is reached or the budget runs out.
+     *
+     * @return false if the budget ran out
+     */
+    private boolean collectVertices(List<Vertex> seeds, int depth) {
+        List<Vertex> frontier = new ArrayList<>();
+        for (Vertex seed : seeds) {
+            if (!vertices.containsKey(seed.getId())) {
+                if (!addVertex(seed)) {
+                    return false;
+                }
+                frontier.add(seed);
+            }
+        }
+
+        for (int hop = 0; hop < depth && !frontier.isEmpty(); hop++) {
+            List<Vertex> next = new ArrayList<>();
+            for (Vertex vertex : frontier) {
+                for (Vertex neighbor : query(vertex, direction).vertices()) {
+                    if (vertices.containsKey(neighbor.getId())) {
+                        continue;
+                    }
+                    if (!addVertex(neighbor)) {
+                        return false;
+                    }
+                    next.add(neighbor);
+                }
+            }
+            frontier = next;
+        }
+        return true;
+    }
+
+    public Collection<Vertex> getVertices() {
+        return vertices.values();
+    }
+
+    public Collection<Edge> getEdges() {
+        return edges.values();
+    }
+
+    /**
+     * @return true if the subgraph was cut off because of the element budget
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    private boolean addVertex(Vertex vertex) {
+        if (vertices.size() + edges.size() >= maxElements) {
+            truncated = true;
+            return false;
+        }
+        vertices.put(vertex.getId(), vertex);
+        return true;
+    }
+
+    private VertexQuery query(Vertex vertex, Direction queryDirection) {
+        VertexQuery query = vertex.query().direction(queryDirection).labels(labels);
+        if (edgeFilter != null) {
+            edgeFilter.applyTo(query);
+        }
+        return query;
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.change;
+
+import java.util.Map;
+
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import eu.tradegrid.tinkerpop.persistor.util.JsonUtility;
+
+/**
+ * Publishes the committed changes made through the module as change events on the event bus,
+ * so that other modules can keep their copies of the graph up to date without polling. The
+ * 'changeCapture' configuration section looks like:
+ * <pre>
+ * "changeCapture": {
+ *     "address": "tinkerpop.persistor.changes",
+ *     "batchSize": 100,
+ *     "maxDelay": 10
+ * }
+ * </pre>
+ * Every change event has a sequence number that increases by one for every event, and an 'op'
+ * which is one of addVertex, updateVertex, removeVertex, addEdge, updateEdge or removeEdge.
+ * Events are published in batches of at most 'batchSize' events, and at least every 'maxDelay'
+ * milliseconds (see {@link #flush()}). Consecutive property changes of the same element are
+ * combined into a single event while the batch is being collected.
+ * <p/>
+ * Sequence numbers start at 1 when the module starts. Every batch contains the 'epoch' (start
+ * time) of the module, so that consumers can detect a restart.
+ */
+public class ChangePublisher implements GraphChangedListener {
+
+    private final EventBus eventBus;
+    private final Logger logger;
+    private final JsonUtility jsonUtility;
+    private final String address;
+    private final int batchSize;
+    private final long epoch = System.currentTimeMillis();
+
+    private JsonArray batch = new JsonArray();
+    private JsonObject lastEvent;
+    private long sequence;
+
+    /**
+     * @param eventBus the event bus to publish the events on
+     * @param logger the logger for events that cannot be published
+     * @param jsonUtility the utility used to serialize Id's
+     * @param address the address to publish the events to
+     * @param batchSize the maximum number of events per published message
+     */
+    public ChangePublisher(EventBus eventBus, Logger logger, JsonUtility jsonUtility,
+            String address, int batchSize) {
+        this.eventBus = eventBus;
+        this.logger = logger;
+        this.jsonUtility = jsonUtility;
+        this.address = address;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Publish the events collected so far, if any.
+     */
+    public synchronized void flush() {
+        if (batch.size() == 0) {
+            return;
+        }
+
+        eventBus.publish(address, new JsonObject()
+                .putNumber("epoch", epoch)
+                .putArray("events", batch));
+
+        batch = new JsonArray();
+        lastEvent = null;
+    }
+
+    @Override
+    public void vertexAdded(Vertex vertex) {
+        addEvent("addVertex", vertex, null);
+    }
+
+    @Override
+    public void vertexPropertyChanged(Vertex vertex, String key, Object oldValue, Object setValue) {
+        setProperty("updateVertex", vertex, key, setValue);
+    }
+
+    @Override
+    public void vertexPropertyRemoved(Vertex vertex, String key, Object removedValue) {
+        removeProperty("updateVertex", vertex, key);
+    }
+
+    @Override
+    public void vertexRemoved(Vertex vertex, Map<String, Object> props) {
+        addEvent("removeVertex", vertex, null);
+    }
+
+    @Override
+    public void edgeAdded(Edge edge) {
+        JsonObject fields;
+        try {
+            fields = new JsonObject()
+                    .putValue("_outV", jsonUtility.serializeId(edge.getVertex(Direction.OUT).getId()))
+                    .putValue("_inV", jsonUtility.serializeId(edge.getVertex(Direction.IN).getId()))
+                    .putString("_label", edge.getLabel());
+        } catch (RuntimeException e) {
+            logger.error(String.format("Cannot publish the addEdge event of %s", edge), e);
+            return;
+        }
+        addEvent("addEdge", edge, fields);
+    }
+
+    @Override
+    public void edgePropertyChanged(Edge edge, String key, Object oldValue, Object setValue) {
+        setProperty("updateEdge", edge, key, setValue);
+    }
+
+    @Override
+    public void edgePropertyRemoved(Edge edge, String key, Object removedValue) {
+        removeProperty("updateEdge", edge, key);
+    }
+
+    @Override
+    public void edgeRemoved(Edge edge, Map<String, Object> props) {
+        addEvent("removeEdge", edge, null);
+    }
+
+    private synchronized void setProperty(String op, Element element, String key, Object value) {
+        try {
+            JsonObject event = getUpdateEvent(op, element);
+            JsonObject set = event.getObject("set");
+            if (set == null) {
+                set = new JsonObject();
+                event.putObject("set", set);
+            }
+            set.putValue(key, serializeValue(value));
+
+            JsonArray remove = event.getArray("remove");
+            if (remove != null) {
+                event.putArray("remove", without(remove, key));
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("Cannot publish the change of property %s of %s", key, element), e);
+        }
+    }
+
+    private synchronized void removeProperty(String op, Element element, String key) {
+        try {
+            JsonObject event = getUpdateEvent(op, element);
+            JsonArray remove = event.getArray("remove");
+            if (remove == null) {
+                remove = new JsonArray();
+                event.putArray("remove", remove);
+            }
+            remove.addString(key);
+
+            JsonObject set = event.getObject("set");
+            if (set != null) {
+                set.removeField(key);
+            }
+        } catch (RuntimeException e) {
+            logger.error(String.format("Cannot publish the removal of property %s of %s", key, element), e);
+        }
+    }
+
+    /**
+     * Get the event that the property change of the element is added to. That is the last event
+     * if it adds or updates the same element, or otherwise a new update event.
+     */
+    private JsonObject getUpdateEvent(String op, Element element) {
+        Object id = jsonUtility.serializeId(element.getId());
+        String addOp = op.equals("updateVertex") ? "addVertex" : "addEdge";
+
+        if (lastEvent != null && id != null && id.equals(lastEvent.getValue("_id"))
+                && (op.equals(lastEvent.getString("op")) || addOp.equals(lastEvent.getString("op")))) {
+            return lastEvent;
+        }
+
+        return newEvent(op, element, new JsonObject());
+    }
+
+    private synchronized void addEvent(String op, Element element, JsonObject fields) {
+        try {
+            newEvent(op, element, fields == null ? new JsonObject() : fields);
+        } catch (RuntimeException e) {
+            logger.error(String.format("Cannot publish the %s event of %s", op, element), e);
+        }
+    }
+
+    private JsonObject newEvent(String op, Element element, JsonObject event) {
+        event.putNumber("seq", sequence + 1)
+                .putString("op", op)
+                .putValue("_id", jsonUtility.serializeId(element.getId()));
+
+        // Publish the full batch before the new event, which may still receive properties.
+        if (batch.size() >= batchSize) {
+            flush();
+        }
+        batch.addObject(event);
+        lastEvent = event;
+        sequence++;
+        return event;
+    }
+
+    private static JsonArray without(JsonArray keys, String key) {
+        JsonArray remaining = new JsonArray();
+        for (Object existing : keys) {
+            if (!key.equals(existing)) {
+                remaining.add(existing);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Property values that are not of a Json supported datatype are converted to a string.
+     */
+    private static Object serializeValue(Object value) {
+        if (value == null || value instanceof String || value instanceof Number
+                || value instanceof Boolean) {
+            return value;
+        }
+        return value.toString();
+    }
+}
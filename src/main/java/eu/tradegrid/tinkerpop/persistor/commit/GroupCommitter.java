@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.commit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.GraphFactory;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import eu.tradegrid.tinkerpop.persistor.util.GraphEvents;
+
+/**
+ * Applies small write messages that arrive within a short window on a single graph and commits
+ * them together, so that concurrent writers share the cost of one commit.
+ * <p/>
+ * A batch is closed when it holds 'maxBatchSize' messages, or 'maxDelay' milliseconds after its
+ * first message arrived. Every message is acknowledged individually after the shared commit
+ * succeeded. If a write fails while applying the batch, or the commit itself fails, the batch
+ * is rolled back and its messages are retried one by one, each in its own transaction, so that
+ * only the failing message receives an error.
+ * <p/>
+ * Non-transactional graphs cannot be rolled back. For those a failing write only fails its own
+ * message, and the remaining messages of the batch are still applied.
+ */
+public class GroupCommitter implements Runnable {
+
+    /**
+     * Applies and acknowledges the individual write messages of a batch.
+     */
+    public interface WriteHandler {
+
+        /**
+         * Apply the write in the message to the graph, without committing.
+         *
+         * @param message the write message
+         * @param graph the graph shared by the batch
+         * @return the result that is acknowledged after the commit, or null if the write was
+         *         rejected (without modifying the graph) and an error reply was already sent
+         */
+        Object applyWrite(Message<JsonObject> message, Graph graph);
+
+        /**
+         * Acknowledge a write after it has been committed.
+         */
+        void replyWrite(Message<JsonObject> message, Object result);
+
+        /**
+         * Reply with an error for a write that failed.
+         */
+        void replyError(Message<JsonObject> message, Exception e);
+    }
+
+    private final Configuration tinkerpopConfig;
+    private final WriteHandler writeHandler;
+    private final int maxBatchSize;
+    private final long maxDelay;
+    private final BlockingQueue<Message<JsonObject>> queue;
+    private List<GraphChangedListener> changeListeners;
+
+    private volatile Thread thread;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong retriedBatches = new AtomicLong();
+
+    /**
+     * @param tinkerpopConfig the configuration used to open the graph for every batch
+     * @param writeHandler the handler that applies and acknowledges the writes
+     * @param maxBatchSize the maximum number of messages committed together
+     * @param maxDelay the maximum time in milliseconds a message waits for its batch to fill
+     * @param maxQueueSize the maximum number of messages waiting to be applied
+     */
+    public GroupCommitter(Configuration tinkerpopConfig, WriteHandler writeHandler,
+            int maxBatchSize, long maxDelay, int maxQueueSize) {
+        this.tinkerpopConfig = tinkerpopConfig;
+        this.writeHandler = writeHandler;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelay = maxDelay;
+        this.queue = new LinkedBlockingQueue<>(maxQueueSize);
+    }
+
+    /**
+     * Notify the listeners of the changes committed by the batches.
+     *
+     * @param changeListeners the listeners, may be empty
+     */
+    public void setChangeListeners(List<GraphChangedListener> changeListeners) {
+        this.changeListeners = changeListeners;
+    }
+
+    /**
+     * Start the thread that applies the batches.
+     */
+    public void start() {
+        thread = new Thread(this, "tinkerpop-persistor-group-commit");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the batch thread. Messages that are still waiting receive an error reply.
+     */
+    public void stop() {
+        Thread current = thread;
+        thread = null;
+        if (current != null) {
+            current.interrupt();
+        }
+
+        List<Message<JsonObject>> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        for (Message<JsonObject> message : remaining) {
+            writeHandler.replyError(message, new IllegalStateException("Module is stopping"));
+        }
+    }
+
+    /**
+     * Queue a write message for the next batch.
+     *
+     * @param message the write message
+     * @return false if the queue is full and the message was not accepted
+     */
+    public boolean submit(Message<JsonObject> message) {
+        return queue.offer(message);
+    }
+
+    /**
+     * @return the number of committed batches and writes, and the number of batches that were
+     *         rolled back and retried one write at a time
+     */
+    public JsonObject getMetrics() {
+        return new JsonObject()
+                .putNumber("batches", batches.get())
+                .putNumber("writes", writes.get())
+                .putNumber("retriedBatches", retriedBatches.get());
+    }
+
+    @Override
+    public void run() {
+        List<Message<JsonObject>> batch = new ArrayList<>(maxBatchSize);
+
+        while (thread != null) {
+            try {
+                batch.add(queue.take());
+
+                long deadline = System.currentTimeMillis() + maxDelay;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Message<JsonObject> message = remaining > 0
+                            ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (message == null) {
+                        break;
+                    }
+                    batch.add(message);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (!batch.isEmpty()) {
+                commitBatch(batch);
+                batch.clear();
+            }
+        }
+    }
+
+    private void commitBatch(List<Message<JsonObject>> batch) {
+        batches.incrementAndGet();
+        writes.addAndGet(batch.size());
+
+        Graph graph;
+        try {
+            graph = GraphEvents.observe(GraphFactory.open(tinkerpopConfig), changeListeners);
+        } catch (RuntimeException e) {
+            for (Message<JsonObject> message : batch) {
+                writeHandler.replyError(message, e);
+            }
+            return;
+        }
+
+        try {
+            if (graph instanceof TransactionalGraph) {
+                commitTransactional((TransactionalGraph) graph, batch);
+            } else {
+                commitNonTransactional(graph, batch);
+            }
+        } finally {
+            graph.shutdown();
+        }
+    }
+
+    private void commitTransactional(TransactionalGraph graph, List<Message<JsonObject>> batch) {
+        List<Message<JsonObject>> applied = new ArrayList<>(batch.size());
+        List<Object> results = new ArrayList<>(batch.size());
+
+        int index = 0;
+        try {
+            for (; index < batch.size(); index++) {
+                Object result = writeHandler.applyWrite(batch.get(index), graph);
+                if (result != null) {
+                    applied.add(batch.get(index));
+                    results.add(result);
+                }
+            }
+
+            graph.commit();
+        } catch (RuntimeException e) {
+            graph.rollback();
+            retriedBatches.incrementAndGet();
+
+            // Writes that were not rejected are retried on their own, so that only the
+            // failing write receives an error.
+            List<Message<JsonObject>> retries = new ArrayList<>(applied);
+            retries.addAll(batch.subList(Math.min(index, batch.size()), batch.size()));
+            for (Message<JsonObject> message : retries) {
+                commitSingle(graph, message);
+            }
+            return;
+        }
+
+        for (int i = 0; i < applied.size(); i++) {
+            writeHandler.replyWrite(applied.get(i), results.get(i));
+        }
+    }
+
+    private void commitSingle(TransactionalGraph graph, Message<JsonObject> message) {
+        try {
+            Object result = writeHandler.applyWrite(message, graph);
+            if (result != null) {
+                graph.commit();
+                writeHandler.replyWrite(message, result);
+            }
+        } catch (RuntimeException e) {
+            graph.rollback();
+            writeHandler.replyError(message, e);
+        }
+    }
+
+    private void commitNonTransactional(Graph graph, List<Message<JsonObject>> batch) {
+        List<Message<JsonObject>> applied = new ArrayList<>(batch.size());
+        List<Object> results = new ArrayList<>(batch.size());
+
+        for (Message<JsonObject> message : batch) {
+            try {
+                Object result = writeHandler.applyWrite(message, graph);
+                if (result != null) {
+                    applied.add(message);
+                    results.add(result);
+                }
+            } catch (RuntimeException e) {
+                writeHandler.replyError(message, e);
+            }
+        }
+
+        if (graph.getFeatures().ignoresSuppliedIds) {
+            // Shutting down the graph should force Id generation.
+            graph.shutdown();
+        }
+
+        for (int i = 0; i < applied.size(); i++) {
+            writeHandler.replyWrite(applied.get(i), results.get(i));
+        }
+    }
+}
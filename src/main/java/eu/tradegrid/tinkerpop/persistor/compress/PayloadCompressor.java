@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.vertx.java.core.json.DecodeException;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Compresses large replies and decompresses compressed requests with the deflate codec of the
+ * JDK. A compressed message carries its fields as deflated JSON in a binary 'payload' field:
+ * <pre>
+ * {"compressed": "deflate", "payload": "eJyrVkrLz1eyUkpKLFKqBQAdegQ0"}
+ * </pre>
+ * The 'compression' configuration section looks like:
+ * <pre>
+ * "compression": {
+ *     "threshold": 65536,
+ *     "level": 1,
+ *     "maxInflatedSize": 268435456
+ * }
+ * </pre>
+ * Replies are only compressed if their JSON is at least 'threshold' bytes, and only if that makes
+ * them smaller. The 'level' ranges from 1 (fastest) to 9 (smallest). Requests that inflate to more
+ * than 'maxInflatedSize' bytes are rejected.
+ */
+public class PayloadCompressor {
+
+    public static final String DEFLATE = "deflate";
+
+    private final int threshold;
+    private final int level;
+    private final long maxInflatedSize;
+
+    private final AtomicLong compressedReplies = new AtomicLong();
+    private final AtomicLong replyBytes = new AtomicLong();
+    private final AtomicLong compressedReplyBytes = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong compressedRequestBytes = new AtomicLong();
+
+    /**
+     * @param compressionConfig the 'compression' configuration section
+     */
+    public PayloadCompressor(JsonObject compressionConfig) {
+        threshold = compressionConfig.getInteger("threshold", 65536);
+        level = compressionConfig.getInteger("level", Deflater.BEST_SPEED);
+        maxInflatedSize = compressionConfig.getLong("maxInflatedSize", 256L * 1024 * 1024);
+    }
+
+    /**
+     * @param body the body of a message
+     * @return true if the fields of the message are in a compressed payload
+     */
+    public static boolean isCompressed(JsonObject body) {
+        return body.getField("compressed") != null;
+    }
+
+    /**
+     * Compress a reply, if it is large enough.
+     *
+     * @param reply the reply
+     * @return the compressed reply, or the reply itself if it is not compressed
+     */
+    public JsonObject compress(JsonObject reply) {
+        byte[] json = reply.encode().getBytes(StandardCharsets.UTF_8);
+        if (json.length < threshold) {
+            return reply;
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(json.length / 4);
+        Deflater deflater = new Deflater(level);
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(os, deflater)) {
+            dos.write(json);
+        } catch (IOException e) {
+            // Cannot happen when writing to memory.
+            return reply;
+        } finally {
+            deflater.end();
+        }
+
+        if (os.size() >= json.length) {
+            return reply;
+        }
+
+        compressedReplies.incrementAndGet();
+        replyBytes.addAndGet(json.length);
+        compressedReplyBytes.addAndGet(os.size());
+
+        return new JsonObject().putString("compressed", DEFLATE).putBinary("payload", os.toByteArray());
+    }
+
+    /**
+     * Replace the compressed payload of a request by the fields it contains.
+     *
+     * @param body the body of the request
+     * @throws IOException if the payload is missing, invalid or too large
+     */
+    public void decompress(JsonObject body) throws IOException {
+        String codec = body.getString("compressed");
+        if (!DEFLATE.equals(codec)) {
+            throw new IOException("Unsupported compression " + codec);
+        }
+        byte[] payload = body.getBinary("payload");
+        if (payload == null) {
+            throw new IOException("No payload specified");
+        }
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream(payload.length * 4);
+        Inflater inflater = new Inflater();
+        try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(payload), inflater)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                if (os.size() + read > maxInflatedSize) {
+                    throw new IOException("Payload exceeds " + maxInflatedSize + " bytes");
+                }
+                os.write(buffer, 0, read);
+            }
+        } finally {
+            inflater.end();
+        }
+
+        JsonObject fields;
+        try {
+            fields = new JsonObject(new String(os.toByteArray(), StandardCharsets.UTF_8));
+        } catch (DecodeException e) {
+            throw new IOException("Payload is not a JSON object", e);
+        }
+
+        compressedRequests.incrementAndGet();
+        requestBytes.addAndGet(os.size());
+        compressedRequestBytes.addAndGet(payload.length);
+
+        body.removeField("compressed");
+        body.removeField("payload");
+        body.mergeIn(fields);
+    }
+
+    /**
+     * @return the number of compressed replies and requests, their size before and after
+     *         compression, and the ratio between the two
+     */
+    public JsonObject getMetrics() {
+        return new JsonObject()
+                .putObject("replies", toJson(compressedReplies.get(), replyBytes.get(), compressedReplyBytes.get()))
+                .putObject("requests", toJson(compressedRequests.get(), requestBytes.get(), compressedRequestBytes.get()));
+    }
+
+    private static JsonObject toJson(long count, long bytes, long compressedBytes) {
+        return new JsonObject()
+                .putNumber("count", count)
+                .putNumber("bytes", bytes)
+                .putNumber("compressedBytes", compressedBytes)
+                .putNumber("ratio", compressedBytes == 0 ? 0 : (double) bytes / compressedBytes);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.graph;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.MapConfiguration;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.pipes.Pipe;
+
+/**
+ * One of the graphs in the 'graphs' configuration section, which lets a single module instance
+ * serve many small graphs, such as one graph per tenant:
+ * <pre>
+ * "graphs": {
+ *     "tenant-a": {
+ *         "tinkerpopConfig": {"blueprints.graph": "com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph", ...},
+ *         "maxConcurrent": 4,
+ *         "weight": 2
+ *     }
+ * }
+ * </pre>
+ * A message is executed on a named graph if its 'graphName' field specifies the name, and on the
+ * default graph of the module otherwise. Every named graph has its own Tinkerpop configuration,
+ * query cache and metrics. The 'maxConcurrent', 'weight' and 'maxQueued' settings determine its
+ * share of the worker capacity of the module (see
+ * {@link eu.tradegrid.tinkerpop.persistor.quota.ClientQuotas}).
+ */
+public class NamedGraph {
+
+    private final String name;
+    private final Configuration configuration;
+    private final JsonObject quota;
+    private final ConcurrentHashMap<String, Pipe<Element, Object>> queryCache = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalTime = new AtomicLong();
+
+    /**
+     * @param name the name of the graph
+     * @param graphConfig the configuration of the graph
+     * @throws IllegalArgumentException if the graph has no 'tinkerpopConfig'
+     */
+    public NamedGraph(String name, JsonObject graphConfig) {
+        JsonObject tinkerpopConfig = graphConfig.getObject("tinkerpopConfig");
+        if (tinkerpopConfig == null) {
+            throw new IllegalArgumentException(
+                    "tinkerpopConfig section must be specified for graph " + name);
+        }
+
+        this.name = name;
+        this.configuration = new MapConfiguration(tinkerpopConfig.toMap());
+        this.quota = new JsonObject()
+                .putNumber("maxConcurrent", graphConfig.getInteger("maxConcurrent", 4))
+                .putNumber("weight", graphConfig.getInteger("weight", 1))
+                .putNumber("maxQueued", graphConfig.getInteger("maxQueued", 100));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    public ConcurrentHashMap<String, Pipe<Element, Object>> getQueryCache() {
+        return queryCache;
+    }
+
+    /**
+     * @return the share of the graph in the worker capacity, in the format of a client quota
+     */
+    public JsonObject getQuota() {
+        return quota;
+    }
+
+    /**
+     * Record the execution of an action on the graph.
+     *
+     * @param time the execution time in milliseconds
+     * @param failed whether the action failed with an exception
+     */
+    public void record(long time, boolean failed) {
+        requests.incrementAndGet();
+        totalTime.addAndGet(time);
+        if (failed) {
+            failures.incrementAndGet();
+        }
+    }
+
+    public JsonObject getMetrics() {
+        long count = requests.get();
+        return new JsonObject()
+                .putNumber("requests", count)
+                .putNumber("failures", failures.get())
+                .putNumber("averageTime", count == 0 ? 0 : (double) totalTime.get() / count)
+                .putNumber("cachedQueries", queryCache.size());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.job;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Base class for long-running operations that are executed on a background thread, outside
+ * of the event bus handler, so that ordinary traffic keeps flowing. The progress of a job can
+ * be queried at any time by converting it to JSON.
+ */
+public abstract class BackgroundJob implements Runnable {
+
+    public enum Status {
+        PENDING, RUNNING, COMPLETED, FAILED
+    }
+    
+    private final String id;
+    private final String type;
+    private final long createdTime;
+    
+    private volatile Status status = Status.PENDING;
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile String error;
+    
+    /**
+     * The number of elements processed so far.
+     */
+    protected final AtomicLong processed = new AtomicLong();
+    
+    protected BackgroundJob(String type) {
+        this.id = UUID.randomUUID().toString();
+        this.type = type;
+        this.createdTime = System.currentTimeMillis();
+    }
+    
+    public String getId() {
+        return id;
+    }
+    
+    public Status getStatus() {
+        return status;
+    }
+    
+    /**
+     * @return the error message if the job failed, null otherwise
+     */
+    public String getError() {
+        return error;
+    }
+    
+    public boolean isFinished() {
+        return status == Status.COMPLETED || status == Status.FAILED;
+    }
+    
+    /**
+     * @return the time in milliseconds at which the job finished, or its creation time if
+     *         it has not finished yet
+     */
+    public long getLastActivityTime() {
+        return isFinished() ? endTime : createdTime;
+    }
+    
+    @Override
+    public void run() {
+        startTime = System.currentTimeMillis();
+        status = Status.RUNNING;
+        try {
+            execute();
+            status = Status.COMPLETED;
+        } catch (Exception e) {
+            error = e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+            status = Status.FAILED;
+        } finally {
+            endTime = System.currentTimeMillis();
+        }
+    }
+    
+    /**
+     * Perform the actual work of the job, updating the progress counters along the way.
+     * 
+     * @throws Exception if the job fails
+     */
+    protected abstract void execute() throws Exception;
+    
+    /**
+     * Add job-specific progress information to the JSON representation of the job.
+     * 
+     * @param jobJson the JSON representation of the job
+     */
+    protected void describe(JsonObject jobJson) {
+    }
+    
+    public JsonObject toJson() {
+        long elapsed = 0;
+        if (status == Status.RUNNING) {
+            elapsed = System.currentTimeMillis() - startTime;
+        } else if (isFinished()) {
+            elapsed = endTime - startTime;
+        }
+        
+        JsonObject jobJson = new JsonObject()
+                .putString("jobId", id)
+                .putString("type", type)
+                .putString("jobStatus", status.name())
+                .putNumber("processed", processed.get())
+                .putNumber("elapsed", elapsed);
+        
+        if (error != null) {
+            jobJson.putString("error", error);
+        }
+        
+        describe(jobJson);
+        
+        return jobJson;
+    }
+}
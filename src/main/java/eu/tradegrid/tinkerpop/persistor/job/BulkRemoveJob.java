@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.job;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.configuration.Configuration;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.GraphFactory;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import eu.tradegrid.tinkerpop.persistor.util.ElementFilter;
+import eu.tradegrid.tinkerpop.persistor.util.GraphEvents;
+
+/**
+ * Job that removes either a list of vertices or edges by Id, or all vertices or edges that match
+ * an {@link ElementFilter}. The elements are removed in chunks of 'commitSize' elements, each of
+ * which is committed separately, so that large deletions neither build up huge transactions nor
+ * hold on to the graph for a long time. If the job fails, the chunks committed before remain
+ * removed.
+ * <p/>
+ * The limit of the filter, if any, is the maximum number of elements that are removed.
+ */
+public class BulkRemoveJob extends BackgroundJob {
+
+    private final Configuration tinkerpopConfig;
+    private final Class<? extends Element> elementClass;
+    private final List<Object> ids;
+    private final ElementFilter filter;
+    private final int commitSize;
+
+    private final AtomicLong notFound = new AtomicLong();
+    private Graph graph;
+    private List<GraphChangedListener> changeListeners;
+
+    /**
+     * @param tinkerpopConfig the configuration used to open the graph
+     * @param elementClass either {@link Vertex} or {@link Edge}
+     * @param ids the Id's of the elements to remove, or null if the filter is used
+     * @param filter the filter that selects the elements to remove, if no Id's are provided
+     * @param commitSize the number of elements that are removed per transaction
+     */
+    public BulkRemoveJob(Configuration tinkerpopConfig, Class<? extends Element> elementClass,
+            List<Object> ids, ElementFilter filter, int commitSize) {
+        super(elementClass == Vertex.class ? "removeVertices" : "removeEdges");
+        this.tinkerpopConfig = tinkerpopConfig;
+        this.elementClass = elementClass;
+        this.ids = ids;
+        this.filter = filter;
+        this.commitSize = commitSize;
+    }
+
+    /**
+     * Use an already opened graph instead of opening a new connection to the graph database.
+     * The graph is not shut down by the job. This is only possible when the job is not run
+     * in the background.
+     *
+     * @param graph the graph to remove the elements from
+     */
+    public void setGraph(Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Notify the listeners of the removals, when the job opens its own graph.
+     *
+     * @param changeListeners the listeners, may be empty
+     */
+    public void setChangeListeners(List<GraphChangedListener> changeListeners) {
+        this.changeListeners = changeListeners;
+    }
+
+    @Override
+    protected void execute() throws Exception {
+        Graph graph = this.graph == null
+                ? GraphEvents.observe(GraphFactory.open(tinkerpopConfig), changeListeners) : this.graph;
+        try {
+            if (ids != null) {
+                removeByIds(graph);
+            } else {
+                removeByFilter(graph);
+            }
+        } catch (Exception e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            throw e;
+        } finally {
+            if (graph != this.graph) {
+                graph.shutdown();
+            }
+        }
+    }
+
+    @Override
+    protected void describe(JsonObject jobJson) {
+        jobJson.putString("elementClass", elementClass == Vertex.class ? "vertices" : "edges")
+                .putNumber("deleted", processed.get());
+
+        if (ids != null) {
+            jobJson.putNumber("notFound", notFound.get());
+        }
+    }
+
+    private void removeByIds(Graph graph) {
+        int uncommitted = 0;
+        for (Object id : ids) {
+            Element element = elementClass == Vertex.class ? graph.getVertex(id) : graph.getEdge(id);
+            if (element == null) {
+                notFound.incrementAndGet();
+                continue;
+            }
+
+            remove(graph, element);
+            if (++uncommitted >= commitSize) {
+                commit(graph, uncommitted);
+                uncommitted = 0;
+            }
+        }
+
+        commit(graph, uncommitted);
+    }
+
+    /**
+     * Remove the matching elements chunk by chunk. The query is executed again for every chunk,
+     * because the elements cannot be removed while iterating the query results.
+     */
+    private void removeByFilter(Graph graph) {
+        long maxRemoved = filter.getLimit() > 0 ? filter.getLimit() : Long.MAX_VALUE;
+
+        List<Element> chunk = new ArrayList<>(commitSize);
+        while (processed.get() < maxRemoved) {
+            int chunkSize = (int) Math.min(commitSize, maxRemoved - processed.get());
+
+            Iterable<? extends Element> elements = elementClass == Vertex.class
+                    ? filter.vertices(graph) : filter.edges(graph);
+            for (Element element : elements) {
+                chunk.add(element);
+                if (chunk.size() >= chunkSize) {
+                    break;
+                }
+            }
+
+            for (Element element : chunk) {
+                remove(graph, element);
+            }
+            commit(graph, chunk.size());
+
+            if (chunk.size() < chunkSize) {
+                break;
+            }
+            chunk.clear();
+        }
+    }
+
+    private void remove(Graph graph, Element element) {
+        if (element instanceof Vertex) {
+            graph.removeVertex((Vertex) element);
+        } else {
+            graph.removeEdge((Edge) element);
+        }
+    }
+
+    /**
+     * Commit the removed elements, which only then count as deleted.
+     */
+    private void commit(Graph graph, int removed) {
+        if (graph instanceof TransactionalGraph) {
+            ((TransactionalGraph) graph).commit();
+        }
+        processed.addAndGet(removed);
+    }
+}
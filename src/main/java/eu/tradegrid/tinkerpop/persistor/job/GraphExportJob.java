@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.job;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.configuration.Configuration;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.EventBus;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.GraphFactory;
+
+import eu.tradegrid.tinkerpop.persistor.util.ElementFilter;
+import eu.tradegrid.tinkerpop.persistor.util.JsonUtility;
+
+/**
+ * Background job that streams the graph in GraphSON format, element by element, to either a
+ * new local file or a sequence of fixed-size chunks that are sent over the event bus. Memory
+ * use is independent of the size of the graph. The output can optionally be gzip compressed.
+ * <p/>
+ * When sending chunks, each chunk must be acknowledged by a reply before the next chunk is
+ * sent, so a slow consumer cannot cause the chunks to pile up in memory. Chunks have the form:
+ * <pre>
+ * {"jobId": "...", "sequence": 0, "last": false, "data": "..."}
+ * </pre>
+ * where 'data' is a string, or base64 encoded binary data when the output is compressed. The 
+ * last chunk also contains the number of exported 'vertices' and 'edges', or an 'error' if
+ * the export failed.
+ * <p/>
+ * An existing file is never overwritten. If the export fails, the partially written file is
+ * deleted.
+ */
+public class GraphExportJob extends BackgroundJob {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 65536;
+    
+    private final Configuration tinkerpopConfig;
+    private final JsonUtility jsonUtility;
+    private final boolean includeVertices;
+    private final boolean includeEdges;
+    private final ElementFilter vertexFilter;
+    private final ElementFilter edgeFilter;
+    private final boolean gzip;
+    
+    private Graph graph;
+    private String path;
+    private EventBus eventBus;
+    private String chunkAddress;
+    private int chunkSize;
+    private long chunkTimeout;
+    
+    private final AtomicLong vertices = new AtomicLong();
+    private final AtomicLong edges = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    
+    /**
+     * Create a new export job. Either {@link #setFileTarget(String)} or 
+     * {@link #setChunkTarget(EventBus, String, int, long)} must be called before running it.
+     * 
+     * @param tinkerpopConfig the configuration of the graph to export
+     * @param jsonUtility the utility used to convert elements to GraphSON
+     * @param includeVertices whether to export vertices
+     * @param includeEdges whether to export edges
+     * @param vertexFilter optional filter on the vertices to export
+     * @param edgeFilter optional filter on the edges to export
+     * @param gzip whether to compress the output
+     */
+    public GraphExportJob(Configuration tinkerpopConfig, JsonUtility jsonUtility, 
+            boolean includeVertices, boolean includeEdges, 
+            ElementFilter vertexFilter, ElementFilter edgeFilter, boolean gzip) {
+        super("exportGraph");
+        this.tinkerpopConfig = tinkerpopConfig;
+        this.jsonUtility = jsonUtility;
+        this.includeVertices = includeVertices;
+        this.includeEdges = includeEdges;
+        this.vertexFilter = vertexFilter;
+        this.edgeFilter = edgeFilter;
+        this.gzip = gzip;
+    }
+    
+    /**
+     * Use an already opened graph instead of opening a new connection to the graph database. 
+     * The graph is not shut down by the job. This is only possible when the job is not run 
+     * in the background.
+     * 
+     * @param graph the graph to export
+     */
+    public void setGraph(Graph graph) {
+        this.graph = graph;
+    }
+    
+    /**
+     * @param path the path of the file to create, which must not exist yet
+     */
+    public void setFileTarget(String path) {
+        this.path = path;
+    }
+    
+    public void setChunkTarget(EventBus eventBus, String chunkAddress, int chunkSize, long chunkTimeout) {
+        this.eventBus = eventBus;
+        this.chunkAddress = chunkAddress;
+        this.chunkSize = chunkSize;
+        this.chunkTimeout = chunkTimeout;
+    }
+    
+    @Override
+    protected void execute() throws Exception {
+        ChunkOutputStream chunkStream = null;
+        OutputStream target;
+        if (chunkAddress != null) {
+            chunkStream = new ChunkOutputStream();
+            target = chunkStream;
+        } else {
+            target = new BufferedOutputStream(Files.newOutputStream(
+                    Paths.get(path), StandardOpenOption.CREATE_NEW), BUFFER_SIZE);
+        }
+        
+        Graph graph = this.graph;
+        try {
+            if (graph == null) {
+                graph = GraphFactory.open(tinkerpopConfig);
+            }
+            
+            OutputStream os = gzip ? new GZIPOutputStream(target, BUFFER_SIZE) : target;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(os, UTF8), BUFFER_SIZE);
+            
+            writer.write("{\"mode\":\"" + jsonUtility.getGraphSONMode() + "\"");
+            if (includeVertices) {
+                writer.write(",\"vertices\":[");
+                writeElements(writer, vertexFilter == null 
+                        ? graph.getVertices() : vertexFilter.vertices(graph), vertices);
+                writer.write("]");
+            }
+            if (includeEdges) {
+                writer.write(",\"edges\":[");
+                writeElements(writer, edgeFilter == null 
+                        ? graph.getEdges() : edgeFilter.edges(graph), edges);
+                writer.write("]");
+            }
+            writer.write("}");
+            
+            // Closing the writer finishes the compression and sends the last chunk.
+            writer.close();
+        } catch (Exception e) {
+            if (chunkStream != null) {
+                chunkStream.abort(e.getMessage() == null ? e.getClass().getName() : e.getMessage());
+            } else {
+                // The file was created by this job, because creating it fails if it exists.
+                target.close();
+                new File(path).delete();
+            }
+            throw e;
+        } finally {
+            if (graph != null && graph != this.graph) {
+                graph.shutdown();
+            }
+        }
+    }
+    
+    private <T extends Element> void writeElements(Writer writer, Iterable<T> elements, 
+            AtomicLong counter) throws IOException {
+        
+        boolean first = true;
+        for (T element : elements) {
+            if (!first) {
+                writer.write(",");
+            }
+            jsonUtility.writeElement(writer, element);
+            
+            first = false;
+            counter.incrementAndGet();
+            processed.incrementAndGet();
+        }
+    }
+    
+    @Override
+    protected void describe(JsonObject jobJson) {
+        jobJson.putNumber("vertices", vertices.get())
+                .putNumber("edges", edges.get());
+        
+        if (path != null) {
+            jobJson.putString("path", path);
+        } else {
+            jobJson.putNumber("chunks", chunks.get());
+        }
+    }
+    
+    /**
+     * Output stream that sends its contents in fixed-size chunks over the event bus, waiting
+     * for each chunk to be acknowledged. Uncompressed chunks are split on UTF-8 character 
+     * boundaries, so that every chunk can be sent as a string.
+     */
+    private class ChunkOutputStream extends OutputStream {
+
+        private final byte[] buffer = new byte[chunkSize];
+        private int count;
+        private boolean closed;
+        
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                sendChunk(false);
+            }
+            buffer[count++] = (byte) b;
+        }
+        
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (count == buffer.length) {
+                    sendChunk(false);
+                }
+                int size = Math.min(length, buffer.length - count);
+                System.arraycopy(bytes, offset, buffer, count, size);
+                count += size;
+                offset += size;
+                length -= size;
+            }
+        }
+        
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                sendChunk(true);
+            }
+        }
+        
+        void abort(String error) {
+            if (!closed) {
+                closed = true;
+                eventBus.send(chunkAddress, new JsonObject()
+                        .putString("jobId", getId())
+                        .putNumber("sequence", chunks.getAndIncrement())
+                        .putBoolean("last", true)
+                        .putString("error", error));
+            }
+        }
+        
+        private void sendChunk(boolean last) throws IOException {
+            int length = (gzip || last) ? count : characterBoundary();
+            byte[] data = Arrays.copyOf(buffer, length);
+            
+            JsonObject chunk = new JsonObject()
+                    .putString("jobId", getId())
+                    .putNumber("sequence", chunks.getAndIncrement())
+                    .putBoolean("last", last);
+            
+            if (gzip) {
+                chunk.putBinary("data", data);
+            } else {
+                chunk.putString("data", new String(data, UTF8));
+            }
+            
+            if (last) {
+                chunk.putNumber("vertices", vertices.get()).putNumber("edges", edges.get());
+            }
+            
+            final CountDownLatch acknowledged = new CountDownLatch(1);
+            eventBus.send(chunkAddress, chunk, new Handler<Message<Object>>() {
+
+                @Override
+                public void handle(Message<Object> reply) {
+                    acknowledged.countDown();
+                }
+            });
+            
+            try {
+                if (!acknowledged.await(chunkTimeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("Chunk " + (chunks.get() - 1) + " was not acknowledged in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for chunk acknowledgement");
+            }
+            
+            System.arraycopy(buffer, length, buffer, 0, count - length);
+            count -= length;
+        }
+        
+        /**
+         * @return the length of the buffer up to the last complete UTF-8 character
+         */
+        private int characterBoundary() {
+            int start = count - 1;
+            while (start > 0 && (buffer[start] & 0xC0) == 0x80) {
+                start--;
+            }
+            
+            int lead = buffer[start] & 0xFF;
+            int expected = lead < 0x80 ? 1 : lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : 2;
+            
+            return count - start >= expected ? count : start;
+        }
+    }
+}
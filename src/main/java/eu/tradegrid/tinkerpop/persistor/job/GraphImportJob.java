@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.job;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.configuration.Configuration;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.GraphFactory;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import eu.tradegrid.tinkerpop.persistor.util.GraphEvents;
+import eu.tradegrid.tinkerpop.persistor.util.GraphSONStreamReader;
+import eu.tradegrid.tinkerpop.persistor.util.JsonUtility;
+
+/**
+ * Job that streams a GraphSON document from a local (optionally gzip compressed) file into the
+ * graph using a {@link GraphSONStreamReader}, committing periodically. Besides the number of 
+ * imported vertices and edges, the job reports the number of bytes read and the throughput.
+ */
+public class GraphImportJob extends BackgroundJob {
+
+    private static final int BUFFER_SIZE = 65536;
+    
+    private final Configuration tinkerpopConfig;
+    private final String path;
+    private final boolean gzip;
+    private final GraphSONStreamReader reader;
+    
+    private final AtomicLong bytesRead = new AtomicLong();
+    private Graph graph;
+    private List<GraphChangedListener> changeListeners;
+    
+    public GraphImportJob(Configuration tinkerpopConfig, JsonUtility jsonUtility, 
+            String path, boolean gzip, int commitSize) {
+        super("importGraph");
+        this.tinkerpopConfig = tinkerpopConfig;
+        this.path = path;
+        this.gzip = gzip;
+        this.reader = new GraphSONStreamReader(jsonUtility, commitSize);
+    }
+    
+    /**
+     * Use an already opened graph instead of opening a new connection to the graph database. 
+     * The graph is not shut down by the job. This is only possible when the job is not run 
+     * in the background.
+     * 
+     * @param graph the graph to import into
+     */
+    public void setGraph(Graph graph) {
+        this.graph = graph;
+    }
+    
+    /**
+     * Let edges refer to existing vertices by their database Id (see 
+     * {@link GraphSONStreamReader#setResolveDatabaseIds(boolean)}).
+     * 
+     * @param resolveDatabaseIds whether to look up unknown vertex Id's in the graph
+     */
+    public void setResolveDatabaseIds(boolean resolveDatabaseIds) {
+        reader.setResolveDatabaseIds(resolveDatabaseIds);
+    }
+    
+    /**
+     * Notify the listeners of the imported elements, when the job opens its own graph.
+     * 
+     * @param changeListeners the listeners, may be empty
+     */
+    public void setChangeListeners(List<GraphChangedListener> changeListeners) {
+        this.changeListeners = changeListeners;
+    }
+    
+    @Override
+    protected void execute() throws Exception {
+        Graph graph = this.graph == null 
+                ? GraphEvents.observe(GraphFactory.open(tinkerpopConfig), changeListeners) : this.graph;
+        
+        InputStream is = new CountingInputStream(Files.newInputStream(Paths.get(path)));
+        try {
+            is = new BufferedInputStream(gzip ? new GZIPInputStream(is, BUFFER_SIZE) : is, BUFFER_SIZE);
+            reader.read(graph, is);
+        } catch (Exception e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            throw e;
+        } finally {
+            is.close();
+            if (graph != this.graph) {
+                graph.shutdown();
+            }
+        }
+    }
+    
+    @Override
+    public JsonObject toJson() {
+        processed.set(reader.getVertexCount() + reader.getEdgeCount());
+        return super.toJson();
+    }
+    
+    @Override
+    protected void describe(JsonObject jobJson) {
+        long elapsed = jobJson.getLong("elapsed", 0L);
+        long elements = reader.getVertexCount() + reader.getEdgeCount();
+        
+        jobJson.putString("path", path)
+                .putNumber("vertices", reader.getVertexCount())
+                .putNumber("edges", reader.getEdgeCount())
+                .putNumber("bytesRead", bytesRead.get())
+                .putNumber("elementsPerSecond", elapsed > 0 ? elements * 1000 / elapsed : elements);
+    }
+    
+    /**
+     * Counts the (compressed) bytes read from the file.
+     */
+    private class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                bytesRead.incrementAndGet();
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int count = super.read(bytes, offset, length);
+            if (count > 0) {
+                bytesRead.addAndGet(count);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.job;
+
+import org.apache.commons.configuration.Configuration;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.GraphFactory;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
+import com.tinkerpop.blueprints.Parameter;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Background job that creates a key index on a graph with its own connection to the graph
+ * database.
+ * <p/>
+ * Blueprints does not report progress while the database (re)indexes existing elements. 
+ * Optionally, the job first scans the elements that have the key (the 'processed' count grows
+ * during this 'scanning' phase) before creating the index, so that the number of elements to
+ * index is known. The scan is an additional pass over all elements, so it is off by default.
+ */
+public class KeyIndexJob extends BackgroundJob {
+
+    private final Configuration tinkerpopConfig;
+    private final String key;
+    private final Class<? extends Element> elementClass;
+    private final Parameter<String, Object>[] parameters;
+    private final boolean scanElements;
+    
+    private volatile String phase = "pending";
+    
+    public KeyIndexJob(Configuration tinkerpopConfig, String key, Class<? extends Element> elementClass,
+            Parameter<String, Object>[] parameters, boolean scanElements) {
+        super("createKeyIndex");
+        this.tinkerpopConfig = tinkerpopConfig;
+        this.key = key;
+        this.elementClass = elementClass;
+        this.parameters = parameters;
+        this.scanElements = scanElements;
+    }
+    
+    @Override
+    protected void execute() throws Exception {
+        Graph graph = GraphFactory.open(tinkerpopConfig);
+        try {
+            // The graph of the job may differ from the graph of the message, e.g. for a shard.
+            if (!graph.getFeatures().supportsKeyIndices || !(graph instanceof KeyIndexableGraph)) {
+                throw new UnsupportedOperationException("Graph does not support key indices");
+            }
+            
+            if (scanElements) {
+                phase = "scanning";
+                Iterable<? extends Element> elements = elementClass == Vertex.class 
+                        ? graph.getVertices() : graph.getEdges();
+                
+                for (Element element : elements) {
+                    if (element.getProperty(key) != null) {
+                        processed.incrementAndGet();
+                    }
+                }
+            }
+            
+            phase = "indexing";
+            if (parameters == null) {
+                ((KeyIndexableGraph) graph).createKeyIndex(key, elementClass);
+            } else {
+                ((KeyIndexableGraph) graph).createKeyIndex(key, elementClass, parameters);
+            }
+            
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).commit();
+            }
+            phase = "done";
+        } catch (Exception e) {
+            if (graph instanceof TransactionalGraph) {
+                ((TransactionalGraph) graph).rollback();
+            }
+            phase = "failed";
+            throw e;
+        } finally {
+            graph.shutdown();
+        }
+    }
+    
+    @Override
+    protected void describe(JsonObject jobJson) {
+        jobJson.putString("key", key)
+                .putString("elementClass", elementClass.getSimpleName())
+                .putString("phase", phase);
+        
+        if (scanElements && "done".equals(phase)) {
+            jobJson.putNumber("elementsScanned", processed.get());
+        }
+    }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.quota;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Admission control that isolates the clients of a shared persistor from each other. Messages
+ * identify their client by a 'clientId' field; messages without one belong to the client
+ * 'anonymous'. The 'quotas' configuration section looks like:
+ * <pre>
+ * "quotas": {
+ *     "maxConcurrent": 16,
+ *     "default": {"maxConcurrent": 4, "rate": 200, "burst": 400, "weight": 1, "maxQueued": 100},
+ *     "clients": {
+ *         "batch-import": {"maxConcurrent": 2, "rate": 50, "weight": 1},
+ *         "web": {"maxConcurrent": 12, "weight": 4}
+ *     }
+ * }
+ * </pre>
+ * A message is rejected immediately if its client exceeds its token bucket of 'rate' messages
+ * per second (with bursts of up to 'burst' messages; no limit if 'rate' is 0). Otherwise it runs
+ * right away if both the client and the persistor as a whole are below their 'maxConcurrent'
+ * limit, or it is queued (up to 'maxQueued' messages per client, beyond which it is rejected).
+ * <p/>
+ * Whenever a message completes, the next queued message is chosen by weighted fair queuing
+ * (stride scheduling): clients with a higher 'weight' receive a proportionally larger share of
+ * the execution slots when several clients are waiting.
+ * <p/>
+ * The same scheduling can share capacity between other kinds of clients, by identifying the
+ * client of a message with another field, such as the named graph it is executed on.
+ */
+public class ClientQuotas {
+
+    public static final String ANONYMOUS = "anonymous";
+
+    /**
+     * The outcome of submitting a message.
+     */
+    public enum Decision {
+        RUN, QUEUED, RATE_LIMITED, QUEUE_FULL
+    }
+
+    private final String keyField;
+    private final String defaultKey;
+    private final int maxConcurrent;
+    private final int maxClients;
+    private final Quota defaultQuota;
+    private final Map<String, Quota> clientQuotas = new HashMap<>();
+
+    private final Map<String, Client> clients = new LinkedHashMap<>();
+    private int running;
+    private double virtualTime;
+
+    /**
+     * @param quotasConfig the 'quotas' configuration section
+     */
+    public ClientQuotas(JsonObject quotasConfig) {
+        this(quotasConfig, "clientId", ANONYMOUS);
+    }
+    
+    /**
+     * @param quotasConfig the quotas, in the format of the 'quotas' configuration section
+     * @param keyField the field of a message that identifies its client
+     * @param defaultKey the client of messages without the field
+     */
+    public ClientQuotas(JsonObject quotasConfig, String keyField, String defaultKey) {
+        this.keyField = keyField;
+        this.defaultKey = defaultKey;
+        maxConcurrent = quotasConfig.getInteger("maxConcurrent", 16);
+        maxClients = quotasConfig.getInteger("maxClients", 10000);
+        defaultQuota = new Quota(quotasConfig.getObject("default", new JsonObject()), null);
+
+        JsonObject clientsJson = quotasConfig.getObject("clients", new JsonObject());
+        for (String clientId : clientsJson.getFieldNames()) {
+            clientQuotas.put(clientId, new Quota(clientsJson.getObject(clientId), defaultQuota));
+        }
+    }
+
+    /**
+     * Get the client of a message.
+     *
+     * @param message the message
+     * @return the 'clientId' (or other key field) of the message, or the default client
+     */
+    public String getClientId(Message<JsonObject> message) {
+        return message.body().getString(keyField, defaultKey);
+    }
+
+    /**
+     * Submit a message for execution. If the message may run right away, it is counted as
+     * running and must be followed by a call to {@link #release(String)} when it completes.
+     *
+     * @param message the message
+     * @return whether the message must run now, was queued or was rejected
+     */
+    public synchronized Decision submit(Message<JsonObject> message) {
+        Client client = getClient(getClientId(message));
+
+        if (!client.takeToken()) {
+            client.rateLimited++;
+            return Decision.RATE_LIMITED;
+        }
+
+        if (client.queue.isEmpty() && running < maxConcurrent
+                && client.running < client.quota.maxConcurrent) {
+            start(client);
+            return Decision.RUN;
+        }
+
+        if (client.queue.size() >= client.quota.maxQueued) {
+            client.queueFull++;
+            return Decision.QUEUE_FULL;
+        }
+
+        client.queue.add(message);
+        return Decision.QUEUED;
+    }
+
+    /**
+     * Record the completion of a running message of the client, and select the queued message
+     * that runs next, which is then counted as running.
+     *
+     * @param clientId the client of the completed message
+     * @return the message that must run next, or null if no message may run
+     */
+    public synchronized Message<JsonObject> release(String clientId) {
+        Client client = getClient(clientId);
+        client.running--;
+        client.completed++;
+        running--;
+
+        Client next = null;
+        for (Client candidate : clients.values()) {
+            if (!candidate.queue.isEmpty() && candidate.running < candidate.quota.maxConcurrent
+                    && (next == null || candidate.pass < next.pass)) {
+                next = candidate;
+            }
+        }
+
+        if (next == null) {
+            return null;
+        }
+        start(next);
+        return next.queue.poll();
+    }
+
+    /**
+     * Get the usage counters of one or all clients.
+     *
+     * @param clientId the client, or null for all clients
+     * @return the counters by client Id
+     */
+    public synchronized JsonObject getUsage(String clientId) {
+        JsonObject usage = new JsonObject();
+        for (Client client : clients.values()) {
+            if (clientId == null || clientId.equals(client.id)) {
+                usage.putObject(client.id, client.toJson());
+            }
+        }
+        return usage;
+    }
+
+    private void start(Client client) {
+        // A client that was idle does not get credit for the time it did not use its share.
+        client.pass = Math.max(client.pass, virtualTime) + 1.0 / client.quota.weight;
+        virtualTime = Math.max(virtualTime, client.pass - 1.0 / client.quota.weight);
+
+        client.running++;
+        client.admitted++;
+        running++;
+    }
+
+    private Client getClient(String clientId) {
+        Client client = clients.get(clientId);
+        if (client == null) {
+            if (clients.size() >= maxClients && !clientQuotas.containsKey(clientId)) {
+                // Do not let arbitrary client Id's exhaust the memory.
+                return getClient(defaultKey);
+            }
+
+            Quota quota = clientQuotas.get(clientId);
+            client = new Client(clientId, quota == null ? defaultQuota : quota);
+            clients.put(clientId, client);
+        }
+        return client;
+    }
+
+    /**
+     * The limits of a client.
+     */
+    private static class Quota {
+
+        final int maxConcurrent;
+        final double rate;
+        final double burst;
+        final int weight;
+        final int maxQueued;
+
+        Quota(JsonObject quotaJson, Quota defaults) {
+            maxConcurrent = quotaJson.getInteger("maxConcurrent", defaults == null ? 4 : defaults.maxConcurrent);
+            rate = getDouble(quotaJson, "rate", defaults == null ? 0 : defaults.rate);
+
+            // The burst of the defaults only fits if their rate is inherited as well.
+            boolean inheritsRate = defaults != null && quotaJson.getNumber("rate") == null;
+            burst = getDouble(quotaJson, "burst", inheritsRate ? defaults.burst : Math.max(1, 2 * rate));
+            weight = Math.max(1, quotaJson.getInteger("weight", defaults == null ? 1 : defaults.weight));
+            maxQueued = quotaJson.getInteger("maxQueued", defaults == null ? 100 : defaults.maxQueued);
+        }
+
+        private static double getDouble(JsonObject json, String field, double defaultValue) {
+            Number value = json.getNumber(field);
+            return value == null ? defaultValue : value.doubleValue();
+        }
+    }
+
+    /**
+     * The state and usage counters of a client.
+     */
+    private static class Client {
+
+        final String id;
+        final Quota quota;
+        final Deque<Message<JsonObject>> queue = new ArrayDeque<>();
+
+        double tokens;
+        long lastRefill = System.nanoTime();
+        double pass;
+        int running;
+
+        long admitted;
+        long completed;
+        long rateLimited;
+        long queueFull;
+
+        Client(String id, Quota quota) {
+            this.id = id;
+            this.quota = quota;
+            this.tokens = quota.burst;
+        }
+
+        boolean takeToken() {
+            if (quota.rate <= 0) {
+                return true;
+            }
+
+            long now = System.nanoTime();
+            tokens = Math.min(quota.burst, tokens + (now - lastRefill) * quota.rate / 1000000000.0);
+            lastRefill = now;
+
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+
+        JsonObject toJson() {
+            return new JsonObject()
+                    .putNumber("running", running)
+                    .putNumber("queued", queue.size())
+                    .putNumber("admitted", admitted)
+                    .putNumber("completed", completed)
+                    .putNumber("rateLimited", rateLimited)
+                    .putNumber("queueFull", queueFull);
+        }
+    }
+}
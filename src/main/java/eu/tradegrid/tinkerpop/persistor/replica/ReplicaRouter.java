@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.replica;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.MapConfiguration;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Load-balances read-only actions over a set of read replicas of the primary graph database,
+ * such as additional OrientDB servers or Neo4j HA slaves. The 'replication' configuration
+ * section looks like:
+ * <pre>
+ * "replication": {
+ *     "replicas": [{"blueprints.graph": "...", ...}, {"blueprints.graph": "...", ...}],
+ *     "maxLatency": 500,
+ *     "maxFailures": 3,
+ *     "ejectTime": 30000
+ * }
+ * </pre>
+ * Replicas are selected round-robin. The latency of every read on a replica is tracked as an
+ * exponentially weighted moving average. A replica whose average latency exceeds 'maxLatency'
+ * milliseconds, or which fails 'maxFailures' times in a row, is ejected for 'ejectTime'
+ * milliseconds, after which it is tried again with a clean record.
+ */
+public class ReplicaRouter {
+
+    private static final double LATENCY_WEIGHT = 0.2;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final long maxLatency;
+    private final int maxFailures;
+    private final long ejectTime;
+
+    /**
+     * @param replicationConfig the 'replication' configuration section
+     * @throws IllegalArgumentException if no replicas are configured
+     */
+    public ReplicaRouter(JsonObject replicationConfig) {
+        JsonArray replicasJson = replicationConfig.getArray("replicas");
+        if (replicasJson == null || replicasJson.size() == 0) {
+            throw new IllegalArgumentException("replication section must specify at least one replica");
+        }
+
+        for (int i = 0; i < replicasJson.size(); i++) {
+            JsonObject replicaConfig = replicasJson.get(i);
+            replicas.add(new Replica(i, new MapConfiguration(replicaConfig.toMap())));
+        }
+
+        maxLatency = replicationConfig.getLong("maxLatency", 500L);
+        maxFailures = replicationConfig.getInteger("maxFailures", 3);
+        ejectTime = replicationConfig.getLong("ejectTime", 30000L);
+    }
+
+    /**
+     * Check whether the message only reads from the graph and may be executed on a replica.
+     * JSON traversals are always read-only. Gremlin query strings can modify the graph in many
+     * ways (e.g. by assigning a property in a closure), so they are only considered read-only
+     * if the message marks them as such with 'readOnly'.
+     *
+     * @param action the action of the message
+     * @param body the message body
+     * @return true if the message can be executed on a replica
+     */
+    public static boolean isReadAction(String action, JsonObject body) {
+        switch (action) {
+            case "getVertex":
+            case "getNode":
+            case "getVertices":
+            case "getNodes":
+            case "getEdge":
+            case "getRelationship":
+            case "getEdges":
+            case "getRelationships":
+            case "getNeighbors":
+            case "getVertexEdges":
+            case "getNodeRelationships":
+            case "countVertices":
+            case "countNodes":
+            case "countEdges":
+            case "countRelationships":
+            case "degree":
+            case "shortestPath":
+            case "kHop":
+            case "bfs":
+            case "extractSubgraph":
+            case "getIndexedKeys":
+                return true;
+            case "query":
+                return body.getArray("traversal") != null || body.getBoolean("readOnly", false);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the replicas, in the configured order
+     */
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Select the next healthy replica.
+     *
+     * @return the replica, or null if all replicas are ejected
+     */
+    public Replica select() {
+        long now = System.currentTimeMillis();
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.isAvailable(now)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A single read replica with its health record.
+     */
+    public class Replica {
+
+        private final int index;
+        private final Configuration configuration;
+
+        private volatile long ejectedUntil;
+        private double averageLatency = -1;
+        private int consecutiveFailures;
+
+        Replica(int index, Configuration configuration) {
+            this.index = index;
+            this.configuration = configuration;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public Configuration getConfiguration() {
+            return configuration;
+        }
+
+        /**
+         * Record a read on the replica that took 'latency' milliseconds.
+         *
+         * @return true if the replica was ejected because it is too slow
+         */
+        public synchronized boolean recordLatency(long latency) {
+            consecutiveFailures = 0;
+            averageLatency = averageLatency < 0 ? latency
+                    : LATENCY_WEIGHT * latency + (1 - LATENCY_WEIGHT) * averageLatency;
+
+            return averageLatency > maxLatency && eject();
+        }
+
+        /**
+         * Record a read that failed, either because the replica could not be opened or
+         * because the action failed on it.
+         *
+         * @return true if the replica was ejected because it failed too often
+         */
+        public synchronized boolean recordFailure() {
+            return ++consecutiveFailures >= maxFailures && eject();
+        }
+
+        public synchronized double getAverageLatency() {
+            return averageLatency;
+        }
+
+        boolean isAvailable(long now) {
+            return ejectedUntil <= now;
+        }
+
+        private boolean eject() {
+            if (ejectedUntil > System.currentTimeMillis()) {
+                return false;
+            }
+
+            ejectedUntil = System.currentTimeMillis() + ejectTime;
+            averageLatency = -1;
+            consecutiveFailures = 0;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.shard;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.MapConfiguration;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+/**
+ * Routes messages to one of several graph databases (shards), each with its own Tinkerpop
+ * configuration. The 'sharding' configuration section looks like:
+ * <pre>
+ * "sharding": {
+ *     "shards": {
+ *         "shard1": {"blueprints.graph": "...", ...},
+ *         "shard2": {"blueprints.graph": "...", ...}
+ *     },
+ *     "partitionKey": "tenant",
+ *     "idPrefixSeparator": ":",
+ *     "virtualNodes": 128
+ * }
+ * </pre>
+ * A message is routed to the shard named in its 'shard' field, if present. Otherwise its
+ * partition value is taken from the 'partitionKey' field of the message or, for writes, from
+ * the first vertex or edge in the message. If no partition value is found and an
+ * 'idPrefixSeparator' is configured, the part of a string '_id' before the separator is used.
+ * Partition values are mapped onto the shards by consistent hashing, so that adding a shard
+ * only moves a fraction of the partitions.
+ * <p/>
+ * Read actions that do not specify a partition are executed on all shards and their replies
+ * are merged (see {@link #merge(String, Map, int)}).
+ */
+public class ShardRouter {
+
+    private final Map<String, Configuration> shards = new LinkedHashMap<>();
+    private final TreeMap<Long, String> ring = new TreeMap<>();
+    private final String partitionKey;
+    private final String idPrefixSeparator;
+
+    /**
+     * @param shardingConfig the 'sharding' configuration section
+     * @throws IllegalArgumentException if the configuration is invalid
+     */
+    public ShardRouter(JsonObject shardingConfig) {
+        JsonObject shardsJson = shardingConfig.getObject("shards");
+        if (shardsJson == null || shardsJson.size() == 0) {
+            throw new IllegalArgumentException("sharding section must specify at least one shard");
+        }
+
+        partitionKey = shardingConfig.getString("partitionKey");
+        idPrefixSeparator = shardingConfig.getString("idPrefixSeparator");
+        int virtualNodes = shardingConfig.getInteger("virtualNodes", 128);
+
+        for (String name : shardsJson.getFieldNames()) {
+            shards.put(name, new MapConfiguration(shardsJson.getObject(name).toMap()));
+            for (int i = 0; i < virtualNodes; i++) {
+                ring.put(hash(name + "#" + i), name);
+            }
+        }
+    }
+
+    /**
+     * Check whether an action that does not specify a partition can be executed on all shards.
+     *
+     * @param action the action of the message
+     * @return true if the action can be broadcast to all shards
+     */
+    public static boolean isBroadcastAction(String action) {
+        switch (action) {
+            case "getVertices":
+            case "getNodes":
+            case "getEdges":
+            case "getRelationships":
+            case "countVertices":
+            case "countNodes":
+            case "countEdges":
+            case "countRelationships":
+            case "createKeyIndex":
+            case "dropKeyIndex":
+            case "getIndexedKeys":
+            case "flushQueryCache":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public Set<String> getShardNames() {
+        return Collections.unmodifiableSet(shards.keySet());
+    }
+
+    public Configuration getConfiguration(String shard) {
+        return shards.get(shard);
+    }
+
+    /**
+     * @return the configuration of the first shard
+     */
+    public Configuration getDefaultConfiguration() {
+        return shards.values().iterator().next();
+    }
+
+    /**
+     * Determine the shard that the message must be executed on.
+     *
+     * @param body the message body
+     * @return the name of the shard, or null if the message does not identify a partition
+     * @throws IllegalArgumentException if the message names a shard that does not exist
+     */
+    public String route(JsonObject body) {
+        String shard = body.getString("shard");
+        if (shard != null) {
+            if (!shards.containsKey(shard)) {
+                throw new IllegalArgumentException("Unknown shard " + shard);
+            }
+            return shard;
+        }
+
+        Object partition = getPartition(body);
+        return partition == null ? null : shardFor(partition);
+    }
+
+    /**
+     * Map a partition value onto a shard of the consistent hash ring.
+     *
+     * @param partition the partition value
+     * @return the name of the shard
+     */
+    public String shardFor(Object partition) {
+        SortedMap<Long, String> tail = ring.tailMap(hash(partition.toString()));
+        return tail.isEmpty() ? ring.firstEntry().getValue() : tail.get(tail.firstKey());
+    }
+
+    /**
+     * Merge the replies of all shards to a broadcast action into a single reply. Counts are
+     * added up and the vertices or edges are concatenated (up to 'limit', if positive). Other
+     * actions reply with the replies of the individual shards. If any shard failed, the reply
+     * is an error.
+     *
+     * @param action the broadcast action
+     * @param replies the reply of every shard, by shard name
+     * @param limit the maximum number of elements in the merged reply, or 0 for no limit
+     * @return the merged reply, including its status
+     */
+    public static JsonObject merge(String action, Map<String, JsonObject> replies, int limit) {
+        for (Map.Entry<String, JsonObject> reply : replies.entrySet()) {
+            if (!"ok".equals(reply.getValue().getString("status"))) {
+                return new JsonObject().putString("status", "error").putString("message",
+                        String.format("Shard %s: %s", reply.getKey(), reply.getValue().getString("message")));
+            }
+        }
+
+        JsonObject merged = new JsonObject().putString("status", "ok");
+        switch (action) {
+            case "countVertices":
+            case "countNodes":
+            case "countEdges":
+            case "countRelationships":
+                long count = 0;
+                for (JsonObject reply : replies.values()) {
+                    count += reply.getLong("count", 0L);
+                }
+                return merged.putNumber("count", count);
+            case "getVertices":
+            case "getNodes":
+                return merged.putObject("graph", mergeElements(replies, "vertices", limit));
+            case "getEdges":
+            case "getRelationships":
+                return merged.putObject("graph", mergeElements(replies, "edges", limit));
+            default:
+                JsonObject shardReplies = new JsonObject();
+                for (Map.Entry<String, JsonObject> reply : replies.entrySet()) {
+                    JsonObject shardReply = reply.getValue().copy();
+                    shardReply.removeField("status");
+                    shardReplies.putObject(reply.getKey(), shardReply);
+                }
+                return merged.putObject("shards", shardReplies);
+        }
+    }
+
+    private static JsonObject mergeElements(Map<String, JsonObject> replies, String arrayName, int limit) {
+        JsonObject graph = new JsonObject();
+        JsonArray elements = new JsonArray();
+
+        for (JsonObject reply : replies.values()) {
+            JsonObject shardGraph = reply.getObject("graph");
+            graph.putString("mode", shardGraph.getString("mode"));
+            for (Object element : shardGraph.getArray(arrayName)) {
+                if (limit > 0 && elements.size() >= limit) {
+                    break;
+                }
+                elements.add(element);
+            }
+        }
+
+        return graph.putArray(arrayName, elements);
+    }
+
+    private Object getPartition(JsonObject body) {
+        if (partitionKey != null) {
+            Object partition = body.getValue(partitionKey);
+            if (partition == null) {
+                partition = getElementPartition(body.getArray("vertices"));
+            }
+            if (partition == null) {
+                partition = getElementPartition(body.getArray("edges"));
+            }
+            if (partition != null) {
+                return partition;
+            }
+        }
+
+        Object id = body.getField("_id");
+        if (idPrefixSeparator != null && id instanceof String) {
+            int index = ((String) id).indexOf(idPrefixSeparator);
+            if (index > 0) {
+                return ((String) id).substring(0, index);
+            }
+        }
+
+        return null;
+    }
+
+    private Object getElementPartition(JsonArray elements) {
+        if (elements == null || elements.size() == 0 || !(elements.get(0) instanceof JsonObject)) {
+            return null;
+        }
+        return ((JsonObject) elements.get(0)).getValue(partitionKey);
+    }
+
+    private static long hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xff);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.tier;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+import eu.tradegrid.tinkerpop.persistor.util.ElementFilter;
+
+/**
+ * An in-memory {@link TinkerGraph} mirror of a small, frequently traversed subgraph of the
+ * database, such as an ACL or folder hierarchy. The subgraph is configured as follows:
+ * <pre>
+ * "memoryTier": {
+ *     "vertexFilter": {"predicates": [{"key": "type", "compare": "in", "value": ["folder", "principal"]}]},
+ *     "edgeLabels": ["HAS_CHILD_CONTENT", "MEMBER_OF", "SECURITY"]
+ * }
+ * </pre>
+ * The mirror contains the vertices that match the 'vertexFilter' (all vertices if omitted) and
+ * the edges between them that have one of the 'edgeLabels' (any label if omitted), with the
+ * same Id's and properties as in the database.
+ * <p/>
+ * The mirror is loaded once and then kept current as a {@link GraphChangedListener} of the
+ * committed changes made through this module. Changes made to the database by other means
+ * are not reflected. Reads on the mirror must hold the {@link #readLock()}.
+ * <p/>
+ * A change that cannot be applied to the mirror marks it as stale, after which it must be
+ * reloaded with {@link #reload(Graph)} before it is read again.
+ */
+public class MemoryTier implements GraphChangedListener {
+
+    private final TinkerGraph graph = new TinkerGraph();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ElementFilter vertexFilter;
+    private final Set<String> edgeLabels;
+    private final String[] edgeLabelArray;
+
+    private final AtomicLong syncErrors = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+    private volatile boolean stale;
+
+    /**
+     * @param tierConfig the 'memoryTier' configuration section
+     * @throws IllegalArgumentException if the vertex filter is invalid
+     */
+    public MemoryTier(JsonObject tierConfig) {
+        JsonObject filterJson = tierConfig.getObject("vertexFilter");
+        vertexFilter = filterJson == null ? null : ElementFilter.fromJson(filterJson);
+
+        JsonArray labelsJson = tierConfig.getArray("edgeLabels");
+        if (labelsJson == null) {
+            edgeLabels = null;
+            edgeLabelArray = new String[0];
+        } else {
+            edgeLabels = new HashSet<>();
+            for (Object label : labelsJson) {
+                edgeLabels.add(label.toString());
+            }
+            edgeLabelArray = edgeLabels.toArray(new String[edgeLabels.size()]);
+        }
+    }
+
+    public Graph getGraph() {
+        return graph;
+    }
+
+    public Lock readLock() {
+        return lock.readLock();
+    }
+
+    /**
+     * @return true if a change could not be applied, so that the mirror must be reloaded
+     */
+    public boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * @return the number of changes that could not be applied to the mirror, and the number
+     *         of times it was reloaded because of them
+     */
+    public JsonObject getMetrics() {
+        return new JsonObject()
+                .putNumber("syncErrors", syncErrors.get())
+                .putNumber("reloads", reloads.get());
+    }
+
+    /**
+     * Load the subgraph from the database into the mirror.
+     *
+     * @param source the graph of the database
+     * @return the number of vertices that were loaded
+     */
+    public long load(Graph source) {
+        lock.writeLock().lock();
+        try {
+            List<Vertex> sourceVertices = new ArrayList<>();
+            Iterable<Vertex> vertices = vertexFilter == null
+                    ? source.getVertices() : vertexFilter.vertices(source);
+            for (Vertex vertex : vertices) {
+                copyVertex(vertex);
+                sourceVertices.add(vertex);
+            }
+
+            for (Vertex vertex : sourceVertices) {
+                for (Edge edge : vertex.getEdges(Direction.OUT, edgeLabelArray)) {
+                    copyEdge(edge);
+                }
+            }
+
+            return sourceVertices.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replace the contents of the mirror by the subgraph of the database, if it is stale.
+     *
+     * @param source the graph of the database
+     * @return the number of vertices that were loaded, or -1 if the mirror was not stale
+     */
+    public long reload(Graph source) {
+        lock.writeLock().lock();
+        try {
+            // Another thread may have reloaded the mirror already.
+            if (!stale) {
+                return -1;
+            }
+            reloads.incrementAndGet();
+
+            // The mirror stays stale if loading fails.
+            graph.clear();
+            long count = load(source);
+            stale = false;
+            return count;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void vertexAdded(Vertex vertex) {
+        syncVertex(vertex);
+    }
+
+    @Override
+    public void vertexPropertyChanged(Vertex vertex, String key, Object oldValue, Object setValue) {
+        syncVertex(vertex);
+    }
+
+    @Override
+    public void vertexPropertyRemoved(Vertex vertex, String key, Object removedValue) {
+        syncVertex(vertex);
+    }
+
+    @Override
+    public void vertexRemoved(Vertex vertex, Map<String, Object> props) {
+        lock.writeLock().lock();
+        try {
+            Vertex copy = graph.getVertex(vertex.getId());
+            if (copy != null) {
+                graph.removeVertex(copy);
+            }
+        } catch (RuntimeException e) {
+            syncFailed();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void edgeAdded(Edge edge) {
+        lock.writeLock().lock();
+        try {
+            copyEdge(edge);
+        } catch (RuntimeException e) {
+            syncFailed();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void edgePropertyChanged(Edge edge, String key, Object oldValue, Object setValue) {
+        syncEdge(edge);
+    }
+
+    @Override
+    public void edgePropertyRemoved(Edge edge, String key, Object removedValue) {
+        syncEdge(edge);
+    }
+
+    @Override
+    public void edgeRemoved(Edge edge, Map<String, Object> props) {
+        lock.writeLock().lock();
+        try {
+            Edge copy = graph.getEdge(edge.getId());
+            if (copy != null) {
+                graph.removeEdge(copy);
+            }
+        } catch (RuntimeException e) {
+            syncFailed();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add, update or remove the mirror of a changed vertex, depending on whether it (still)
+     * matches the vertex filter. Failures are counted rather than thrown, because the change
+     * has already been committed to the database.
+     */
+    private void syncVertex(Vertex vertex) {
+        lock.writeLock().lock();
+        try {
+            Vertex copy = graph.getVertex(vertex.getId());
+            boolean matches = vertexFilter == null || vertexFilter.matches(vertex);
+
+            if (matches && copy == null) {
+                copyVertex(vertex);
+                for (Edge edge : vertex.getEdges(Direction.BOTH, edgeLabelArray)) {
+                    copyEdge(edge);
+                }
+            } else if (matches) {
+                copyProperties(vertex, copy);
+            } else if (copy != null) {
+                graph.removeVertex(copy);
+            }
+        } catch (RuntimeException e) {
+            syncFailed();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void syncEdge(Edge edge) {
+        lock.writeLock().lock();
+        try {
+            Edge copy = graph.getEdge(edge.getId());
+            if (copy != null) {
+                copyProperties(edge, copy);
+            }
+        } catch (RuntimeException e) {
+            syncFailed();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void syncFailed() {
+        syncErrors.incrementAndGet();
+        stale = true;
+    }
+
+    private void copyVertex(Vertex vertex) {
+        copyProperties(vertex, graph.addVertex(vertex.getId()));
+    }
+
+    /**
+     * Copy the edge if it has one of the configured labels and both of its vertices are mirrored.
+     */
+    private void copyEdge(Edge edge) {
+        if ((edgeLabels != null && !edgeLabels.contains(edge.getLabel()))
+                || graph.getEdge(edge.getId()) != null) {
+            return;
+        }
+
+        Vertex outVertex = graph.getVertex(edge.getVertex(Direction.OUT).getId());
+        Vertex inVertex = graph.getVertex(edge.getVertex(Direction.IN).getId());
+        if (outVertex != null && inVertex != null) {
+            copyProperties(edge, graph.addEdge(edge.getId(), outVertex, inVertex, edge.getLabel()));
+        }
+    }
+
+    private void copyProperties(Element source, Element target) {
+        for (String key : new ArrayList<>(target.getPropertyKeys())) {
+            if (source.getProperty(key) == null) {
+                target.removeProperty(key);
+            }
+        }
+        for (String key : source.getPropertyKeys()) {
+            target.setProperty(key, source.getProperty(key));
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.GraphQuery;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
+import com.tinkerpop.blueprints.Query;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.VertexQuery;
+import com.tinkerpop.blueprints.util.wrappers.WrapperGraph;
+
+/**
+ * A set of {@link PropertyPredicate}s with an optional limit that is used to look up vertices
+ * or edges through a Blueprints {@link GraphQuery}. The JSON format is:
+ * <pre>
+ * {
+ *     "predicates": [{"key": "name", "value": "Root folder"}, {"key": "age", "compare": "gt", "value": 30}],
+ *     "limit": 100
+ * }
+ * </pre>
+ * When building the query, predicates on keys that have a key index in the graph are added
+ * first (exact matches before other conditions), so that the graph database can resolve the
+ * query using its indices rather than by a full scan. The indexed keys are looked up in the base
+ * graph of wrapped graphs, such as the event graphs that report changes to change listeners.
+ */
+public class ElementFilter {
+
+    private final List<PropertyPredicate> predicates;
+    private final int limit;
+
+    public ElementFilter(List<PropertyPredicate> predicates, int limit) {
+        this.predicates = predicates;
+        this.limit = limit;
+    }
+
+    /**
+     * Parse a filter from its JSON representation.
+     *
+     * @param filterJson the JSON filter
+     * @return the parsed filter
+     * @throws IllegalArgumentException if the JSON does not describe a valid filter
+     */
+    public static ElementFilter fromJson(JsonObject filterJson) {
+        List<PropertyPredicate> predicates =
+                PropertyPredicate.listFromJson(filterJson.getField("predicates"));
+        int limit = filterJson.getInteger("limit", 0);
+        if (limit < 0) {
+            throw new IllegalArgumentException("Filter limit must not be negative");
+        }
+
+        return new ElementFilter(predicates, limit);
+    }
+
+    /**
+     * Create a filter that matches a single key/value pair.
+     *
+     * @param key the property key
+     * @param value the property value
+     * @return the filter
+     */
+    public static ElementFilter forKeyValue(String key, Object value) {
+        List<PropertyPredicate> predicates = new ArrayList<>();
+        predicates.add(PropertyPredicate.fromJson(
+                new JsonObject().putString("key", key).putValue("value", value)));
+
+        return new ElementFilter(predicates, 0);
+    }
+
+    public List<PropertyPredicate> getPredicates() {
+        return predicates;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Add an exact key/value match to this filter.
+     *
+     * @param key the property key
+     * @param value the property value
+     * @return this filter
+     */
+    public ElementFilter addKeyValue(String key, Object value) {
+        predicates.addAll(forKeyValue(key, value).getPredicates());
+        return this;
+    }
+
+    /**
+     * Evaluate the filter predicates in-memory against the provided element. The limit
+     * is not taken into account.
+     *
+     * @param element the element to evaluate against
+     * @return true if the element satisfies all predicates
+     */
+    public boolean matches(Element element) {
+        return PropertyPredicate.evaluateAll(predicates, element);
+    }
+
+    public Iterable<Vertex> vertices(Graph graph) {
+        return buildQuery(graph, Vertex.class).vertices();
+    }
+
+    public Iterable<Edge> edges(Graph graph) {
+        return buildQuery(graph, Edge.class).edges();
+    }
+
+    /**
+     * Add the filter predicates and limit to a Blueprints {@link Query}, in the order in
+     * which they were specified. For a {@link VertexQuery} the predicates apply to the 
+     * properties of the incident edges.
+     * 
+     * @param query the query to add the conditions to
+     */
+    public void applyTo(Query query) {
+        for (PropertyPredicate predicate : predicates) {
+            predicate.applyTo(query);
+        }
+
+        if (limit > 0) {
+            query.limit(limit);
+        }
+    }
+
+    private GraphQuery buildQuery(Graph graph, Class<? extends Element> elementClass) {
+        GraphQuery query = graph.query();
+        for (PropertyPredicate predicate : orderByIndex(graph, elementClass)) {
+            predicate.applyTo(query);
+        }
+
+        if (limit > 0) {
+            query.limit(limit);
+        }
+
+        return query;
+    }
+
+    /**
+     * Order the predicates so that those on indexed keys come first, starting with exact matches.
+     */
+    private List<PropertyPredicate> orderByIndex(Graph graph, Class<? extends Element> elementClass) {
+        Graph baseGraph = graph;
+        while (baseGraph instanceof WrapperGraph) {
+            baseGraph = ((WrapperGraph<?>) baseGraph).getBaseGraph();
+        }
+
+        Set<String> indexedKeys = Collections.emptySet();
+        if (baseGraph.getFeatures().supportsKeyIndices && baseGraph instanceof KeyIndexableGraph) {
+            indexedKeys = ((KeyIndexableGraph) baseGraph).getIndexedKeys(elementClass);
+        }
+
+        List<PropertyPredicate> indexedEqualities = new ArrayList<>();
+        List<PropertyPredicate> indexed = new ArrayList<>();
+        List<PropertyPredicate> equalities = new ArrayList<>();
+        List<PropertyPredicate> others = new ArrayList<>();
+
+        for (PropertyPredicate predicate : predicates) {
+            boolean isIndexed = indexedKeys.contains(predicate.getKey());
+            if (isIndexed && predicate.isEquality()) {
+                indexedEqualities.add(predicate);
+            } else if (isIndexed) {
+                indexed.add(predicate);
+            } else if (predicate.isEquality()) {
+                equalities.add(predicate);
+            } else {
+                others.add(predicate);
+            }
+        }
+
+        List<PropertyPredicate> ordered = new ArrayList<>(predicates.size());
+        ordered.addAll(indexedEqualities);
+        ordered.addAll(indexed);
+        ordered.addAll(equalities);
+        ordered.addAll(others);
+
+        return ordered;
+    }
+}
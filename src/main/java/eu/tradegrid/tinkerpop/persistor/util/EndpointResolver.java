@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Resolves the '_outV' and '_inV' endpoints of edges to vertices. An endpoint is either the
+ * database Id of a vertex, or a reference to a vertex by a unique property value:
+ * <pre>
+ * {"key": "externalId", "value": "A-1001"}
+ * </pre>
+ * References are looked up through the key index on the property (if one exists). Every
+ * endpoint is resolved only once per resolver, so a resolver should be used for a single batch
+ * of edges that often share their endpoints.
+ */
+public class EndpointResolver {
+
+    private final Graph graph;
+    private final Map<Object, Vertex> resolved = new HashMap<>();
+
+    public EndpointResolver(Graph graph) {
+        this.graph = graph;
+    }
+
+    /**
+     * Resolve an edge endpoint to a vertex.
+     *
+     * @param endpoint the vertex Id or a key/value reference
+     * @return the vertex, or null if no vertex matches the endpoint
+     * @throws IllegalArgumentException if the endpoint is invalid or matches more than one vertex
+     */
+    public Vertex resolve(Object endpoint) {
+        if (endpoint == null) {
+            throw new IllegalArgumentException("Edge must specify both _outV and _inV");
+        }
+
+        Object cacheKey = endpoint;
+        if (endpoint instanceof JsonObject) {
+            JsonObject reference = (JsonObject) endpoint;
+            if (reference.getString("key") == null || reference.getField("value") == null) {
+                throw new IllegalArgumentException(
+                        "Vertex reference " + reference.encode() + " must specify a key and a value");
+            }
+            cacheKey = Arrays.asList(reference.getString("key"), reference.getField("value"));
+        }
+
+        if (resolved.containsKey(cacheKey)) {
+            return resolved.get(cacheKey);
+        }
+
+        Vertex vertex;
+        if (endpoint instanceof JsonObject) {
+            JsonObject reference = (JsonObject) endpoint;
+            Iterator<Vertex> vertices = graph.getVertices(
+                    reference.getString("key"), reference.getField("value")).iterator();
+
+            vertex = vertices.hasNext() ? vertices.next() : null;
+            if (vertex != null && vertices.hasNext()) {
+                throw new IllegalArgumentException(
+                        "Vertex reference " + reference.encode() + " matches more than one vertex");
+            }
+        } else {
+            vertex = graph.getVertex(endpoint);
+        }
+
+        resolved.put(cacheKey, vertex);
+        return vertex;
+    }
+}
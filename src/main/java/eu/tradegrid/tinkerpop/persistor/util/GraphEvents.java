@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.util.List;
+
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.util.wrappers.event.EventGraph;
+import com.tinkerpop.blueprints.util.wrappers.event.EventTransactionalGraph;
+import com.tinkerpop.blueprints.util.wrappers.event.listener.GraphChangedListener;
+
+/**
+ * Wraps graphs in a Blueprints {@link EventGraph} so that listeners are notified of the changes
+ * made through the graph. For transactional graphs the changes are only reported when they
+ * are committed, and discarded on rollback.
+ */
+public final class GraphEvents {
+
+    private GraphEvents() {
+    }
+
+    /**
+     * Wrap the graph so that its changes are reported to the listeners.
+     *
+     * @param graph the graph to observe
+     * @param listeners the listeners to notify, may be empty
+     * @return the wrapped graph, or the graph itself if there are no listeners
+     */
+    public static Graph observe(Graph graph, List<GraphChangedListener> listeners) {
+        if (listeners == null || listeners.isEmpty()) {
+            return graph;
+        }
+
+        EventGraph<?> eventGraph;
+        if (graph instanceof TransactionalGraph) {
+            eventGraph = new EventTransactionalGraph<>((TransactionalGraph) graph);
+        } else {
+            eventGraph = new EventGraph<>(graph);
+        }
+
+        for (GraphChangedListener listener : listeners) {
+            eventGraph.addListener(listener);
+        }
+        return eventGraph;
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.vertx.java.core.json.JsonObject;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Graph;
+import com.tinkerpop.blueprints.TransactionalGraph;
+import com.tinkerpop.blueprints.Vertex;
+
+/**
+ * Reads a GraphSON document from a stream into a graph, one element at a time, so that the
+ * document never needs to be held in memory as a whole. Transactional graphs are committed
+ * after every 'commitSize' elements.
+ * <p/>
+ * The vertices must precede the edges in the document (as written by the GraphSON writer).
+ * While reading, the supplied vertex Id's are mapped to the Id's generated by the graph
+ * database in a compact {@link IdMap}, so that the '_outV' and '_inV' of edges can be
+ * resolved. Optionally, edges may also refer to vertices that already exist in the graph by
+ * their database Id, and the supplied edge Id's are mapped as well.
+ * <p/>
+ * A reader keeps state and must only be used for a single document.
+ */
+public class GraphSONStreamReader {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final JsonUtility jsonUtility;
+    private final int commitSize;
+
+    private final IdMap idMapping;
+    private final Map<Object, Vertex> uncommittedVertices = new HashMap<>();
+    private final IdMap edgeIdMapping;
+    private final Map<Object, Edge> uncommittedEdges = new HashMap<>();
+    private boolean trackEdgeIds;
+    private boolean resolveDatabaseIds;
+    private int uncommitted;
+
+    private final AtomicLong vertices = new AtomicLong();
+    private final AtomicLong edges = new AtomicLong();
+
+    /**
+     * @param jsonUtility the utility used to convert elements, if the document does not specify a mode
+     * @param commitSize the number of elements after which a transactional graph is committed
+     */
+    public GraphSONStreamReader(JsonUtility jsonUtility, int commitSize) {
+        this.jsonUtility = jsonUtility;
+        this.commitSize = commitSize;
+        this.idMapping = new IdMap(jsonUtility.getIdMapOffHeapThreshold());
+        this.edgeIdMapping = new IdMap(jsonUtility.getIdMapOffHeapThreshold());
+    }
+
+    /**
+     * Enable the mapping of supplied edge Id's to generated Id's, which is disabled by default
+     * to save memory on large imports.
+     *
+     * @param trackEdgeIds whether to map the edge Id's
+     */
+    public void setTrackEdgeIds(boolean trackEdgeIds) {
+        this.trackEdgeIds = trackEdgeIds;
+    }
+
+    /**
+     * Let edges refer to vertices that already exist in the graph by their database Id, when
+     * the Id is not one of the vertices of the document. This is disabled by default, because
+     * databases that generate their own small numeric Id's (e.g. Neo4j) would otherwise attach
+     * an edge with a missing or misspelled vertex to an unrelated vertex.
+     *
+     * @param resolveDatabaseIds whether to look up unknown vertex Id's in the graph
+     */
+    public void setResolveDatabaseIds(boolean resolveDatabaseIds) {
+        this.resolveDatabaseIds = resolveDatabaseIds;
+    }
+
+    /**
+     * Read the GraphSON document from the stream into the graph. All elements that were read
+     * are committed when the end of the document is reached. If an error occurs, elements that
+     * were committed earlier remain in the graph.
+     *
+     * @param graph the graph to add the elements to
+     * @param inputStream the stream containing the GraphSON document
+     * @throws IOException if the document cannot be read or is invalid
+     */
+    @SuppressWarnings("unchecked")
+    public void read(Graph graph, InputStream inputStream) throws IOException {
+        JsonUtility elementUtility = jsonUtility;
+
+        try (JsonParser parser = MAPPER.getFactory().createParser(inputStream)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("GraphSON document must be a JSON object");
+            }
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                switch (field) {
+                    case "mode":
+                        elementUtility = new JsonUtility(parser.getText());
+                        break;
+                    case "embeddedTypes":
+                        // Legacy GraphSON format with embedded types.
+                        if (token == JsonToken.VALUE_TRUE) {
+                            elementUtility = new JsonUtility("EXTENDED");
+                        }
+                        break;
+                    case "vertices":
+                    case "edges":
+                        if (token != JsonToken.START_ARRAY) {
+                            throw new IOException("GraphSON " + field + " must be a JSON array");
+                        }
+
+                        while (parser.nextToken() == JsonToken.START_OBJECT) {
+                            JsonObject elementJson = new JsonObject(MAPPER.readValue(parser, Map.class));
+                            if ("vertices".equals(field)) {
+                                readVertex(graph, elementJson, elementUtility);
+                            } else {
+                                readEdge(graph, elementJson, elementUtility);
+                            }
+                        }
+                        break;
+                    default:
+                        parser.skipChildren();
+                        break;
+                }
+            }
+        }
+
+        commit(graph);
+    }
+
+    /**
+     * @return the mapping of supplied vertex Id's to the Id's generated by the graph database,
+     *         for all committed vertices
+     */
+    public IdMap getIdMapping() {
+        return idMapping;
+    }
+
+    /**
+     * @return the mapping of supplied edge Id's to the Id's generated by the graph database,
+     *         for all committed edges, if edge Id's are tracked
+     */
+    public IdMap getEdgeIdMapping() {
+        return edgeIdMapping;
+    }
+
+    public long getVertexCount() {
+        return vertices.get();
+    }
+
+    public long getEdgeCount() {
+        return edges.get();
+    }
+
+    private void readVertex(Graph graph, JsonObject vertexJson, JsonUtility elementUtility)
+            throws IOException {
+
+        Object suppliedId = vertexJson.getField("_id");
+        Vertex vertex = elementUtility.deserializeVertex(graph, vertexJson);
+        if (suppliedId != null) {
+            uncommittedVertices.put(suppliedId, vertex);
+        }
+
+        vertices.incrementAndGet();
+        elementAdded(graph);
+    }
+
+    private void readEdge(Graph graph, JsonObject edgeJson, JsonUtility elementUtility)
+            throws IOException {
+
+        Vertex outVertex = resolveVertex(graph, edgeJson.getField("_outV"));
+        Vertex inVertex = resolveVertex(graph, edgeJson.getField("_inV"));
+        Edge edge = elementUtility.deserializeEdge(graph, inVertex, outVertex, edgeJson);
+
+        Object suppliedId = edgeJson.getField("_id");
+        if (trackEdgeIds && suppliedId != null) {
+            uncommittedEdges.put(suppliedId, edge);
+        }
+
+        edges.incrementAndGet();
+        elementAdded(graph);
+    }
+
+    private Vertex resolveVertex(Graph graph, Object suppliedId) throws IOException {
+        if (suppliedId == null) {
+            throw new IOException("Edge must specify both _outV and _inV");
+        }
+
+        Vertex vertex = uncommittedVertices.get(suppliedId);
+        if (vertex == null) {
+            Object id = idMapping.get(suppliedId);
+            if (id != null) {
+                vertex = graph.getVertex(id);
+            } else if (resolveDatabaseIds) {
+                try {
+                    vertex = graph.getVertex(suppliedId);
+                } catch (IllegalArgumentException e) {
+                    // Blueprints rejects Id's that are not in the format of the database.
+                    vertex = null;
+                }
+            }
+        }
+
+        if (vertex == null) {
+            throw new IOException("Vertex " + suppliedId + " referenced by edge not found");
+        }
+        return vertex;
+    }
+
+    private void elementAdded(Graph graph) {
+        if (++uncommitted >= commitSize) {
+            commit(graph);
+        }
+    }
+
+    /**
+     * Commit the graph and record the generated Id's of the new vertices, which may only be
+     * final after the commit.
+     */
+    private void commit(Graph graph) {
+        if (graph instanceof TransactionalGraph) {
+            ((TransactionalGraph) graph).commit();
+        }
+
+        for (Map.Entry<Object, Vertex> entry : uncommittedVertices.entrySet()) {
+            idMapping.put(entry.getKey(), entry.getValue().getId());
+        }
+        uncommittedVertices.clear();
+
+        for (Map.Entry<Object, Edge> entry : uncommittedEdges.entrySet()) {
+            edgeIdMapping.put(entry.getKey(), entry.getValue().getId());
+        }
+        uncommittedEdges.clear();
+        uncommitted = 0;
+    }
+}
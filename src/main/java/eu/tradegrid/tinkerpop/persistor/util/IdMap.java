@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Memory-compact mapping of supplied element Id's to the Id's generated by the graph database,
+ * used when importing large graphs.
+ * <p/>
+ * Numeric supplied Id's (integral numbers, or strings in canonical long format such as "338")
+ * are stored as primitive longs in an open-addressing hash table. If the generated Id's are
+ * longs as well (e.g. Neo4j), they are stored as primitive longs too; other generated Id's are
+ * kept in a list that the table refers to. Once the table is sized for more than the off-heap
+ * threshold of entries, it is moved to direct (off-heap) memory, so that very large imports do
+ * not exhaust the heap. Direct memory is limited by -XX:MaxDirectMemorySize.
+ * <p/>
+ * Only the table moves off-heap: generated Id's that are not longs (e.g. the string Id's of
+ * OrientDB and TinkerGraph) always stay in the list on the heap.
+ * <p/>
+ * Other supplied Id's are kept in a regular {@link HashMap}. Note that a numeric Id and its
+ * string form (338 and "338") are considered the same Id.
+ */
+public class IdMap implements Iterable<Map.Entry<Object, Object>> {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+    private static final double MAX_LOAD = 0.7;
+    private static final int MAX_CAPACITY = 1 << 27;
+
+    private final long offHeapThreshold;
+
+    private LongArray keys;
+    private LongArray values;
+    private int capacity;
+    private int primitiveSize;
+    private boolean hasEmptyKey;
+    private long emptyKeyValue;
+
+    private Boolean longValues;
+    private final List<Object> objectValues = new ArrayList<>();
+    private final Map<Object, Object> overflow = new HashMap<>();
+
+    /**
+     * @param offHeapThreshold the number of entries beyond which the table is kept off-heap,
+     *        or 0 to always keep it on the heap
+     */
+    public IdMap(long offHeapThreshold) {
+        this.offHeapThreshold = offHeapThreshold;
+        allocate(64);
+    }
+
+    /**
+     * Map a supplied Id to a generated Id.
+     *
+     * @param suppliedId the Id in the imported document
+     * @param id the Id generated by the graph database
+     * @throws IllegalStateException if the table cannot grow any further
+     */
+    public void put(Object suppliedId, Object id) {
+        if (!isPrimitiveKey(suppliedId)) {
+            overflow.put(suppliedId, id);
+            return;
+        }
+
+        long key = primitiveKey(suppliedId);
+        if (longValues == null) {
+            longValues = id instanceof Long;
+        }
+
+        long value;
+        if (longValues && id instanceof Long) {
+            value = (Long) id;
+        } else if (!longValues) {
+            // Reuse the list entry of a replaced key, so that duplicate Id's do not leak entries.
+            int index = indexOf(key);
+            if (index >= 0) {
+                objectValues.set(index, id);
+                return;
+            }
+            value = objectValues.size();
+            objectValues.add(id);
+        } else {
+            overflow.put(key, id);
+            return;
+        }
+        if (!overflow.isEmpty()) {
+            overflow.remove(key);
+        }
+
+        if (key == EMPTY) {
+            hasEmptyKey = true;
+            emptyKeyValue = value;
+            return;
+        }
+
+        if (primitiveSize + 1 > capacity * MAX_LOAD) {
+            resize();
+        }
+        if (insert(keys, values, capacity, key, value)) {
+            primitiveSize++;
+        }
+    }
+
+    /**
+     * @param suppliedId the Id in the imported document
+     * @return the generated Id, or null if the supplied Id is not mapped
+     */
+    public Object get(Object suppliedId) {
+        if (!isPrimitiveKey(suppliedId)) {
+            return overflow.get(suppliedId);
+        }
+
+        long key = primitiveKey(suppliedId);
+        if (key == EMPTY) {
+            return hasEmptyKey ? decode(emptyKeyValue) : overflow.get(key);
+        }
+
+        int mask = capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long existing = keys.get(slot);
+            if (existing == key) {
+                return decode(values.get(slot));
+            }
+            if (existing == EMPTY) {
+                return overflow.isEmpty() ? null : overflow.get(key);
+            }
+        }
+    }
+
+    public int size() {
+        return primitiveSize + (hasEmptyKey ? 1 : 0) + overflow.size();
+    }
+
+    /**
+     * @return true if the table has been moved to direct memory
+     */
+    public boolean isOffHeap() {
+        return keys.isDirect();
+    }
+
+    /**
+     * Iterate the mappings. Numeric supplied Id's are returned as longs.
+     */
+    @Override
+    public Iterator<Map.Entry<Object, Object>> iterator() {
+        return new Iterator<Map.Entry<Object, Object>>() {
+
+            private int slot = -1;
+            private boolean emptyKeyReturned = !hasEmptyKey;
+            private final Iterator<Map.Entry<Object, Object>> overflowIterator =
+                    overflow.entrySet().iterator();
+
+            @Override
+            public boolean hasNext() {
+                return nextSlot() < capacity || !emptyKeyReturned || overflowIterator.hasNext();
+            }
+
+            @Override
+            public Map.Entry<Object, Object> next() {
+                int next = nextSlot();
+                if (next < capacity) {
+                    slot = next;
+                    return new AbstractMap.SimpleImmutableEntry<Object, Object>(
+                            keys.get(slot), decode(values.get(slot)));
+                }
+                if (!emptyKeyReturned) {
+                    emptyKeyReturned = true;
+                    return new AbstractMap.SimpleImmutableEntry<Object, Object>(
+                            EMPTY, decode(emptyKeyValue));
+                }
+                if (overflowIterator.hasNext()) {
+                    return overflowIterator.next();
+                }
+                throw new NoSuchElementException();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+
+            private int nextSlot() {
+                int next = slot + 1;
+                while (next < capacity && keys.get(next) == EMPTY) {
+                    next++;
+                }
+                return next;
+            }
+        };
+    }
+
+    /**
+     * @return the index in the list of generated Id's of the value of a mapped key, or -1
+     */
+    private int indexOf(long key) {
+        if (key == EMPTY) {
+            return hasEmptyKey ? (int) emptyKeyValue : -1;
+        }
+
+        int mask = capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long existing = keys.get(slot);
+            if (existing == key) {
+                return (int) values.get(slot);
+            }
+            if (existing == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    private Object decode(long value) {
+        return longValues ? (Object) value : objectValues.get((int) value);
+    }
+
+    private void resize() {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Too many Id's to map: " + size());
+        }
+
+        LongArray oldKeys = keys;
+        LongArray oldValues = values;
+        int oldCapacity = capacity;
+
+        allocate(capacity * 2);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            long key = oldKeys.get(slot);
+            if (key != EMPTY) {
+                insert(keys, values, capacity, key, oldValues.get(slot));
+            }
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        boolean direct = offHeapThreshold > 0 && newCapacity * MAX_LOAD > offHeapThreshold;
+        keys = new LongArray(newCapacity, direct);
+        values = new LongArray(newCapacity, direct);
+        capacity = newCapacity;
+
+        for (int slot = 0; slot < newCapacity; slot++) {
+            keys.set(slot, EMPTY);
+        }
+    }
+
+    /**
+     * @return true if the key was added, false if its value was replaced
+     */
+    private static boolean insert(LongArray keys, LongArray values, int capacity, long key, long value) {
+        int mask = capacity - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            long existing = keys.get(slot);
+            if (existing == EMPTY || existing == key) {
+                keys.set(slot, key);
+                values.set(slot, value);
+                return existing == EMPTY;
+            }
+        }
+    }
+
+    private static int hash(long key) {
+        // Finalizer of MurmurHash3, so that sequential Id's spread over the table.
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private static boolean isPrimitiveKey(Object id) {
+        if (id instanceof Long || id instanceof Integer || id instanceof Short || id instanceof Byte) {
+            return true;
+        }
+        if (!(id instanceof String)) {
+            return false;
+        }
+
+        // Only canonical long strings, so that the string form can be restored.
+        String value = (String) id;
+        int start = value.startsWith("-") ? 1 : 0;
+        int length = value.length() - start;
+        if (length == 0 || length > 18 || (value.charAt(start) == '0' && (length > 1 || start > 0))) {
+            return false;
+        }
+        for (int i = start; i < value.length(); i++) {
+            if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long primitiveKey(Object id) {
+        return id instanceof String ? Long.parseLong((String) id) : ((Number) id).longValue();
+    }
+
+    /**
+     * Array of longs on the heap or in direct memory.
+     */
+    private static class LongArray {
+
+        private final long[] heap;
+        private final ByteBuffer direct;
+
+        LongArray(int length, boolean offHeap) {
+            if (offHeap) {
+                heap = null;
+                direct = ByteBuffer.allocateDirect(length * 8).order(ByteOrder.nativeOrder());
+            } else {
+                heap = new long[length];
+                direct = null;
+            }
+        }
+
+        boolean isDirect() {
+            return direct != null;
+        }
+
+        long get(int index) {
+            return heap != null ? heap[index] : direct.getLong(index << 3);
+        }
+
+        void set(int index, long value) {
+            if (heap != null) {
+                heap[index] = value;
+            } else {
+                direct.putLong(index << 3, value);
+            }
+        }
+    }
+}
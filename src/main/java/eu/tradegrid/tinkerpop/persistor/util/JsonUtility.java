@@ -21,7 +21,9 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.util.List;
+import java.util.Map;
 
 import org.codehaus.jettison.json.JSONArray;
 import org.codehaus.jettison.json.JSONException;
@@ -35,7 +37,6 @@ import com.tinkerpop.blueprints.Graph;
 import com.tinkerpop.blueprints.Vertex;
 import com.tinkerpop.blueprints.util.io.graphson.GraphElementFactory;
 import com.tinkerpop.blueprints.util.io.graphson.GraphSONMode;
-import com.tinkerpop.blueprints.util.io.graphson.GraphSONReader;
 import com.tinkerpop.blueprints.util.io.graphson.GraphSONUtility;
 import com.tinkerpop.blueprints.util.io.graphson.GraphSONWriter;
 import com.tinkerpop.pipes.Pipe;
@@ -49,6 +50,7 @@ import com.tinkerpop.pipes.Pipe;
 public class JsonUtility {
 
     protected final GraphSONMode graphsonMode;
+    protected long idMapOffHeapThreshold = 1000000L;
     
     public JsonUtility(String graphSONMode) {
         this.graphsonMode = GraphSONMode.valueOf(graphSONMode);
@@ -58,6 +60,18 @@ public class JsonUtility {
         return graphsonMode.name();
     }
     
+    public long getIdMapOffHeapThreshold() {
+        return idMapOffHeapThreshold;
+    }
+    
+    /**
+     * @param idMapOffHeapThreshold the number of Id's beyond which the Id mappings of graph 
+     *        imports are kept off-heap (see {@link IdMap}), or 0 to keep them on the heap
+     */
+    public void setIdMapOffHeapThreshold(long idMapOffHeapThreshold) {
+        this.idMapOffHeapThreshold = idMapOffHeapThreshold;
+    }
+    
     public JsonObject serializeGraph(Graph graph) throws IOException {
         String graphJsonResult;
         try (ByteArrayOutputStream os = new ByteArrayOutputStream()) {
@@ -68,13 +82,42 @@ public class JsonUtility {
         return new JsonObject().putObject("graph", new JsonObject(graphJsonResult));
     }
     
-    public void deserializeGraph(Graph graph, JsonObject graphJson) 
+    /**
+     * Add the vertices and edges of the GraphSON graph to the graph, committing after every
+     * 'commitSize' elements. The returned reader holds the mapping of supplied to generated Id's.
+     * 
+     * @param graph the graph to add the elements to
+     * @param graphJson the graph in GraphSON format
+     * @param commitSize the number of elements after which a transactional graph is committed
+     * @return the reader that was used to deserialize the graph
+     */
+    public GraphSONStreamReader deserializeGraph(Graph graph, JsonObject graphJson, int commitSize) 
             throws UnsupportedEncodingException, IOException {
+        
+        GraphSONStreamReader reader = new GraphSONStreamReader(this, commitSize);
+        reader.setTrackEdgeIds(true);
+        
         try (InputStream is = 
                 new ByteArrayInputStream(graphJson.toString().getBytes("UTF-8"))) {
             
-            GraphSONReader.inputGraph(graph, is);
+            reader.read(graph, is);
         }
+        
+        return reader;
+    }
+    
+    /**
+     * Convert a mapping of supplied to generated Id's to Json, using the supplied Id's as keys.
+     * 
+     * @param idMapping the Id mapping
+     * @return the Id mapping as Json
+     */
+    public JsonObject serializeIdMapping(IdMap idMapping) {
+        JsonObject idMappingJson = new JsonObject();
+        for (Map.Entry<Object, Object> entry : idMapping) {
+            idMappingJson.putValue(entry.getKey().toString(), serializeId(entry.getValue()));
+        }
+        return idMappingJson;
     }
     
     public Vertex deserializeVertex(Graph graph, JsonObject vertexJson) throws IOException {
@@ -88,6 +131,22 @@ public class JsonUtility {
         return vertex;
     }
 
+    /**
+     * Read the properties of a GraphSON element, ignoring the reserved keys such as '_id'.
+     * 
+     * @param elementJson the element in GraphSON format
+     * @return the property values by key
+     * @throws IOException if the element is not valid GraphSON
+     */
+    public Map<String, Object> deserializeProperties(JsonObject elementJson) throws IOException {
+        try {
+            return GraphSONUtility.readProperties(new JSONObject(elementJson.encode()), 
+                    true, graphsonMode == GraphSONMode.EXTENDED);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
     public Edge deserializeEdge(
             Graph graph, Vertex inVertex, Vertex outVertex, JsonObject edgeJson) throws IOException {
         Edge edge;
@@ -100,6 +159,44 @@ public class JsonUtility {
         return edge;
     }
     
+    /**
+     * Convert an element Id to a value that can be put in a Json message. Ids that are not
+     * of a Json supported datatype are converted to a string.
+     * 
+     * @param id the element Id
+     * @return the Id as a Json value
+     */
+    public Object serializeId(Object id) {
+        if (id == null || id instanceof String || id instanceof Number || id instanceof Boolean) {
+            return id;
+        }
+        return id.toString();
+    }
+    
+    public <T extends Element> JsonArray serializeIds(Iterable<T> elements) {
+        JsonArray ids = new JsonArray();
+        for (T element : elements) {
+            ids.add(serializeId(element.getId()));
+        }
+        return ids;
+    }
+    
+    /**
+     * Write a single element in GraphSON format to the writer, so that large numbers of elements
+     * can be streamed without holding them in memory.
+     * 
+     * @param writer the writer to write the element to
+     * @param element the element to write
+     * @throws IOException if the element cannot be converted or written
+     */
+    public void writeElement(Writer writer, Element element) throws IOException {
+        try {
+            writer.write(GraphSONUtility.jsonFromElement(element, null, graphsonMode).toString());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+    
     public JsonArray serializePipe(Pipe<Element, Object> pipe) throws IOException {
         return serializeElements((Iterable<Object>) pipe);
     }
@@ -126,6 +223,71 @@ public class JsonUtility {
         return new JsonArray(results.toString());
     }
     
+    /**
+     * Serialize the results of a path query without repeating the elements that the paths have
+     * in common. Each distinct Vertex and Edge is serialized once in the 'vertices' or 'edges'
+     * dictionary, keyed by its Id, and every result becomes an array of steps in 'paths'. A step
+     * refers to the dictionary of its element by its tag, because a Vertex and an Edge may have
+     * the same Id:
+     * <pre>
+     * {
+     *     "vertices": {"1": {"_id": 1, "_type": "vertex", ...}, "3": {...}},
+     *     "edges": {"1": {"_id": 1, "_type": "edge", ...}},
+     *     "paths": [[{"v": 3}, {"e": 1}, {"v": 1}], [{"v": 3}, {"value": "name"}]]
+     * }
+     * </pre>
+     * A result that is a single element becomes a path of one step. Values on a path that are
+     * not elements (e.g. from a path closure) become a 'value' step.
+     * 
+     * @param results the results of the query, such as a Gremlin pipe ending in 'path'
+     * @return the dictionaries and the paths
+     * @throws IOException if an element cannot be converted
+     */
+    public JsonObject serializePaths(Iterable<Object> results) throws IOException {
+        JSONObject vertices = new JSONObject();
+        JSONObject edges = new JSONObject();
+        JSONArray paths = new JSONArray();
+        
+        try {
+            for (Object result : results) {
+                JSONArray path = new JSONArray();
+                addToPath(result, path, vertices, edges);
+                paths.put(path);
+            }
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        
+        return new JsonObject()
+                .putObject("vertices", new JsonObject(vertices.toString()))
+                .putObject("edges", new JsonObject(edges.toString()))
+                .putArray("paths", new JsonArray(paths.toString()));
+    }
+    
+    private void addToPath(Object step, JSONArray path, JSONObject vertices, JSONObject edges) 
+            throws JSONException {
+        
+        if (step instanceof Element) {
+            Element element = (Element) step;
+            Object id = serializeId(element.getId());
+            String key = String.valueOf(id);
+            
+            boolean isEdge = element instanceof Edge;
+            JSONObject dictionary = isEdge ? edges : vertices;
+            if (!dictionary.has(key)) {
+                dictionary.put(key, GraphSONUtility.jsonFromElement(element, null, graphsonMode));
+            }
+            path.put(new JSONObject().put(isEdge ? "e" : "v", id));
+        } else if (step instanceof List) {
+            for (Object nestedStep : (List<?>) step) {
+                addToPath(nestedStep, path, vertices, edges);
+            }
+        } else {
+            Object value = serializeId(step);
+            path.put(new JSONObject().put("value", value == null ? JSONObject.NULL : value));
+        }
+    }
+    
     @SuppressWarnings("unchecked")
     private <T> void convertToJson(Iterable<T> items, JSONArray results) throws JSONException {
         for (T resultObject : items) {
@@ -0,0 +1,327 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Compare;
+import com.tinkerpop.blueprints.Contains;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Predicate;
+import com.tinkerpop.blueprints.Query;
+
+/**
+ * A condition on a single property of a graph {@link Element}, parsed from its JSON representation.
+ * The following formats are supported:
+ * <pre>
+ * {"key": "name", "value": "Root folder"}            property equals value
+ * {"key": "age", "compare": "gt", "value": 30}       eq, neq, gt, gte, lt, lte, in, notIn
+ * {"key": "age", "interval": [20, 30]}               start inclusive, end exclusive
+ * {"key": "name", "has": true}                       property is present (false: absent)
+ * </pre>
+ * A predicate can either be evaluated in-memory against an element, or be pushed down to the
+ * graph database through a Blueprints {@link Query}.
+ */
+public class PropertyPredicate {
+
+    public enum Type {
+        HAS, HAS_NOT, COMPARE, INTERVAL
+    }
+
+    private final Type type;
+    private final String key;
+    private final String compareToken;
+    private final Object value;
+    private final Object startValue;
+    private final Object endValue;
+
+    private PropertyPredicate(Type type, String key, String compareToken,
+            Object value, Object startValue, Object endValue) {
+        this.type = type;
+        this.key = key;
+        this.compareToken = compareToken;
+        this.value = value;
+        this.startValue = startValue;
+        this.endValue = endValue;
+    }
+
+    /**
+     * Parse a single predicate from its JSON representation.
+     *
+     * @param predicateJson the JSON predicate
+     * @return the parsed predicate
+     * @throws IllegalArgumentException if the JSON does not describe a valid predicate
+     */
+    public static PropertyPredicate fromJson(JsonObject predicateJson) {
+        String key = predicateJson.getString("key");
+        if (key == null) {
+            throw new IllegalArgumentException("Predicate key must be specified");
+        }
+
+        if (predicateJson.getField("has") != null) {
+            boolean has = predicateJson.getBoolean("has", true);
+            return new PropertyPredicate(has ? Type.HAS : Type.HAS_NOT, key, null, null, null, null);
+        }
+
+        JsonArray interval = predicateJson.getArray("interval");
+        if (interval != null) {
+            if (interval.size() != 2) {
+                throw new IllegalArgumentException(
+                        "Predicate interval on key " + key + " must have a start and end value");
+            }
+            return new PropertyPredicate(Type.INTERVAL, key, null, null, interval.get(0), interval.get(1));
+        }
+
+        String compareToken = predicateJson.getString("compare", "eq");
+        toBlueprintsPredicate(compareToken);
+
+        Object value = predicateJson.getField("value");
+        if (value instanceof JsonArray) {
+            value = ((JsonArray) value).toList();
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Predicate value on key " + key + " must be specified");
+        }
+        if (("in".equals(compareToken) || "notIn".equals(compareToken))
+                && !(value instanceof Collection)) {
+            value = Collections.singletonList(value);
+        }
+
+        return new PropertyPredicate(Type.COMPARE, key, compareToken, value, null, null);
+    }
+
+    /**
+     * Parse a predicate, or an array of predicates, from JSON.
+     *
+     * @param predicatesJson a {@link JsonObject} or {@link JsonArray} of JSON predicates
+     * @return the parsed predicates, empty if none were provided
+     * @throws IllegalArgumentException if the JSON does not describe valid predicates
+     */
+    public static List<PropertyPredicate> listFromJson(Object predicatesJson) {
+        List<PropertyPredicate> predicates = new ArrayList<>();
+        if (predicatesJson instanceof JsonObject) {
+            predicates.add(fromJson((JsonObject) predicatesJson));
+        } else if (predicatesJson instanceof JsonArray) {
+            for (Object predicateJson : (JsonArray) predicatesJson) {
+                if (!(predicateJson instanceof JsonObject)) {
+                    throw new IllegalArgumentException("Predicates must be JSON objects");
+                }
+                predicates.add(fromJson((JsonObject) predicateJson));
+            }
+        } else if (predicatesJson != null) {
+            throw new IllegalArgumentException("Predicates must be a JSON object or array");
+        }
+
+        return predicates;
+    }
+
+    /**
+     * Evaluate whether all of the provided predicates hold for the element.
+     *
+     * @param predicates the predicates to evaluate
+     * @param element the element to evaluate against
+     * @return true if the element satisfies every predicate
+     */
+    public static boolean evaluateAll(List<PropertyPredicate> predicates, Element element) {
+        for (PropertyPredicate predicate : predicates) {
+            if (!predicate.evaluate(element)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return true if the predicate is an exact key/value match, which can be resolved by
+     *         a key index lookup.
+     */
+    public boolean isEquality() {
+        return type == Type.COMPARE && "eq".equals(compareToken);
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Evaluate the predicate in-memory against the properties of the provided element.
+     * Numeric values are compared by value, regardless of their Java type.
+     *
+     * @param element the element to evaluate against
+     * @return true if the element satisfies the predicate
+     */
+    public boolean evaluate(Element element) {
+        Object actual = element.getProperty(key);
+
+        switch (type) {
+            case HAS:
+                return actual != null;
+            case HAS_NOT:
+                return actual == null;
+            case INTERVAL:
+                Integer start = compareValues(actual, startValue);
+                Integer end = compareValues(actual, endValue);
+                return start != null && end != null && start >= 0 && end < 0;
+            default:
+                return evaluateCompare(actual);
+        }
+    }
+
+    /**
+     * Add the predicate as a condition to a Blueprints {@link Query}, so that it can be
+     * resolved by the underlying graph database.
+     *
+     * @param query the query to add the condition to
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void applyTo(Query query) {
+        switch (type) {
+            case HAS:
+                query.has(key);
+                break;
+            case HAS_NOT:
+                query.hasNot(key);
+                break;
+            case INTERVAL:
+                query.interval(key, (Comparable) startValue, (Comparable) endValue);
+                break;
+            default:
+                if (isEquality()) {
+                    query.has(key, value);
+                } else {
+                    query.has(key, toBlueprintsPredicate(compareToken), value);
+                }
+                break;
+        }
+    }
+
+    private boolean evaluateCompare(Object actual) {
+        Integer comparison;
+        switch (compareToken) {
+            case "eq":
+                return valuesEqual(actual, value);
+            case "neq":
+                return !valuesEqual(actual, value);
+            case "in":
+            case "notIn":
+                boolean contained = false;
+                for (Object candidate : (Collection<?>) value) {
+                    if (valuesEqual(actual, candidate)) {
+                        contained = true;
+                        break;
+                    }
+                }
+                return "in".equals(compareToken) ? contained : !contained;
+            case "gt":
+                comparison = compareValues(actual, value);
+                return comparison != null && comparison > 0;
+            case "gte":
+                comparison = compareValues(actual, value);
+                return comparison != null && comparison >= 0;
+            case "lt":
+                comparison = compareValues(actual, value);
+                return comparison != null && comparison < 0;
+            default:
+                comparison = compareValues(actual, value);
+                return comparison != null && comparison <= 0;
+        }
+    }
+
+    private static Predicate toBlueprintsPredicate(String compareToken) {
+        switch (compareToken) {
+            case "eq":
+                return Compare.EQUAL;
+            case "neq":
+                return Compare.NOT_EQUAL;
+            case "gt":
+                return Compare.GREATER_THAN;
+            case "gte":
+                return Compare.GREATER_THAN_EQUAL;
+            case "lt":
+                return Compare.LESS_THAN;
+            case "lte":
+                return Compare.LESS_THAN_EQUAL;
+            case "in":
+                return Contains.IN;
+            case "notIn":
+                return Contains.NOT_IN;
+            default:
+                throw new IllegalArgumentException("Unsupported compare token " + compareToken);
+        }
+    }
+
+    /**
+     * Check whether two property values are equal. Numbers are compared by value, so that
+     * e.g. an Integer and a Long with the same value are equal.
+     *
+     * @param first the first value, may be null
+     * @param second the second value, may be null
+     * @return true if the values are equal
+     */
+    public static boolean valuesEqual(Object first, Object second) {
+        if (first == null || second == null) {
+            return first == second;
+        }
+        if (first instanceof Number && second instanceof Number) {
+            Integer comparison = compareValues(first, second);
+            return comparison != null && comparison == 0;
+        }
+        return first.equals(second);
+    }
+
+    /**
+     * Compare two property values, returning null if they cannot be compared.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static Integer compareValues(Object first, Object second) {
+        if (first == null || second == null) {
+            return null;
+        }
+
+        if (first instanceof Number && second instanceof Number) {
+            if (isIntegral(first) && isIntegral(second)) {
+                return Long.compare(((Number) first).longValue(), ((Number) second).longValue());
+            }
+            return Double.compare(((Number) first).doubleValue(), ((Number) second).doubleValue());
+        }
+
+        if (first instanceof Comparable && first.getClass().isInstance(second)) {
+            return ((Comparable) first).compareTo(second);
+        }
+
+        return null;
+    }
+
+    private static boolean isIntegral(Object number) {
+        return number instanceof Integer || number instanceof Long
+                || number instanceof Short || number instanceof Byte;
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed set of locks that serializes work on equal keys within this module instance, for
+ * example to prevent two concurrent upserts from both creating the same vertex. Keys are
+ * hashed onto the locks, so unrelated keys may occasionally share a lock.
+ * <p/>
+ * Multiple keys are always locked in the same order, so that callers locking overlapping
+ * sets of keys cannot deadlock.
+ */
+public class StripedLocks {
+
+    private final Lock[] locks;
+
+    public StripedLocks(int stripes) {
+        locks = new Lock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Acquire the locks for all of the provided keys.
+     *
+     * @param keys the keys to lock
+     * @return the acquired locks, to be released with {@link #unlockAll(List)}
+     */
+    public List<Lock> lockAll(Collection<?> keys) {
+        TreeSet<Integer> stripes = new TreeSet<>();
+        for (Object key : keys) {
+            stripes.add((key.hashCode() & Integer.MAX_VALUE) % locks.length);
+        }
+
+        List<Lock> acquired = new ArrayList<>(stripes.size());
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+            acquired.add(locks[stripe]);
+        }
+        return acquired;
+    }
+
+    public void unlockAll(List<Lock> acquired) {
+        for (int i = acquired.size() - 1; i >= 0; i--) {
+            acquired.get(i).unlock();
+        }
+    }
+}
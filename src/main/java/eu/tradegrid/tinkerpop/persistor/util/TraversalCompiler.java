@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.util;
+
+import java.util.List;
+
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.gremlin.java.GremlinPipeline;
+import com.tinkerpop.pipes.Pipe;
+import com.tinkerpop.pipes.PipeFunction;
+import com.tinkerpop.pipes.branch.LoopPipe.LoopBundle;
+
+/**
+ * Compiles a declarative JSON traversal directly into a Gremlin Java {@link GremlinPipeline},
+ * thereby avoiding the (costly) Groovy compilation of Gremlin query strings. The traversal is
+ * an array of steps, for example:
+ * <pre>
+ * [
+ *     {"step": "in", "labels": ["HAS_CHILD_CONTENT"]},
+ *     {"step": "loop", "back": 1, "maxLoops": 3, "emit": {"key": "name", "value": "Root folder"}},
+ *     {"step": "path"}
+ * ]
+ * </pre>
+ * which is equivalent to the Gremlin query
+ * <code>_().in('HAS_CHILD_CONTENT').loop(1){it.loops < 3}{it.object.name == 'Root folder'}.path</code>.
+ * <p/>
+ * Predicates in 'has', 'filter' and 'loop' steps use the JSON format of {@link PropertyPredicate}.
+ */
+public class TraversalCompiler {
+
+    /**
+     * Compile the JSON traversal steps into a new {@link Pipe}. The pipe is not shared and
+     * should be compiled again for every traversal that is executed.
+     *
+     * @param steps the array of JSON traversal steps
+     * @return the compiled pipe, without its starts
+     * @throws IllegalArgumentException if the traversal contains invalid or unsupported steps
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public Pipe<Element, Object> compile(JsonArray steps) {
+        if (steps.size() == 0) {
+            throw new IllegalArgumentException("Traversal must contain at least one step");
+        }
+
+        GremlinPipeline pipeline = new GremlinPipeline();
+
+        for (Object stepObject : steps) {
+            if (!(stepObject instanceof JsonObject)) {
+                throw new IllegalArgumentException("Traversal steps must be JSON objects");
+            }
+
+            JsonObject stepJson = (JsonObject) stepObject;
+            String step = stepJson.getString("step");
+            if (step == null) {
+                throw new IllegalArgumentException("Traversal step name must be specified");
+            }
+
+            switch (step) {
+                case "out":
+                    pipeline.out(getLabels(stepJson));
+                    break;
+                case "in":
+                    pipeline.in(getLabels(stepJson));
+                    break;
+                case "both":
+                    pipeline.both(getLabels(stepJson));
+                    break;
+                case "outE":
+                    pipeline.outE(getLabels(stepJson));
+                    break;
+                case "inE":
+                    pipeline.inE(getLabels(stepJson));
+                    break;
+                case "bothE":
+                    pipeline.bothE(getLabels(stepJson));
+                    break;
+                case "outV":
+                    pipeline.outV();
+                    break;
+                case "inV":
+                    pipeline.inV();
+                    break;
+                case "bothV":
+                    pipeline.bothV();
+                    break;
+                case "has":
+                    pipeline.filter(new PredicateFunction(
+                            PropertyPredicate.listFromJson(stepJson)));
+                    break;
+                case "hasNot":
+                    pipeline.filter(new PredicateFunction(
+                            PropertyPredicate.listFromJson(stepJson.copy().putBoolean("has", false))));
+                    break;
+                case "filter":
+                    pipeline.filter(new PredicateFunction(
+                            PropertyPredicate.listFromJson(stepJson.getField("predicates"))));
+                    break;
+                case "range":
+                    pipeline.range(stepJson.getInteger("low", 0), stepJson.getInteger("high", -1));
+                    break;
+                case "dedup":
+                    pipeline.dedup();
+                    break;
+                case "simplePath":
+                    pipeline.simplePath();
+                    break;
+                case "as":
+                    pipeline.as(getMandatoryName(stepJson));
+                    break;
+                case "back":
+                    pipeline.back(getMandatoryName(stepJson));
+                    break;
+                case "loop":
+                    addLoop(pipeline, stepJson);
+                    break;
+                case "path":
+                    pipeline.path();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unsupported traversal step " + step);
+            }
+        }
+
+        return pipeline;
+    }
+
+    /**
+     * Add a loop step that loops back to either a numbered step ('back') or a named step
+     * ('name'). The loop continues while the number of loops is less than 'maxLoops' (if
+     * specified) and the current object satisfies the 'while' predicates (if specified).
+     * Objects are emitted on every iteration when 'emit' is true or when they satisfy the
+     * 'emit' predicates.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void addLoop(GremlinPipeline pipeline, JsonObject stepJson) {
+        final int maxLoops = stepJson.getInteger("maxLoops", 0);
+        final List<PropertyPredicate> whilePredicates =
+                PropertyPredicate.listFromJson(stepJson.getField("while"));
+
+        if (maxLoops <= 0 && whilePredicates.isEmpty()) {
+            throw new IllegalArgumentException("Loop step requires either maxLoops or while predicates");
+        }
+
+        PipeFunction<LoopBundle<Element>, Boolean> whileFunction =
+                new PipeFunction<LoopBundle<Element>, Boolean>() {
+
+            @Override
+            public Boolean compute(LoopBundle<Element> bundle) {
+                if (maxLoops > 0 && bundle.getLoops() >= maxLoops) {
+                    return false;
+                }
+                return PropertyPredicate.evaluateAll(whilePredicates, bundle.getObject());
+            }
+        };
+
+        PipeFunction<LoopBundle<Element>, Boolean> emitFunction = null;
+        Object emit = stepJson.getField("emit");
+        if (emit instanceof Boolean) {
+            if ((Boolean) emit) {
+                emitFunction = new PipeFunction<LoopBundle<Element>, Boolean>() {
+
+                    @Override
+                    public Boolean compute(LoopBundle<Element> bundle) {
+                        return true;
+                    }
+                };
+            }
+        } else if (emit != null) {
+            final List<PropertyPredicate> emitPredicates = PropertyPredicate.listFromJson(emit);
+            emitFunction = new PipeFunction<LoopBundle<Element>, Boolean>() {
+
+                @Override
+                public Boolean compute(LoopBundle<Element> bundle) {
+                    return PropertyPredicate.evaluateAll(emitPredicates, bundle.getObject());
+                }
+            };
+        }
+
+        String name = stepJson.getString("name");
+        if (name != null) {
+            if (emitFunction == null) {
+                pipeline.loop(name, whileFunction);
+            } else {
+                pipeline.loop(name, whileFunction, emitFunction);
+            }
+        } else {
+            int back = stepJson.getInteger("back", 0);
+            if (back <= 0) {
+                throw new IllegalArgumentException("Loop step requires either a name or a positive back value");
+            }
+            if (emitFunction == null) {
+                pipeline.loop(back, whileFunction);
+            } else {
+                pipeline.loop(back, whileFunction, emitFunction);
+            }
+        }
+    }
+
+    private String[] getLabels(JsonObject stepJson) {
+        JsonArray labels = stepJson.getArray("labels");
+        if (labels == null) {
+            return new String[0];
+        }
+
+        String[] result = new String[labels.size()];
+        for (int i = 0; i < labels.size(); i++) {
+            result[i] = labels.get(i);
+        }
+        return result;
+    }
+
+    private String getMandatoryName(JsonObject stepJson) {
+        String name = stepJson.getString("name");
+        if (name == null) {
+            throw new IllegalArgumentException(
+                    "Traversal step " + stepJson.getString("step") + " requires a name");
+        }
+        return name;
+    }
+
+    /**
+     * Filter function that only passes elements that satisfy all of its predicates.
+     */
+    private static class PredicateFunction implements PipeFunction<Element, Boolean> {
+
+        private final List<PropertyPredicate> predicates;
+
+        PredicateFunction(List<PropertyPredicate> predicates) {
+            if (predicates.isEmpty()) {
+                throw new IllegalArgumentException("Filter step requires at least one predicate");
+            }
+            this.predicates = predicates;
+        }
+
+        @Override
+        public Boolean compute(Element element) {
+            return PropertyPredicate.evaluateAll(predicates, element);
+        }
+    }
+}
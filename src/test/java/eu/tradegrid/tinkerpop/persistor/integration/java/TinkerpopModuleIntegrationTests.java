@@ -17,7 +17,9 @@
 package eu.tradegrid.tinkerpop.persistor.integration.java;
 
 import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertFalse;
 import static org.vertx.testtools.VertxAssert.assertNotNull;
+import static org.vertx.testtools.VertxAssert.assertNull;
 import static org.vertx.testtools.VertxAssert.assertTrue;
 import static org.vertx.testtools.VertxAssert.fail;
 import static org.vertx.testtools.VertxAssert.testComplete;
@@ -25,9 +27,16 @@ import static org.vertx.testtools.VertxAssert.testComplete;
 import io.vertx.rxcore.java.eventbus.RxEventBus;
 import io.vertx.rxcore.java.eventbus.RxMessage;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Rule;
 import org.junit.Test;
@@ -40,6 +49,9 @@ import org.vertx.java.core.json.JsonArray;
 import org.vertx.java.core.json.JsonObject;
 import org.vertx.testtools.TestVerticle;
 
+import eu.tradegrid.tinkerpop.persistor.TinkerpopPersistor;
+import eu.tradegrid.tinkerpop.persistor.load.SharedTinkerGraph;
+
 import rx.Observable;
 import rx.util.functions.Action1;
 import rx.util.functions.Func1;
@@ -249,6 +261,34 @@ public class TinkerpopModuleIntegrationTests extends TestVerticle {
         JsonObject message = new JsonObject().putString("action", "addGraph")
                 .putObject("graph", graphToAdd);
         
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                
+                assertEquals("ok", reply.getString("status"));
+                assertNull("Graph must only be returned on request", reply.getObject("graph"));
+                
+                // Id mapping is only returned if ID's were generated by the db
+                if (reply.getObject("ids") != null) {
+                    assertEquals(12, reply.getObject("ids").getObject("vertices").size());
+                    assertEquals(19, reply.getObject("ids").getObject("edges").size());
+                    assertNotNull(reply.getObject("ids").getObject("vertices").getValue("1"));
+                }
+
+                testComplete();
+            }            
+        });
+    }
+    
+    @Test
+    public void testAddGraphReturningGraph() {
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd)
+                .putBoolean("returnGraph", true);
+        
         vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
 
             @Override
@@ -282,53 +322,88 @@ public class TinkerpopModuleIntegrationTests extends TestVerticle {
     }
     
     @Test
-    public void testQueryGraph() {
-        final String query = "_().in('HAS_CHILD_CONTENT').loop(1){it.loops < 3}{it.object.name == 'Root folder'}.path";
-        
-        // Load sample GraphSON message derived from Neo4J documentation.
-        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
-        JsonObject message = new JsonObject().putString("action", "addGraph")
-                .putObject("graph", graphToAdd);
+    public void testUpdateVertex() {
+        JsonObject message = new JsonObject().putString("action", "addVertex")
+                .putArray("vertices", new JsonArray().addObject(new JsonObject()
+                        .putString("name", "Temp").putBoolean("draft", true)));
         
         vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
 
             @Override
             public void handle(Message<JsonObject> message) {
-                JsonObject reply = message.body();
-                assertEquals("ok", reply.getString("status"));
+                assertEquals("ok", message.body().getString("status"));
+                final Object id = message.body().getValue("_id");
                 
-                final JsonObject getStartVertex = new JsonObject()
-                        .putString("action", "getVertices")
-                        .putString("key", "name")
-                        .putString("value", "User1 Home");
+                JsonObject updateMessage = new JsonObject().putString("action", "updateVertex")
+                        .putArray("updates", new JsonArray()
+                                .addObject(new JsonObject().putValue("_id", id)
+                                        .putObject("set", new JsonObject().putString("name", "Temp"))
+                                        .putArray("remove", new JsonArray().addString("draft")))
+                                .addObject(new JsonObject().putValue("_id", id)
+                                        .putObject("set", new JsonObject().putString("name", "Temp"))));
                 
-                vertx.eventBus().send("test.persistor", getStartVertex, new Handler<Message<JsonObject>>() {
+                vertx.eventBus().send("test.persistor", updateMessage, new Handler<Message<JsonObject>>() {
 
                     @Override
                     public void handle(Message<JsonObject> message) {
-                        JsonObject reply = message.body();
-                        assertEquals("ok", reply.getString("status"));
-                        assertNotNull("GraphSON: 'graph' object missing", message.body().getObject("graph"));
-                        assertNotNull("GraphSON: 'vertices' array missing", message.body().getObject("graph").getArray("vertices"));
-                        assertEquals(1, message.body().getObject("graph").getArray("vertices").size());
+                        assertEquals("ok", message.body().getString("status"));
                         
-                        final Object id = ((JsonObject) reply.getObject("graph").getArray("vertices").get(0)).getField("_id");
-                        final JsonObject queryRootFolder = new JsonObject()
-                                .putString("action", "query")
-                                .putString("query", query)
-                                .putValue("_id", id);
+                        // Only the removal of 'draft' changed the vertex.
+                        JsonArray ids = message.body().getArray("ids");
+                        assertEquals(1, ids.size());
+                        assertEquals(id.toString(), ids.get(0).toString());
                         
-                        vertx.eventBus().send("test.persistor", queryRootFolder, new Handler<Message<JsonObject>>() {
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testMemoryTier() {
+        deployPersistor(getMemoryTierConfig(), new Handler<Void>() {
+
+            @Override
+            public void handle(Void event) {
+                JsonObject message = new JsonObject().putString("action", "addVertex")
+                        .putArray("vertices", new JsonArray().addObject(new JsonObject()
+                                .putString("name", "Cached folder").putString("type", "folder")));
+                
+                vertx.eventBus().send("test.persistor.cached", message, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        
+                        // The committed vertex matches the vertex filter and is mirrored in memory.
+                        JsonObject getMessage = new JsonObject().putString("action", "getVertex")
+                                .putString("tier", "memory")
+                                .putValue("_id", message.body().getValue("_id"));
+                        
+                        vertx.eventBus().send("test.persistor.cached", getMessage, new Handler<Message<JsonObject>>() {
 
                             @Override
                             public void handle(Message<JsonObject> message) {
-                                JsonObject reply = message.body();
-                                assertEquals("ok", reply.getString("status"));
+                                assertEquals("ok", message.body().getString("status"));
                                 
-                                assertNotNull(reply.getArray("results"));
-                                assertEquals(3, reply.getArray("results").size());
+                                JsonArray vertices = message.body().getObject("graph").getArray("vertices");
+                                assertEquals(1, vertices.size());
+                                assertEquals("Cached folder", ((JsonObject) vertices.get(0)).getString("name"));
                                 
-                                testComplete();
+                                JsonObject metricsMessage = new JsonObject().putString("action", "getMetrics");
+                                
+                                vertx.eventBus().send("test.persistor.cached", metricsMessage, new Handler<Message<JsonObject>>() {
+
+                                    @Override
+                                    public void handle(Message<JsonObject> message) {
+                                        JsonObject memoryTier = message.body().getObject("memoryTier");
+                                        assertEquals(0L, memoryTier.getLong("syncErrors", -1L));
+                                        assertEquals(0L, memoryTier.getLong("reloads", -1L));
+                                        
+                                        testComplete();
+                                    }
+                                });
                             }
                         });
                     }
@@ -336,63 +411,177 @@ public class TinkerpopModuleIntegrationTests extends TestVerticle {
             }
         });
     }
-
+    
     @Test
-    public void testAddGetAndDropKeyIndex() {
+    public void testChangeCapture() {
+        deployPersistor(getChangeCaptureConfig(), new Handler<Void>() {
 
-        // Load sample GraphSON message derived from Neo4J documentation.
-        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
-        JsonObject message = new JsonObject().putString("action", "addGraph")
-                .putObject("graph", graphToAdd);
-        
-        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(Void event) {
+                vertx.eventBus().registerHandler("test.persistor.captured.changes", new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject event = (JsonObject) message.body().getArray("events").get(0);
+                        assertEquals("addVertex", event.getString("op"));
+                        assertEquals(1L, event.getLong("seq", 0L));
+                        assertEquals("Captured", event.getObject("set").getString("name"));
+                        
+                        testComplete();
+                    }
+                });
+                
+                JsonObject message = new JsonObject().putString("action", "addVertex")
+                        .putArray("vertices", new JsonArray().addObject(new JsonObject()
+                                .putString("name", "Captured")));
+                
+                vertx.eventBus().send("test.persistor.captured", message, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testClientQuotas() {
+        deployPersistor(getQuotasConfig(), new Handler<Void>() {
 
             @Override
-            public void handle(Message<JsonObject> message) {
-                JsonObject reply = message.body();
-                assertEquals("ok", reply.getString("status"));
+            public void handle(Void event) {
+                final JsonObject message = new JsonObject().putString("action", "countVertices")
+                        .putString("clientId", "limited");
+                
+                vertx.eventBus().send("test.persistor.limited", message, new Handler<Message<JsonObject>>() {
 
-                JsonObject createKeyIndex = new JsonObject()
-                        .putString("action", "createKeyIndex")
-                        .putString("key", "name")
-                        .putString("elementClass", "Vertex");
+                    @Override
+                    public void handle(Message<JsonObject> reply) {
+                        assertEquals("ok", reply.body().getString("status"));
+                        
+                        // The client may send one message per second, so the second one is rejected.
+                        vertx.eventBus().send("test.persistor.limited", message, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> reply) {
+                                assertEquals("error", reply.body().getString("status"));
+                                
+                                JsonObject usageMessage = new JsonObject().putString("action", "getClientUsage");
+                                
+                                vertx.eventBus().send("test.persistor.limited", usageMessage, new Handler<Message<JsonObject>>() {
+
+                                    @Override
+                                    public void handle(Message<JsonObject> reply) {
+                                        assertEquals("ok", reply.body().getString("status"));
+                                        
+                                        JsonObject usage = reply.body().getObject("clients").getObject("limited");
+                                        assertEquals(1L, usage.getLong("completed", 0L));
+                                        assertEquals(1L, usage.getLong("rateLimited", 0L));
+                                        
+                                        testComplete();
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testCompression() {
+        deployPersistor(getCompressionConfig(), new Handler<Void>() {
+
+            @Override
+            public void handle(Void event) {
+                JsonObject vertices = new JsonObject().putArray("vertices", new JsonArray().addObject(
+                        new JsonObject().putString("name", "Compressed").putString("type", "compressed")
+                                .putString("description", "compressed compressed compressed compressed compressed")));
                 
-                vertx.eventBus().send("test.persistor", createKeyIndex, new Handler<Message<JsonObject>>() {
+                JsonObject message = new JsonObject().putString("action", "addVertex")
+                        .putString("compressed", "deflate")
+                        .putBinary("payload", deflate(vertices.encode()));
+                
+                vertx.eventBus().send("test.persistor.compressed", message, new Handler<Message<JsonObject>>() {
 
                     @Override
                     public void handle(Message<JsonObject> message) {
-                        JsonObject reply = message.body();
-                        assertEquals("ok", reply.getString("status"));
+                        assertEquals("ok", message.body().getString("status"));
                         
-                        JsonObject getIndexedKeys = new JsonObject()
-                                .putString("action", "getIndexedKeys")
-                                .putString("elementClass", "Vertex");
+                        JsonObject getMessage = new JsonObject().putString("action", "getVertices")
+                                .putString("key", "type")
+                                .putString("value", "compressed")
+                                .putBoolean("compress", true);
                         
-                        vertx.eventBus().send("test.persistor", getIndexedKeys, new Handler<Message<JsonObject>>() {
+                        vertx.eventBus().send("test.persistor.compressed", getMessage, new Handler<Message<JsonObject>>() {
 
                             @Override
                             public void handle(Message<JsonObject> message) {
-                                JsonObject reply = message.body();
-                                assertEquals("ok", reply.getString("status"));
-                                assertNotNull(reply.getArray("keys"));
-                                assertEquals(1, reply.getArray("keys").size());
-                                assertEquals("name", reply.getArray("keys").get(0));
+                                assertEquals("ok", message.body().getString("status"));
+                                assertEquals("deflate", message.body().getString("compressed"));
                                 
-                                JsonObject dropKeyIndex = new JsonObject()
-                                        .putString("action", "dropKeyIndex")
-                                        .putString("key", "name")
-                                        .putString("elementClass", "Vertex");
+                                JsonObject reply = new JsonObject(inflate(message.body().getBinary("payload")));
+                                JsonArray vertices = reply.getObject("graph").getArray("vertices");
+                                assertEquals(1, vertices.size());
+                                assertEquals("Compressed", ((JsonObject) vertices.get(0)).getString("name"));
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testNamedGraph() {
+        deployPersistor(getNamedGraphsConfig(), new Handler<Void>() {
 
-                                vertx.eventBus().send("test.persistor", dropKeyIndex, new Handler<Message<JsonObject>>() {
+            @Override
+            public void handle(Void event) {
+                JsonObject message = new JsonObject().putString("action", "addVertex")
+                        .putString("graphName", "tenant")
+                        .putArray("vertices", new JsonArray().addObject(new JsonObject()
+                                .putString("name", "Tenant vertex")));
+                
+                vertx.eventBus().send("test.persistor.named", message, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        
+                        // The vertex is only added to the named graph.
+                        JsonObject getMessage = new JsonObject().putString("action", "getVertices")
+                                .putString("key", "name")
+                                .putString("value", "Tenant vertex");
+                        
+                        vertx.eventBus().send("test.persistor.named", getMessage, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                assertEquals("ok", message.body().getString("status"));
+                                assertEquals(0, message.body().getObject("graph").getArray("vertices").size());
+                                
+                                JsonObject metricsMessage = new JsonObject().putString("action", "getMetrics");
+                                
+                                vertx.eventBus().send("test.persistor.named", metricsMessage, new Handler<Message<JsonObject>>() {
 
                                     @Override
                                     public void handle(Message<JsonObject> message) {
-                                        JsonObject reply = message.body();
-                                        assertEquals("ok", reply.getString("status"));
+                                        assertEquals("ok", message.body().getString("status"));
+                                        
+                                        JsonObject tenant = message.body().getObject("graphs").getObject("tenant");
+                                        assertEquals(1L, tenant.getLong("requests", 0L));
+                                        assertEquals(0L, tenant.getLong("failures", 0L));
+                                        
                                         testComplete();
                                     }
                                 });
-                            }                            
+                            }
                         });
                     }
                 });
@@ -400,38 +589,1254 @@ public class TinkerpopModuleIntegrationTests extends TestVerticle {
         });
     }
     
-    private JsonObject getNeo4jConfig() {
-        JsonObject neo4jConfig = new JsonObject();
-        neo4jConfig.putString(
-                "blueprints.graph", "com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph");
-        neo4jConfig.putString("blueprints.neo4j.directory", tempFolder.getRoot().getPath());
+    @Test
+    public void testGroupCommit() {
+        deployPersistor(getGroupCommitConfig(), new Handler<Void>() {
 
-        JsonObject config = new JsonObject();
-        config.putString("address", "test.persistor");
-        config.putObject("tinkerpopConfig", neo4jConfig);
-        
-        return config;
+            @Override
+            public void handle(Void event) {
+                JsonObject[] writes = new JsonObject[] {
+                    getAddVertexMessage(new JsonObject().putString("name", "First")),
+                    
+                    // The 'id' property key is reserved, so this write fails while the batch is applied.
+                    getAddVertexMessage(new JsonObject().putString("id", "reserved")),
+                    getAddVertexMessage(new JsonObject().putString("name", "Third"))
+                };
+                
+                sendAll("test.persistor.batched", writes, new Handler<JsonObject[]>() {
+
+                    @Override
+                    public void handle(JsonObject[] replies) {
+                        assertEquals("ok", replies[0].getString("status"));
+                        assertEquals("error", replies[1].getString("status"));
+                        assertEquals("ok", replies[2].getString("status"));
+                        
+                        JsonObject[] checks = new JsonObject[] {
+                            new JsonObject().putString("action", "countVertices"),
+                            new JsonObject().putString("action", "getMetrics")
+                        };
+                        
+                        sendAll("test.persistor.batched", checks, new Handler<JsonObject[]>() {
+
+                            @Override
+                            public void handle(JsonObject[] replies) {
+                                assertEquals(2, replies[0].getNumber("count").intValue());
+                                
+                                // The writes were applied in one batch, which was retried write by write.
+                                JsonObject groupCommit = replies[1].getObject("groupCommit");
+                                assertEquals(1L, groupCommit.getLong("batches", 0L));
+                                assertEquals(3L, groupCommit.getLong("writes", 0L));
+                                assertEquals(1L, groupCommit.getLong("retriedBatches", 0L));
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
     }
     
-    private JsonObject getOrientDbConfig() {
-        JsonObject orientDbConfig = new JsonObject();
-        orientDbConfig.putString(
-                "blueprints.graph", "com.tinkerpop.blueprints.impls.orient.OrientGraph");
-        orientDbConfig.putString("blueprints.orientdb.url", "plocal:" + tempFolder.getRoot().getPath());
-        
-        // TODO: Add your own user here in <orientdb-location>/config/orientdb-server-config.xml
-        orientDbConfig.putString("blueprints.orientdb.username", "admin");
-        orientDbConfig.putString("blueprints.orientdb.password", "admin");
+    @Test
+    public void testSharding() {
+        deployPersistor(getShardingConfig(), new Handler<Void>() {
 
-        // New configuration options (available in v1.6.0-SNAPSHOT).
-        orientDbConfig.putBoolean("blueprints.orientdb.saveOriginalIds", true);
-        orientDbConfig.putBoolean("blueprints.orientdb.lightweightEdges", true);
-        
-        JsonObject config = new JsonObject();
-        config.putString("address", "test.persistor");
-        config.putObject("tinkerpopConfig", orientDbConfig);
+            @Override
+            public void handle(Void event) {
+                
+                // The consistent hash ring maps tenant 'acme' to shard1 and 'globex' to shard2.
+                JsonObject[] writes = new JsonObject[] {
+                    getAddVertexMessage(getTenantVertex("acme:1", "acme")),
+                    getAddVertexMessage(getTenantVertex("acme:2", "acme")),
+                    getAddVertexMessage(getTenantVertex("globex:1", "globex")),
+                    getAddVertexMessage(getTenantVertex("globex:2", "globex")),
+                    getAddVertexMessage(getTenantVertex("globex:3", "globex"))
+                };
+                
+                sendAll("test.persistor.sharded", writes, new Handler<JsonObject[]>() {
+
+                    @Override
+                    public void handle(JsonObject[] replies) {
+                        for (JsonObject reply : replies) {
+                            assertEquals("ok", reply.getString("status"));
+                        }
+                        
+                        JsonObject[] reads = new JsonObject[] {
+                            new JsonObject().putString("action", "countVertices"),
+                            new JsonObject().putString("action", "countVertices").putString("shard", "shard1"),
+                            new JsonObject().putString("action", "countVertices").putString("tenant", "globex"),
+                            new JsonObject().putString("action", "getVertex").putString("_id", "acme:2"),
+                            new JsonObject().putString("action", "getVertex").putString("_id", "acme:2")
+                                    .putString("shard", "shard2"),
+                            new JsonObject().putString("action", "getVertices"),
+                            new JsonObject().putString("action", "getVertices").putObject("filter", new JsonObject()
+                                    .putArray("predicates", new JsonArray().addObject(new JsonObject()
+                                            .putString("key", "type").putString("value", "company")))
+                                    .putNumber("limit", 4))
+                        };
+                        
+                        sendAll("test.persistor.sharded", reads, new Handler<JsonObject[]>() {
+
+                            @Override
+                            public void handle(JsonObject[] replies) {
+                                
+                                // Broadcast counts are added up over the shards.
+                                assertEquals(5, replies[0].getNumber("count").intValue());
+                                assertEquals(2, replies[1].getNumber("count").intValue());
+                                assertEquals(3, replies[2].getNumber("count").intValue());
+                                
+                                // The Id prefix selects the shard of the vertex.
+                                assertEquals("ok", replies[3].getString("status"));
+                                assertEquals("error", replies[4].getString("status"));
+                                
+                                // Broadcast lists are concatenated in the order of the shards, up to the limit.
+                                JsonArray vertices = replies[5].getObject("graph").getArray("vertices");
+                                assertEquals(5, vertices.size());
+                                assertEquals("acme", ((JsonObject) vertices.get(0)).getString("tenant"));
+                                assertEquals("globex", ((JsonObject) vertices.get(4)).getString("tenant"));
+                                assertEquals(4, replies[6].getObject("graph").getArray("vertices").size());
+                                
+                                testShardedKeyIndex();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Create a key index on all shards, and check that every shard reports it.
+     */
+    private void testShardedKeyIndex() {
+        JsonObject createKeyIndex = new JsonObject()
+                .putString("action", "createKeyIndex")
+                .putString("key", "name")
+                .putString("elementClass", "Vertex");
         
-        return config;        
+        vertx.eventBus().send("test.persistor.sharded", createKeyIndex, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                JsonObject getIndexedKeys = new JsonObject()
+                        .putString("action", "getIndexedKeys")
+                        .putString("elementClass", "Vertex");
+                
+                vertx.eventBus().send("test.persistor.sharded", getIndexedKeys, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        
+                        JsonObject shards = message.body().getObject("shards");
+                        assertTrue(shards.getObject("shard1").getArray("keys").contains("name"));
+                        assertTrue(shards.getObject("shard2").getArray("keys").contains("name"));
+                        
+                        testShardedClientUsage();
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Check that the messages to the individual shards of a broadcast are not admitted again.
+     */
+    private void testShardedClientUsage() {
+        JsonObject usageMessage = new JsonObject().putString("action", "getClientUsage")
+                .putString("shard", "shard1");
+        
+        vertx.eventBus().send("test.persistor.sharded", usageMessage, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                // 14 messages of the sharding test and this one.
+                JsonObject usage = message.body().getObject("clients").getObject("anonymous");
+                assertEquals(15L, usage.getLong("admitted", 0L));
+                assertEquals(14L, usage.getLong("completed", 0L));
+                
+                testComplete();
+            }
+        });
+    }
+    
+    @Test
+    public void testUpsertVertex() {
+        JsonObject message = new JsonObject().putString("action", "upsertVertex")
+                .putString("key", "externalId")
+                .putArray("vertices", new JsonArray()
+                        .addObject(new JsonObject().putString("externalId", "A-1").putString("name", "first"))
+                        .addObject(new JsonObject().putString("externalId", "A-1").putString("name", "second")));
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                assertEquals("ok", reply.getString("status"));
+                
+                JsonArray results = reply.getArray("results");
+                assertEquals(2, results.size());
+                assertEquals(true, ((JsonObject) results.get(0)).getBoolean("created"));
+                assertEquals(false, ((JsonObject) results.get(1)).getBoolean("created"));
+                assertEquals(((JsonObject) results.get(0)).getValue("_id").toString(), 
+                        ((JsonObject) results.get(1)).getValue("_id").toString());
+                
+                JsonObject getMessage = new JsonObject().putString("action", "getVertices")
+                        .putString("key", "externalId")
+                        .putString("value", "A-1");
+                
+                vertx.eventBus().send("test.persistor", getMessage, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonArray vertices = message.body().getObject("graph").getArray("vertices");
+                        assertEquals(1, vertices.size());
+                        assertEquals("second", ((JsonObject) vertices.get(0)).getString("name"));
+                        
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testAddEdgesByReference() {
+        JsonObject message = new JsonObject().putString("action", "upsertVertex")
+                .putString("key", "externalId")
+                .putArray("vertices", new JsonArray()
+                        .addObject(new JsonObject().putString("externalId", "P-1"))
+                        .addObject(new JsonObject().putString("externalId", "C-1"))
+                        .addObject(new JsonObject().putString("externalId", "C-2")));
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                JsonObject parent = new JsonObject().putString("key", "externalId").putString("value", "P-1");
+                JsonObject addMessage = new JsonObject().putString("action", "addEdges")
+                        .putArray("edges", new JsonArray()
+                                .addObject(new JsonObject().putObject("_outV", parent)
+                                        .putObject("_inV", new JsonObject().putString("key", "externalId").putString("value", "C-1"))
+                                        .putString("_label", "HAS_CHILD"))
+                                .addObject(new JsonObject().putObject("_outV", parent)
+                                        .putObject("_inV", new JsonObject().putString("key", "externalId").putString("value", "C-2"))
+                                        .putString("_label", "HAS_CHILD")));
+                
+                vertx.eventBus().send("test.persistor", addMessage, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        assertEquals(2, message.body().getArray("ids").size());
+                        
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testRemoveVerticesByFilter() {
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                JsonObject removeMessage = new JsonObject().putString("action", "removeVertices")
+                        .putObject("filter", new JsonObject().putArray("predicates", new JsonArray()
+                                .addObject(new JsonObject().putString("key", "name").putBoolean("has", true))))
+                        .putNumber("commitSize", 5);
+                
+                vertx.eventBus().send("test.persistor", removeMessage, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        assertEquals(12, message.body().getNumber("deleted").intValue());
+                        
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testImportGraph() {
+        deployPersistor(getFilesConfig(), new Handler<Void>() {
+
+            @Override
+            public void handle(Void event) {
+                JsonObject message = new JsonObject().putString("action", "importGraph")
+                        .putString("path", "neo4jAclGraphExample.json")
+                        .putNumber("commitSize", 5);
+                
+                vertx.eventBus().send("test.persistor.files", message, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        assertEquals("COMPLETED", reply.getString("jobStatus"));
+                        assertEquals(12, reply.getNumber("vertices").intValue());
+                        assertEquals(19, reply.getNumber("edges").intValue());
+                        
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testImportGraphOutsideImportDirectory() {
+        deployPersistor(getFilesConfig(), new Handler<Void>() {
+
+            @Override
+            public void handle(Void event) {
+                String path = new File(tempFolder.getRoot(), "graph.json").getPath();
+                JsonObject message = new JsonObject().putString("action", "importGraph")
+                        .putString("path", path);
+                
+                vertx.eventBus().send("test.persistor.files", message, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("error", message.body().getString("status"));
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testQueryGraph() {
+        final String query = "_().in('HAS_CHILD_CONTENT').loop(1){it.loops < 3}{it.object.name == 'Root folder'}.path";
+        
+        // Load sample GraphSON message derived from Neo4J documentation.
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                assertEquals("ok", reply.getString("status"));
+                
+                final JsonObject getStartVertex = new JsonObject()
+                        .putString("action", "getVertices")
+                        .putString("key", "name")
+                        .putString("value", "User1 Home");
+                
+                vertx.eventBus().send("test.persistor", getStartVertex, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        assertNotNull("GraphSON: 'graph' object missing", message.body().getObject("graph"));
+                        assertNotNull("GraphSON: 'vertices' array missing", message.body().getObject("graph").getArray("vertices"));
+                        assertEquals(1, message.body().getObject("graph").getArray("vertices").size());
+                        
+                        final Object id = ((JsonObject) reply.getObject("graph").getArray("vertices").get(0)).getField("_id");
+                        final JsonObject queryRootFolder = new JsonObject()
+                                .putString("action", "query")
+                                .putString("query", query)
+                                .putValue("_id", id);
+                        
+                        vertx.eventBus().send("test.persistor", queryRootFolder, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                JsonObject reply = message.body();
+                                assertEquals("ok", reply.getString("status"));
+                                
+                                assertNotNull(reply.getArray("results"));
+                                assertEquals(3, reply.getArray("results").size());
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testPathQueryGraph() {
+        final String query = "_().in('HAS_CHILD_CONTENT').loop(1){it.loops < 3}{it.object.name == 'Root folder'}.path";
+        
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                final JsonObject getStartVertex = new JsonObject()
+                        .putString("action", "getVertices")
+                        .putString("key", "name")
+                        .putString("value", "User1 Home");
+                
+                vertx.eventBus().send("test.persistor", getStartVertex, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        
+                        final Object id = ((JsonObject) reply.getObject("graph").getArray("vertices").get(0)).getField("_id");
+                        final JsonObject queryRootFolder = new JsonObject()
+                                .putString("action", "query")
+                                .putString("query", query)
+                                .putString("resultMode", "paths")
+                                .putValue("_id", id);
+                        
+                        vertx.eventBus().send("test.persistor", queryRootFolder, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                JsonObject reply = message.body();
+                                assertEquals("ok", reply.getString("status"));
+                                
+                                // One path of three vertices, each of which is serialized once.
+                                assertEquals(1, reply.getArray("paths").size());
+                                JsonArray path = reply.getArray("paths").get(0);
+                                assertEquals(3, path.size());
+                                assertEquals(id, ((JsonObject) path.get(0)).getValue("v"));
+                                assertEquals(3, reply.getObject("vertices").size());
+                                assertEquals("Root folder", reply.getObject("vertices")
+                                        .getObject(String.valueOf(((JsonObject) path.get(2)).getValue("v")))
+                                        .getString("name"));
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testPathQueryGraphWithEdges() {
+        
+        // Neo4J numbers its vertices and edges separately, so a vertex and an edge may share an Id.
+        deployPersistor(getFeatureConfig("paths"), new Handler<Void>() {
+
+            @Override
+            public void handle(Void event) {
+                JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+                JsonObject message = new JsonObject().putString("action", "addGraph")
+                        .putObject("graph", graphToAdd);
+                
+                vertx.eventBus().send("test.persistor.paths", message, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        
+                        final Object id = message.body().getObject("ids").getObject("vertices").getValue("11");
+                        final JsonObject queryParent = new JsonObject()
+                                .putString("action", "query")
+                                .putString("query", "_().inE('HAS_CHILD_CONTENT').outV.path")
+                                .putString("resultMode", "paths")
+                                .putValue("_id", id);
+                        
+                        vertx.eventBus().send("test.persistor.paths", queryParent, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                JsonObject reply = message.body();
+                                assertEquals("ok", reply.getString("status"));
+                                
+                                // The edge step refers to the edges, the vertex steps to the vertices.
+                                JsonArray path = reply.getArray("paths").get(0);
+                                assertEquals(3, path.size());
+                                assertEquals(id, ((JsonObject) path.get(0)).getValue("v"));
+                                
+                                Object edgeId = ((JsonObject) path.get(1)).getValue("e");
+                                assertNotNull(edgeId);
+                                assertEquals("HAS_CHILD_CONTENT", reply.getObject("edges")
+                                        .getObject(String.valueOf(edgeId)).getString("_label"));
+                                
+                                Object parentId = ((JsonObject) path.get(2)).getValue("v");
+                                assertEquals("Home", reply.getObject("vertices")
+                                        .getObject(String.valueOf(parentId)).getString("name"));
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testGraphSearch() {
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                final JsonObject getStartVertex = new JsonObject()
+                        .putString("action", "getVertices")
+                        .putString("key", "name")
+                        .putString("value", "User1 Home");
+                
+                vertx.eventBus().send("test.persistor", getStartVertex, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        
+                        final Object id = ((JsonObject) message.body().getObject("graph").getArray("vertices").get(0)).getField("_id");
+                        final JsonObject findRootFolder = new JsonObject()
+                                .putString("action", "bfs")
+                                .putValue("_id", id)
+                                .putString("direction", "IN")
+                                .putArray("labels", new JsonArray().addString("HAS_CHILD_CONTENT"))
+                                .putObject("until", new JsonObject()
+                                        .putString("key", "name").putString("value", "Root folder"));
+                        
+                        vertx.eventBus().send("test.persistor", findRootFolder, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                assertEquals("ok", message.body().getString("status"));
+                                assertTrue(message.body().getBoolean("found"));
+                                
+                                JsonArray path = message.body().getArray("path");
+                                assertEquals(3, path.size());
+                                
+                                // The search from both ends finds the same path.
+                                final JsonObject shortestPath = new JsonObject()
+                                        .putString("action", "shortestPath")
+                                        .putValue("from", id)
+                                        .putValue("to", path.get(2))
+                                        .putString("direction", "IN")
+                                        .putString("returns", "vertices");
+                                
+                                vertx.eventBus().send("test.persistor", shortestPath, new Handler<Message<JsonObject>>() {
+
+                                    @Override
+                                    public void handle(Message<JsonObject> message) {
+                                        assertEquals("ok", message.body().getString("status"));
+                                        assertTrue(message.body().getBoolean("found"));
+                                        assertEquals(3, message.body().getArray("path").size());
+                                        
+                                        JsonArray vertices = message.body().getObject("graph").getArray("vertices");
+                                        assertEquals("Home", ((JsonObject) vertices.get(1)).getString("name"));
+                                        
+                                        testComplete();
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testExtractSubgraph() {
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                final JsonObject getHome = new JsonObject()
+                        .putString("action", "getVertices")
+                        .putString("key", "name")
+                        .putString("value", "Home");
+                
+                vertx.eventBus().send("test.persistor", getHome, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        
+                        Object id = ((JsonObject) message.body().getObject("graph").getArray("vertices").get(0)).getField("_id");
+                        JsonObject extractSubgraph = new JsonObject()
+                                .putString("action", "extractSubgraph")
+                                .putValue("_id", id)
+                                .putString("direction", "OUT")
+                                .putArray("labels", new JsonArray().addString("HAS_CHILD_CONTENT"));
+                        
+                        vertx.eventBus().send("test.persistor", extractSubgraph, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                assertEquals("ok", message.body().getString("status"));
+                                assertFalse(message.body().getBoolean("truncated"));
+                                
+                                // Home, User1 Home and the edge between them.
+                                JsonObject graph = message.body().getObject("graph");
+                                assertEquals(2, graph.getArray("vertices").size());
+                                assertEquals(1, graph.getArray("edges").size());
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testTraversalQueryGraph() {
+        final JsonArray traversal = new JsonArray()
+                .addObject(new JsonObject()
+                        .putString("step", "in")
+                        .putArray("labels", new JsonArray().addString("HAS_CHILD_CONTENT")))
+                .addObject(new JsonObject()
+                        .putString("step", "loop")
+                        .putNumber("back", 1)
+                        .putNumber("maxLoops", 3)
+                        .putObject("emit", new JsonObject()
+                                .putString("key", "name")
+                                .putString("value", "Root folder")))
+                .addObject(new JsonObject()
+                        .putString("step", "path"));
+        
+        // Load sample GraphSON message derived from Neo4J documentation.
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                assertEquals("ok", reply.getString("status"));
+                
+                final JsonObject getStartVertex = new JsonObject()
+                        .putString("action", "getVertices")
+                        .putString("key", "name")
+                        .putString("value", "User1 Home");
+                
+                vertx.eventBus().send("test.persistor", getStartVertex, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        
+                        final Object id = ((JsonObject) reply.getObject("graph").getArray("vertices").get(0)).getField("_id");
+                        final JsonObject traverseRootFolder = new JsonObject()
+                                .putString("action", "query")
+                                .putArray("traversal", traversal)
+                                .putValue("_id", id);
+                        
+                        vertx.eventBus().send("test.persistor", traverseRootFolder, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                JsonObject reply = message.body();
+                                assertEquals("ok", reply.getString("status"));
+                                
+                                assertNotNull(reply.getArray("results"));
+                                assertEquals(3, reply.getArray("results").size());
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+
+    @Test
+    public void testGetEdgesWithFilter() {
+        
+        // Load sample GraphSON message derived from Neo4J documentation.
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                assertEquals("ok", reply.getString("status"));
+                
+                final JsonObject getEdges = new JsonObject()
+                        .putString("action", "getEdges")
+                        .putObject("filter", new JsonObject()
+                                .putArray("predicates", new JsonArray()
+                                        .addObject(new JsonObject()
+                                                .putString("key", "flags")
+                                                .putString("compare", "in")
+                                                .putArray("value", new JsonArray()
+                                                        .addString("+W")
+                                                        .addString("+RW"))))
+                                .putNumber("limit", 2));
+                
+                vertx.eventBus().send("test.persistor", getEdges, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        assertNotNull("GraphSON: 'edges' array missing", reply.getObject("graph").getArray("edges"));
+                        assertEquals(2, reply.getObject("graph").getArray("edges").size());
+                        
+                        JsonObject edge = reply.getObject("graph").getArray("edges").get(0);
+                        assertTrue("+W".equals(edge.getString("flags")) || "+RW".equals(edge.getString("flags")));
+                        
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testGetNeighbors() {
+        
+        // Load sample GraphSON message derived from Neo4J documentation.
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                assertEquals("ok", reply.getString("status"));
+                
+                final JsonObject getRootFolder = new JsonObject()
+                        .putString("action", "getVertices")
+                        .putString("key", "name")
+                        .putString("value", "Root folder");
+                
+                vertx.eventBus().send("test.persistor", getRootFolder, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        
+                        final Object id = ((JsonObject) reply.getObject("graph").getArray("vertices").get(0)).getField("_id");
+                        final JsonObject getNeighbors = new JsonObject()
+                                .putString("action", "getNeighbors")
+                                .putValue("_id", id)
+                                .putString("direction", "OUT")
+                                .putArray("labels", new JsonArray().addString("HAS_CHILD_CONTENT"));
+                        
+                        vertx.eventBus().send("test.persistor", getNeighbors, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                JsonObject reply = message.body();
+                                assertEquals("ok", reply.getString("status"));
+                                assertNotNull("GraphSON: 'vertices' array missing", reply.getObject("graph").getArray("vertices"));
+                                assertEquals(2, reply.getObject("graph").getArray("vertices").size());
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testCountEdges() {
+        
+        // Load sample GraphSON message derived from Neo4J documentation.
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                assertEquals("ok", reply.getString("status"));
+                
+                final JsonObject countEdges = new JsonObject()
+                        .putString("action", "countEdges")
+                        .putString("key", "flags")
+                        .putString("value", "+W");
+                
+                vertx.eventBus().send("test.persistor", countEdges, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        assertEquals(2, reply.getNumber("count").intValue());
+                        
+                        testComplete();
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testExportGraph() {
+        deployPersistor(getFilesConfig(), new Handler<Void>() {
+
+            @Override
+            public void handle(Void event) {
+                final File exportFile = new File(tempFolder.getRoot(), "exports/export.json.gz");
+                exportFile.getParentFile().mkdirs();
+                
+                // Load sample GraphSON message derived from Neo4J documentation.
+                JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+                JsonObject message = new JsonObject().putString("action", "addGraph")
+                        .putObject("graph", graphToAdd);
+                
+                vertx.eventBus().send("test.persistor.files", message, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        
+                        final JsonObject exportGraph = new JsonObject()
+                                .putString("action", "exportGraph")
+                                .putString("path", "export.json.gz")
+                                .putBoolean("gzip", true);
+                        
+                        vertx.eventBus().send("test.persistor.files", exportGraph, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                JsonObject reply = message.body();
+                                assertEquals("ok", reply.getString("status"));
+                                assertEquals("COMPLETED", reply.getString("jobStatus"));
+                                assertEquals(19, reply.getNumber("edges").intValue());
+                                assertTrue(exportFile.length() > 0);
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testExportGraphPaths() throws IOException {
+        deployPersistor(getFilesConfig(), new Handler<Void>() {
+
+            @Override
+            public void handle(Void event) {
+                final File existingFile = new File(tempFolder.getRoot(), "exports/existing.json");
+                existingFile.getParentFile().mkdirs();
+                FileUtils.writeStringToFile(existingFile, "existing");
+                
+                // Paths outside of the export directory are rejected.
+                JsonObject exportGraph = new JsonObject()
+                        .putString("action", "exportGraph")
+                        .putString("path", "../escaped.json");
+                
+                vertx.eventBus().send("test.persistor.files", exportGraph, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("error", message.body().getString("status"));
+                        assertFalse(new File(tempFolder.getRoot(), "escaped.json").exists());
+                        
+                        // Existing files are not overwritten, nor deleted.
+                        JsonObject exportGraph = new JsonObject()
+                                .putString("action", "exportGraph")
+                                .putString("path", "existing.json");
+                        
+                        vertx.eventBus().send("test.persistor.files", exportGraph, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                assertEquals("error", message.body().getString("status"));
+                                assertEquals(8L, existingFile.length());
+                                
+                                testComplete();
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testAddGetAndDropKeyIndex() {
+
+        // Load sample GraphSON message derived from Neo4J documentation.
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject reply = message.body();
+                assertEquals("ok", reply.getString("status"));
+
+                JsonObject createKeyIndex = new JsonObject()
+                        .putString("action", "createKeyIndex")
+                        .putString("key", "name")
+                        .putString("elementClass", "Vertex");
+                
+                vertx.eventBus().send("test.persistor", createKeyIndex, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        JsonObject reply = message.body();
+                        assertEquals("ok", reply.getString("status"));
+                        
+                        JsonObject getIndexedKeys = new JsonObject()
+                                .putString("action", "getIndexedKeys")
+                                .putString("elementClass", "Vertex");
+                        
+                        vertx.eventBus().send("test.persistor", getIndexedKeys, new Handler<Message<JsonObject>>() {
+
+                            @Override
+                            public void handle(Message<JsonObject> message) {
+                                JsonObject reply = message.body();
+                                assertEquals("ok", reply.getString("status"));
+                                assertNotNull(reply.getArray("keys"));
+                                assertEquals(1, reply.getArray("keys").size());
+                                assertEquals("name", reply.getArray("keys").get(0));
+                                
+                                JsonObject dropKeyIndex = new JsonObject()
+                                        .putString("action", "dropKeyIndex")
+                                        .putString("key", "name")
+                                        .putString("elementClass", "Vertex");
+
+                                vertx.eventBus().send("test.persistor", dropKeyIndex, new Handler<Message<JsonObject>>() {
+
+                                    @Override
+                                    public void handle(Message<JsonObject> message) {
+                                        JsonObject reply = message.body();
+                                        assertEquals("ok", reply.getString("status"));
+                                        testComplete();
+                                    }
+                                });
+                            }                            
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    @Test
+    public void testAsyncKeyIndex() {
+
+        // Load sample GraphSON message derived from Neo4J documentation.
+        JsonObject graphToAdd = getResourceAsJson("neo4jAclGraphExample.json");
+        JsonObject message = new JsonObject().putString("action", "addGraph")
+                .putObject("graph", graphToAdd);
+        
+        vertx.eventBus().send("test.persistor", message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+
+                JsonObject createKeyIndex = new JsonObject()
+                        .putString("action", "createKeyIndex")
+                        .putString("key", "name")
+                        .putString("elementClass", "Vertex")
+                        .putBoolean("async", true)
+                        .putBoolean("scanElements", true);
+                
+                vertx.eventBus().send("test.persistor", createKeyIndex, new Handler<Message<JsonObject>>() {
+
+                    @Override
+                    public void handle(Message<JsonObject> message) {
+                        assertEquals("ok", message.body().getString("status"));
+                        assertNotNull(message.body().getString("jobId"));
+                        
+                        pollJob(message.body().getString("jobId"), new Handler<JsonObject>() {
+
+                            @Override
+                            public void handle(JsonObject job) {
+                                assertEquals("COMPLETED", job.getString("jobStatus"));
+                                assertEquals("done", job.getString("phase"));
+                                assertTrue(job.getNumber("elementsScanned").intValue() > 0);
+                                
+                                JsonObject getIndexedKeys = new JsonObject()
+                                        .putString("action", "getIndexedKeys")
+                                        .putString("elementClass", "Vertex");
+                                
+                                vertx.eventBus().send("test.persistor", getIndexedKeys, new Handler<Message<JsonObject>>() {
+
+                                    @Override
+                                    public void handle(Message<JsonObject> message) {
+                                        assertEquals("ok", message.body().getString("status"));
+                                        assertTrue(message.body().getArray("keys").contains("name"));
+                                        testComplete();
+                                    }
+                                });
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
+    
+    /**
+     * Deploy another persistor with its own configuration. It is deployed from the test classpath,
+     * so that it can use a {@link SharedTinkerGraph}.
+     */
+    private void deployPersistor(JsonObject persistorConfig, final Handler<Void> deployed) {
+        container.deployWorkerVerticle(TinkerpopPersistor.class.getName(), persistorConfig, 1, true,
+                new AsyncResultHandler<String>() {
+            
+            @Override
+            public void handle(AsyncResult<String> asyncResult) {
+                assertTrue(asyncResult.succeeded());
+                deployed.handle(null);
+            }
+        });
+    }
+    
+    /**
+     * Send the messages at once, and collect the replies in the order of the messages.
+     */
+    private void sendAll(String address, JsonObject[] messages, final Handler<JsonObject[]> replied) {
+        final JsonObject[] replies = new JsonObject[messages.length];
+        final AtomicInteger pending = new AtomicInteger(messages.length);
+        
+        for (int i = 0; i < messages.length; i++) {
+            final int index = i;
+            vertx.eventBus().send(address, messages[i], new Handler<Message<JsonObject>>() {
+
+                @Override
+                public void handle(Message<JsonObject> reply) {
+                    replies[index] = reply.body();
+                    if (pending.decrementAndGet() == 0) {
+                        replied.handle(replies);
+                    }
+                }
+            });
+        }
+    }
+    
+    private JsonObject getTenantVertex(String id, String tenant) {
+        return new JsonObject().putString("_id", id).putString("tenant", tenant)
+                .putString("name", id).putString("type", "company");
+    }
+    
+    private JsonObject getAddVertexMessage(JsonObject vertex) {
+        return new JsonObject().putString("action", "addVertex")
+                .putArray("vertices", new JsonArray().addObject(vertex));
+    }
+    
+    /**
+     * Poll the status of a background job until it has finished.
+     */
+    private void pollJob(final String jobId, final Handler<JsonObject> finished) {
+        JsonObject getJob = new JsonObject().putString("action", "getJob").putString("jobId", jobId);
+        
+        vertx.eventBus().send("test.persistor", getJob, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                assertEquals("ok", message.body().getString("status"));
+                
+                String jobStatus = message.body().getString("jobStatus");
+                if ("COMPLETED".equals(jobStatus) || "FAILED".equals(jobStatus)) {
+                    finished.handle(message.body());
+                    return;
+                }
+                
+                vertx.setTimer(50, new Handler<Long>() {
+
+                    @Override
+                    public void handle(Long timerId) {
+                        pollJob(jobId, finished);
+                    }
+                });
+            }
+        });
+    }
+    
+    private JsonObject getNeo4jConfig() {
+        JsonObject neo4jConfig = new JsonObject();
+        neo4jConfig.putString(
+                "blueprints.graph", "com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph");
+        neo4jConfig.putString("blueprints.neo4j.directory", tempFolder.getRoot().getPath());
+
+        JsonObject config = new JsonObject();
+        config.putString("address", "test.persistor");
+        config.putObject("tinkerpopConfig", neo4jConfig);
+        
+        return config;
+    }
+    
+    /**
+     * Get the configuration of a persistor that tests a single feature. It has its own address
+     * and its own Neo4J database, so that the feature does not affect the other tests.
+     */
+    private JsonObject getFeatureConfig(String name) {
+        JsonObject neo4jConfig = new JsonObject();
+        neo4jConfig.putString(
+                "blueprints.graph", "com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph");
+        neo4jConfig.putString("blueprints.neo4j.directory", 
+                new File(tempFolder.getRoot(), name).getPath());
+        
+        return new JsonObject().putString("address", "test.persistor." + name)
+                .putObject("tinkerpopConfig", neo4jConfig);
+    }
+    
+    private JsonObject getShardingConfig() {
+        JsonObject shards = new JsonObject();
+        for (String shard : new String[] {"shard1", "shard2"}) {
+            String name = "sharded-" + shard;
+            SharedTinkerGraph.clear(name);
+            shards.putObject(shard, new JsonObject()
+                    .putString("blueprints.graph", SharedTinkerGraph.class.getName())
+                    .putString("blueprints.tg.name", name));
+        }
+        
+        // With a single slot, a broadcast would wait forever if its shard messages needed a slot too.
+        return new JsonObject().putString("address", "test.persistor.sharded")
+                .putObject("sharding", new JsonObject()
+                        .putObject("shards", shards)
+                        .putString("partitionKey", "tenant")
+                        .putString("idPrefixSeparator", ":"))
+                .putObject("quotas", new JsonObject().putObject("default", 
+                        new JsonObject().putNumber("maxConcurrent", 1)));
+    }
+    
+    private JsonObject getGroupCommitConfig() {
+        
+        // A long delay makes sure that concurrent writes end up in the same batch.
+        return getFeatureConfig("batched")
+                .putObject("groupCommit", new JsonObject().putNumber("maxDelay", 500));
+    }
+    
+    private JsonObject getMemoryTierConfig() {
+        return getFeatureConfig("cached")
+                .putObject("memoryTier", new JsonObject().putObject("vertexFilter", new JsonObject()
+                        .putArray("predicates", new JsonArray().addObject(new JsonObject()
+                                .putString("key", "type").putString("value", "folder")))));
+    }
+    
+    private JsonObject getChangeCaptureConfig() {
+        return getFeatureConfig("captured")
+                .putObject("changeCapture", new JsonObject().putNumber("maxDelay", 5));
+    }
+    
+    private JsonObject getQuotasConfig() {
+        return getFeatureConfig("limited")
+                .putObject("quotas", new JsonObject().putObject("clients", new JsonObject()
+                        .putObject("limited", new JsonObject().putNumber("rate", 1).putNumber("burst", 1))));
+    }
+    
+    private JsonObject getCompressionConfig() {
+        return getFeatureConfig("compressed")
+                .putObject("compression", new JsonObject().putNumber("threshold", 64));
+    }
+    
+    private JsonObject getNamedGraphsConfig() {
+        return getFeatureConfig("named")
+                .putObject("graphs", new JsonObject().putObject("tenant", getNamedGraphConfig()));
+    }
+    
+    private JsonObject getFilesConfig() {
+        return getFeatureConfig("files")
+                .putString("importDirectory", new File(
+                        ClassLoader.getSystemResource("neo4jAclGraphExample.json").getFile()).getParent())
+                .putString("exportDirectory", new File(tempFolder.getRoot(), "exports").getPath());
+    }
+    
+    private JsonObject getNamedGraphConfig() {
+        JsonObject neo4jConfig = new JsonObject();
+        neo4jConfig.putString(
+                "blueprints.graph", "com.tinkerpop.blueprints.impls.neo4j.Neo4jGraph");
+        neo4jConfig.putString("blueprints.neo4j.directory", 
+                new File(tempFolder.getRoot(), "tenant").getPath());
+        
+        return new JsonObject().putObject("tinkerpopConfig", neo4jConfig).putNumber("maxConcurrent", 2);
+    }
+    
+    private JsonObject getOrientDbConfig() {
+        JsonObject orientDbConfig = new JsonObject();
+        orientDbConfig.putString(
+                "blueprints.graph", "com.tinkerpop.blueprints.impls.orient.OrientGraph");
+        orientDbConfig.putString("blueprints.orientdb.url", "plocal:" + tempFolder.getRoot().getPath());
+        
+        // TODO: Add your own user here in <orientdb-location>/config/orientdb-server-config.xml
+        orientDbConfig.putString("blueprints.orientdb.username", "admin");
+        orientDbConfig.putString("blueprints.orientdb.password", "admin");
+
+        // New configuration options (available in v1.6.0-SNAPSHOT).
+        orientDbConfig.putBoolean("blueprints.orientdb.saveOriginalIds", true);
+        orientDbConfig.putBoolean("blueprints.orientdb.lightweightEdges", true);
+        
+        JsonObject config = new JsonObject();
+        config.putString("address", "test.persistor");
+        config.putObject("tinkerpopConfig", orientDbConfig);
+        
+        return config;        
+    }
+    
+    private byte[] deflate(String json) {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        try (DeflaterOutputStream dos = new DeflaterOutputStream(os)) {
+            dos.write(json.getBytes("UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return os.toByteArray();
+    }
+    
+    private String inflate(byte[] payload) {
+        try (InputStream is = new InflaterInputStream(new ByteArrayInputStream(payload))) {
+            return IOUtils.toString(is, "UTF-8");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
     
     private JsonObject getResourceAsJson(String filename) {
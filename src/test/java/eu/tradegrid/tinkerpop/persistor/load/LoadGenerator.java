@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.load;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.commons.io.IOUtils;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.java.core.logging.Logger;
+import org.vertx.java.platform.Verticle;
+
+import eu.tradegrid.tinkerpop.persistor.TinkerpopPersistor;
+
+/**
+ * Verticle that drives a configurable mix of actions through the event bus at a persistor and
+ * reports the throughput and latency percentiles. By default it deploys its own persistor on a
+ * {@link SharedTinkerGraph}, seeded with graph-example-2.json, so that a run needs no external
+ * database. The configuration looks like:
+ * <pre>
+ * {
+ *     "address": "tinkerpop.persistor.load",
+ *     "deployPersistor": true,
+ *     "seedGraph": "graph-example-2.json",
+ *     "mix": {"getVertex": 60, "query": 20, "addVertex": 15, "addEdge": 5},
+ *     "query": "_().out('followed_by')",
+ *     "edgeLabel": "followed_by",
+ *     "concurrency": 16,
+ *     "warmup": 5000,
+ *     "duration": 30000,
+ *     "randomSeed": 42,
+ *     "reportAddress": "tinkerpop.persistor.load.report"
+ * }
+ * </pre>
+ * 'concurrency' is the number of requests that are outstanding at any time. Requests sent during
+ * the first 'warmup' milliseconds are not measured. The actions and the Vertices they use are
+ * drawn from a random generator with a fixed seed, so that runs are repeatable. The report is
+ * logged, and sent to the 'reportAddress' if configured.
+ * <p/>
+ * Note that the shared TinkerGraph executes one action at a time, so with the default setup the
+ * run measures the overhead of the module and the event bus rather than database concurrency.
+ * Set 'deployPersistor' to false to load an already deployed persistor instead.
+ */
+public class LoadGenerator extends Verticle {
+
+    private static final List<String> ACTIONS = Arrays.asList("getVertex", "query", "addVertex", "addEdge");
+
+    private Logger logger;
+    private JsonObject config;
+    private String address;
+
+    private String[] mixActions;
+    private int[] mixWeights;
+    private int totalWeight;
+    private String query;
+    private String edgeLabel;
+    private int concurrency;
+    private long warmup;
+    private long duration;
+    private Random random;
+
+    private final List<Object> vertexIds = new ArrayList<>();
+    private final Map<String, LatencyRecorder> recorders = new LinkedHashMap<>();
+    private long measureStart;
+    private long deadline;
+    private int outstanding;
+    private long sequence;
+    private boolean finished;
+
+    @Override
+    public void start() {
+        logger = container.logger();
+        config = container.config();
+        address = config.getString("address", "tinkerpop.persistor.load");
+
+        query = config.getString("query", "_().out('followed_by')");
+        edgeLabel = config.getString("edgeLabel", "followed_by");
+        concurrency = config.getInteger("concurrency", 16);
+        warmup = config.getLong("warmup", 5000L);
+        duration = config.getLong("duration", 30000L);
+        random = new Random(config.getLong("randomSeed", 42L));
+
+        JsonObject mix = config.getObject("mix", new JsonObject()
+                .putNumber("getVertex", 60).putNumber("query", 20)
+                .putNumber("addVertex", 15).putNumber("addEdge", 5));
+        mixActions = new String[mix.size()];
+        mixWeights = new int[mix.size()];
+        int i = 0;
+        for (String action : mix.getFieldNames()) {
+            if (!ACTIONS.contains(action)) {
+                logger.error("Unsupported action in load mix: " + action);
+                container.exit();
+                return;
+            }
+            mixActions[i] = action;
+            mixWeights[i++] = mix.getInteger(action);
+            totalWeight += mix.getInteger(action);
+            recorders.put(action, new LatencyRecorder());
+        }
+
+        if (!config.getBoolean("deployPersistor", true)) {
+            seed();
+            return;
+        }
+
+        SharedTinkerGraph.clear("load");
+        JsonObject persistorConfig = config.getObject("persistorConfig", new JsonObject()
+                .putString("address", address)
+                .putObject("tinkerpopConfig", new JsonObject()
+                        .putString("blueprints.graph", SharedTinkerGraph.class.getName())
+                        .putString("blueprints.tg.name", "load")));
+
+        container.deployWorkerVerticle(TinkerpopPersistor.class.getName(), persistorConfig, 1, true,
+                new AsyncResultHandler<String>() {
+
+            @Override
+            public void handle(AsyncResult<String> result) {
+                if (result.failed()) {
+                    logger.error("Cannot deploy the persistor", result.cause());
+                    container.exit();
+                    return;
+                }
+                seed();
+            }
+        });
+    }
+
+    /**
+     * Add the seed graph to the persistor and remember the Id's of its Vertices, as assigned by
+     * the graph if it ignores the supplied Id's.
+     */
+    private void seed() {
+        String seedGraph = config.getString("seedGraph", "graph-example-2.json");
+        JsonObject graphJson;
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream(seedGraph)) {
+            if (is == null) {
+                throw new IOException("Resource not found");
+            }
+            graphJson = new JsonObject(IOUtils.toString(is, "UTF-8"));
+        } catch (IOException e) {
+            logger.error("Cannot read seed graph " + seedGraph, e);
+            container.exit();
+            return;
+        }
+
+        for (Object vertex : graphJson.getArray("vertices")) {
+            vertexIds.add(((JsonObject) vertex).getValue("_id"));
+        }
+
+        JsonObject message = new JsonObject().putString("action", "addGraph").putObject("graph", graphJson);
+        vertx.eventBus().send(address, message, new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> reply) {
+                if (!"ok".equals(reply.body().getString("status"))) {
+                    logger.error("Cannot seed the graph: " + reply.body().getString("message"));
+                    container.exit();
+                    return;
+                }
+
+                // Graphs that ignore supplied Id's reply with the Id's they assigned instead.
+                JsonObject ids = reply.body().getObject("ids");
+                if (ids != null && ids.getObject("vertices") != null) {
+                    JsonObject vertexIdMapping = ids.getObject("vertices");
+                    vertexIds.clear();
+                    for (String suppliedId : vertexIdMapping.getFieldNames()) {
+                        vertexIds.add(vertexIdMapping.getValue(suppliedId));
+                    }
+                }
+
+                logger.info(String.format("Seeded %d vertices, running %d concurrent requests for %d ms",
+                        vertexIds.size(), concurrency, duration));
+                run();
+            }
+        });
+    }
+
+    private void run() {
+        measureStart = System.currentTimeMillis() + warmup;
+        deadline = measureStart + duration;
+
+        for (int i = 0; i < concurrency; i++) {
+            sendNext();
+        }
+
+        // Replies are not guaranteed, so do not wait for stragglers forever.
+        vertx.setTimer(warmup + duration + 10000, new Handler<Long>() {
+
+            @Override
+            public void handle(Long timerId) {
+                finish();
+            }
+        });
+    }
+
+    private void sendNext() {
+        final String action = nextAction();
+        final boolean measured = System.currentTimeMillis() >= measureStart;
+        final long startTime = System.nanoTime();
+
+        outstanding++;
+        vertx.eventBus().send(address, createMessage(action), new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> reply) {
+                long latency = System.nanoTime() - startTime;
+                outstanding--;
+
+                if (measured) {
+                    LatencyRecorder recorder = recorders.get(action);
+                    if ("ok".equals(reply.body().getString("status"))) {
+                        recorder.record(latency);
+                    } else {
+                        recorder.errors++;
+                    }
+                }
+
+                if (System.currentTimeMillis() < deadline) {
+                    sendNext();
+                } else if (outstanding == 0) {
+                    finish();
+                }
+            }
+        });
+    }
+
+    private String nextAction() {
+        int value = random.nextInt(totalWeight);
+        for (int i = 0; i < mixActions.length; i++) {
+            value -= mixWeights[i];
+            if (value < 0) {
+                return mixActions[i];
+            }
+        }
+        return mixActions[mixActions.length - 1];
+    }
+
+    private JsonObject createMessage(String action) {
+        JsonObject message = new JsonObject().putString("action", action);
+        switch (action) {
+            case "getVertex":
+                return message.putValue("_id", randomVertexId());
+            case "query":
+                return message.putValue("_id", randomVertexId()).putString("query", query);
+            case "addVertex":
+                return message.putArray("vertices", new JsonArray().addObject(new JsonObject()
+                        .putString("name", "load-" + ++sequence).putString("type", "song")));
+            default:
+                return message.putArray("edges", new JsonArray().addObject(new JsonObject()
+                        .putValue("_outV", randomVertexId())
+                        .putValue("_inV", randomVertexId())
+                        .putString("_label", edgeLabel)
+                        .putNumber("weight", 1)));
+        }
+    }
+
+    private Object randomVertexId() {
+        return vertexIds.get(random.nextInt(vertexIds.size()));
+    }
+
+    private void finish() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+
+        LatencyRecorder total = new LatencyRecorder();
+        JsonObject actions = new JsonObject();
+        for (Map.Entry<String, LatencyRecorder> entry : recorders.entrySet()) {
+            total.add(entry.getValue());
+            actions.putObject(entry.getKey(), entry.getValue().toJson(duration));
+        }
+
+        JsonObject report = total.toJson(duration)
+                .putNumber("concurrency", concurrency)
+                .putNumber("duration", duration)
+                .putNumber("unanswered", outstanding)
+                .putObject("actions", actions);
+
+        logger.info("Load test report: " + report.encode());
+
+        String reportAddress = config.getString("reportAddress");
+        if (reportAddress != null) {
+            vertx.eventBus().send(reportAddress, report);
+        }
+    }
+
+    /**
+     * Records the latencies in nanoseconds of the successful requests of one action.
+     */
+    private static class LatencyRecorder {
+
+        private long[] latencies = new long[1024];
+        private int count;
+        private int errors;
+
+        void record(long latency) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+
+        void add(LatencyRecorder other) {
+            for (int i = 0; i < other.count; i++) {
+                record(other.latencies[i]);
+            }
+            errors += other.errors;
+        }
+
+        JsonObject toJson(long duration) {
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+
+            return new JsonObject()
+                    .putNumber("requests", count + errors)
+                    .putNumber("errors", errors)
+                    .putNumber("throughput", duration > 0 ? (count + errors) * 1000.0 / duration : 0)
+                    .putObject("latency", new JsonObject()
+                            .putNumber("p50", percentile(sorted, 0.5))
+                            .putNumber("p99", percentile(sorted, 0.99))
+                            .putNumber("p999", percentile(sorted, 0.999))
+                            .putNumber("max", percentile(sorted, 1.0)));
+        }
+
+        /**
+         * @return the latency in milliseconds below which the fraction of the requests fell
+         */
+        private static double percentile(long[] sorted, double fraction) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(fraction * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1000000.0;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.load;
+
+import static org.vertx.testtools.VertxAssert.assertEquals;
+import static org.vertx.testtools.VertxAssert.assertTrue;
+import static org.vertx.testtools.VertxAssert.testComplete;
+
+import org.junit.Test;
+import org.vertx.java.core.AsyncResult;
+import org.vertx.java.core.AsyncResultHandler;
+import org.vertx.java.core.Handler;
+import org.vertx.java.core.eventbus.Message;
+import org.vertx.java.core.json.JsonObject;
+import org.vertx.testtools.TestVerticle;
+
+/**
+ * Runs the {@link LoadGenerator} against an in-memory graph. It is not part of the regular
+ * build; run it with:
+ * <pre>
+ * mvn verify -Dit.test=LoadTest -Dload.concurrency=16 -Dload.duration=30000
+ * </pre>
+ * The mix can be changed with e.g. -Dload.mix='{"getVertex":90,"addVertex":10}'.
+ */
+public class LoadTest extends TestVerticle {
+
+    @Test
+    public void testLoad() {
+        JsonObject config = new JsonObject()
+                .putNumber("concurrency", Integer.getInteger("load.concurrency", 16))
+                .putNumber("warmup", Long.getLong("load.warmup", 5000L))
+                .putNumber("duration", Long.getLong("load.duration", 30000L))
+                .putNumber("randomSeed", Long.getLong("load.randomSeed", 42L))
+                .putString("reportAddress", "test.load.report");
+
+        String mix = System.getProperty("load.mix");
+        if (mix != null) {
+            config.putObject("mix", new JsonObject(mix));
+        }
+
+        vertx.eventBus().registerHandler("test.load.report", new Handler<Message<JsonObject>>() {
+
+            @Override
+            public void handle(Message<JsonObject> message) {
+                JsonObject report = message.body();
+                assertTrue(report.getLong("requests", 0L) > 0);
+                assertEquals(0L, report.getLong("errors", 0L));
+                assertEquals(0L, report.getLong("unanswered", 0L));
+
+                testComplete();
+            }
+        });
+
+        container.deployVerticle(LoadGenerator.class.getName(), config, 1, new AsyncResultHandler<String>() {
+
+            @Override
+            public void handle(AsyncResult<String> result) {
+                assertTrue(result.succeeded());
+            }
+        });
+    }
+}
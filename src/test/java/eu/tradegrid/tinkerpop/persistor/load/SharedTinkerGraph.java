@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.load;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Element;
+import com.tinkerpop.blueprints.Features;
+import com.tinkerpop.blueprints.GraphQuery;
+import com.tinkerpop.blueprints.KeyIndexableGraph;
+import com.tinkerpop.blueprints.Parameter;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+
+/**
+ * Blueprints graph factory that hands out views on a single in-memory {@link TinkerGraph} per
+ * name, so that the graph survives the open / shutdown cycle of every persistor action:
+ * <pre>
+ * "tinkerpopConfig": {
+ *     "blueprints.graph": "eu.tradegrid.tinkerpop.persistor.load.SharedTinkerGraph",
+ *     "blueprints.tg.name": "load"
+ * }
+ * </pre>
+ * TinkerGraph is not thread-safe, so a view holds the lock of its graph from {@link #open} until
+ * {@link #shutdown()}. Actions on the same graph are therefore executed one at a time, and the
+ * persistor must open and shut down a graph on the same thread, which it does.
+ */
+public class SharedTinkerGraph implements KeyIndexableGraph {
+
+    private static final ConcurrentMap<String, SharedTinkerGraph> GRAPHS = new ConcurrentHashMap<>();
+
+    private final TinkerGraph graph;
+    private final ReentrantLock lock;
+    private boolean open = true;
+
+    private SharedTinkerGraph(TinkerGraph graph, ReentrantLock lock) {
+        this.graph = graph;
+        this.lock = lock;
+    }
+
+    /**
+     * Open a view on the named graph. Used by {@link com.tinkerpop.blueprints.GraphFactory},
+     * just like {@link #open(Configuration)}.
+     *
+     * @param configuration the Tinkerpop configuration
+     */
+    public SharedTinkerGraph(Configuration configuration) {
+        String name = configuration.getString("blueprints.tg.name", "default");
+
+        SharedTinkerGraph shared = GRAPHS.get(name);
+        if (shared == null) {
+            GRAPHS.putIfAbsent(name, new SharedTinkerGraph(new TinkerGraph(), new ReentrantLock()));
+            shared = GRAPHS.get(name);
+        }
+
+        this.graph = shared.graph;
+        this.lock = shared.lock;
+        lock.lock();
+    }
+
+    /**
+     * Called by {@link com.tinkerpop.blueprints.GraphFactory} to open a view on the named graph.
+     *
+     * @param configuration the Tinkerpop configuration
+     * @return the view, which must be shut down to release the graph
+     */
+    public static SharedTinkerGraph open(Configuration configuration) {
+        return new SharedTinkerGraph(configuration);
+    }
+
+    /**
+     * Discard the named graph, so that the next run starts with an empty graph.
+     *
+     * @param name the name of the graph
+     */
+    public static void clear(String name) {
+        GRAPHS.remove(name);
+    }
+
+    @Override
+    public void shutdown() {
+        if (open) {
+            open = false;
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Features getFeatures() {
+        return graph.getFeatures();
+    }
+
+    @Override
+    public Vertex addVertex(Object id) {
+        return graph.addVertex(id);
+    }
+
+    @Override
+    public Vertex getVertex(Object id) {
+        return graph.getVertex(id);
+    }
+
+    @Override
+    public void removeVertex(Vertex vertex) {
+        graph.removeVertex(vertex);
+    }
+
+    @Override
+    public Iterable<Vertex> getVertices() {
+        return graph.getVertices();
+    }
+
+    @Override
+    public Iterable<Vertex> getVertices(String key, Object value) {
+        return graph.getVertices(key, value);
+    }
+
+    @Override
+    public Edge addEdge(Object id, Vertex outVertex, Vertex inVertex, String label) {
+        return graph.addEdge(id, outVertex, inVertex, label);
+    }
+
+    @Override
+    public Edge getEdge(Object id) {
+        return graph.getEdge(id);
+    }
+
+    @Override
+    public void removeEdge(Edge edge) {
+        graph.removeEdge(edge);
+    }
+
+    @Override
+    public Iterable<Edge> getEdges() {
+        return graph.getEdges();
+    }
+
+    @Override
+    public Iterable<Edge> getEdges(String key, Object value) {
+        return graph.getEdges(key, value);
+    }
+
+    @Override
+    public GraphQuery query() {
+        return graph.query();
+    }
+
+    @Override
+    public <T extends Element> void dropKeyIndex(String key, Class<T> elementClass) {
+        graph.dropKeyIndex(key, elementClass);
+    }
+
+    @Override
+    public <T extends Element> void createKeyIndex(String key, Class<T> elementClass,
+            @SuppressWarnings("rawtypes") Parameter... indexParameters) {
+        graph.createKeyIndex(key, elementClass, indexParameters);
+    }
+
+    @Override
+    public <T extends Element> Set<String> getIndexedKeys(Class<T> elementClass) {
+        return graph.getIndexedKeys(elementClass);
+    }
+
+    @Override
+    public String toString() {
+        return "shared" + graph.toString();
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+
+import eu.tradegrid.tinkerpop.persistor.util.GraphSONStreamReader;
+import eu.tradegrid.tinkerpop.persistor.util.JsonUtility;
+
+/**
+ * Unit tests of the resolution of the vertices of edges while streaming a GraphSON document.
+ */
+public class GraphSONStreamReaderTest {
+
+    // The edge refers to vertex 'existing', which is not part of the document.
+    private static final String DOCUMENT = "{\"vertices\": [{\"_id\": \"new\", \"_type\": \"vertex\"}], "
+            + "\"edges\": [{\"_outV\": \"new\", \"_inV\": \"existing\", \"_label\": \"knows\", \"_type\": \"edge\"}]}";
+
+    private TinkerGraph graph;
+
+    @Before
+    public void createGraph() {
+        graph = new TinkerGraph();
+        graph.addVertex("existing");
+    }
+
+    @Test
+    public void testUnknownVertexFails() {
+        GraphSONStreamReader reader = new GraphSONStreamReader(new JsonUtility("NORMAL"), 1000);
+        try {
+            reader.read(graph, getDocument());
+            fail("An edge to a vertex outside of the document must fail by default");
+        } catch (IOException e) {
+            assertEquals(0L, reader.getEdgeCount());
+        }
+    }
+
+    @Test
+    public void testResolveDatabaseIds() throws IOException {
+        GraphSONStreamReader reader = new GraphSONStreamReader(new JsonUtility("NORMAL"), 1000);
+        reader.setResolveDatabaseIds(true);
+        reader.read(graph, getDocument());
+
+        assertEquals(1L, reader.getEdgeCount());
+        Edge edge = graph.getEdges().iterator().next();
+        assertEquals("existing", edge.getVertex(Direction.IN).getId());
+    }
+
+    private InputStream getDocument() {
+        return new ByteArrayInputStream(DOCUMENT.getBytes(StandardCharsets.UTF_8));
+    }
+}
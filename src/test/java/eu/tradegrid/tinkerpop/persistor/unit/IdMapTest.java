@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import eu.tradegrid.tinkerpop.persistor.util.IdMap;
+
+/**
+ * Unit tests of the mapping of supplied Id's to generated Id's.
+ */
+public class IdMapTest {
+
+    @Test
+    public void testResize() {
+        IdMap idMap = new IdMap(0);
+        for (long i = 0; i < 10000; i++) {
+            idMap.put(i, i * 10);
+        }
+
+        assertEquals(10000, idMap.size());
+        for (long i = 0; i < 10000; i++) {
+            assertEquals(i * 10, idMap.get(i));
+        }
+        assertNull(idMap.get(10000L));
+        assertFalse(idMap.isOffHeap());
+    }
+
+    @Test
+    public void testOffHeap() {
+        IdMap idMap = new IdMap(100);
+        for (long i = 0; i < 50; i++) {
+            idMap.put(i, i + 1);
+        }
+        assertFalse(idMap.isOffHeap());
+
+        for (long i = 50; i < 1000; i++) {
+            idMap.put(i, i + 1);
+        }
+        assertTrue(idMap.isOffHeap());
+        assertEquals(1000, idMap.size());
+        for (long i = 0; i < 1000; i++) {
+            assertEquals(i + 1, idMap.get(i));
+        }
+    }
+
+    @Test
+    public void testMinValueKey() {
+        IdMap idMap = new IdMap(0);
+        idMap.put(Long.MIN_VALUE, 1L);
+        idMap.put(0L, 2L);
+
+        assertEquals(2, idMap.size());
+        assertEquals(1L, idMap.get(Long.MIN_VALUE));
+        assertEquals(2L, idMap.get(0L));
+
+        idMap.put(Long.MIN_VALUE, 3L);
+        assertEquals(2, idMap.size());
+        assertEquals(3L, idMap.get(Long.MIN_VALUE));
+    }
+
+    @Test
+    public void testNumberAndStringIds() {
+        IdMap idMap = new IdMap(0);
+        idMap.put("338", "#9:0");
+        idMap.put(12, "#9:1");
+        idMap.put("0042", "#9:2");
+        idMap.put("marko", "#9:3");
+
+        assertEquals("#9:0", idMap.get(338));
+        assertEquals("#9:0", idMap.get(338L));
+        assertEquals("#9:1", idMap.get("12"));
+        assertEquals("#9:2", idMap.get("0042"));
+        assertNull(idMap.get(42));
+        assertEquals("#9:3", idMap.get("marko"));
+
+        // Replacing a mapping does not add an entry.
+        idMap.put(338L, "#9:4");
+        assertEquals("#9:4", idMap.get("338"));
+        assertEquals(4, idMap.size());
+    }
+
+    @Test
+    public void testMixedGeneratedIds() {
+        IdMap idMap = new IdMap(0);
+        idMap.put(1, 100L);
+        idMap.put(2, "#9:0");
+
+        assertEquals(100L, idMap.get(1));
+        assertEquals("#9:0", idMap.get(2));
+
+        idMap.put(2, 200L);
+        assertEquals(200L, idMap.get(2));
+        assertEquals(2, idMap.size());
+    }
+
+    @Test
+    public void testIterator() {
+        IdMap idMap = new IdMap(0);
+        Map<Object, Object> expected = new HashMap<>();
+        for (long i = 0; i < 100; i++) {
+            idMap.put(String.valueOf(i), "v" + i);
+            expected.put(i, "v" + i);
+        }
+        idMap.put(Long.MIN_VALUE, "min");
+        expected.put(Long.MIN_VALUE, "min");
+        idMap.put("marko", "v-marko");
+        expected.put("marko", "v-marko");
+
+        Map<Object, Object> actual = new HashMap<>();
+        for (Map.Entry<Object, Object> entry : idMap) {
+            assertNull(actual.put(entry.getKey(), entry.getValue()));
+        }
+        assertEquals(expected, actual);
+    }
+}
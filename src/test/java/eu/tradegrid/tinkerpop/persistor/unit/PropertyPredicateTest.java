@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.unit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import eu.tradegrid.tinkerpop.persistor.util.PropertyPredicate;
+
+/**
+ * Unit tests of the comparison of property values.
+ */
+public class PropertyPredicateTest {
+
+    @Test
+    public void testNumbersEqualByValue() {
+        assertTrue(PropertyPredicate.valuesEqual(5, 5L));
+        assertTrue(PropertyPredicate.valuesEqual((short) 5, 5));
+        assertTrue(PropertyPredicate.valuesEqual(2.5f, 2.5d));
+        assertFalse(PropertyPredicate.valuesEqual(5, 6L));
+        assertFalse(PropertyPredicate.valuesEqual(Long.MAX_VALUE, Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void testOtherValues() {
+        assertTrue(PropertyPredicate.valuesEqual("5", "5"));
+        assertFalse(PropertyPredicate.valuesEqual("5", 5));
+        assertTrue(PropertyPredicate.valuesEqual(null, null));
+        assertFalse(PropertyPredicate.valuesEqual(null, 5));
+        assertFalse(PropertyPredicate.valuesEqual(5, null));
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.vertx.java.core.json.JsonArray;
+import org.vertx.java.core.json.JsonObject;
+
+import eu.tradegrid.tinkerpop.persistor.replica.ReplicaRouter;
+
+/**
+ * Unit tests of the read / write classification, selection and ejection of read replicas.
+ */
+public class ReplicaRouterTest {
+
+    @Test
+    public void testReadActions() {
+        JsonObject body = new JsonObject();
+        assertTrue(ReplicaRouter.isReadAction("getVertices", body));
+        assertTrue(ReplicaRouter.isReadAction("countEdges", body));
+        assertTrue(ReplicaRouter.isReadAction("shortestPath", body));
+        assertFalse(ReplicaRouter.isReadAction("addVertex", body));
+        assertFalse(ReplicaRouter.isReadAction("createKeyIndex", body));
+        assertFalse(ReplicaRouter.isReadAction("importGraph", body));
+    }
+
+    @Test
+    public void testQueryClassification() {
+        JsonObject traversal = new JsonObject().putArray("traversal", new JsonArray());
+        assertTrue(ReplicaRouter.isReadAction("query", traversal));
+
+        // Query strings can modify the graph without any recognizable step.
+        JsonObject query = new JsonObject().putString("query", "_().transform{it.name = 'x'}");
+        assertFalse(ReplicaRouter.isReadAction("query", query));
+        assertFalse(ReplicaRouter.isReadAction("query", new JsonObject().putString("query", "_().out")));
+
+        query.putBoolean("readOnly", true);
+        assertTrue(ReplicaRouter.isReadAction("query", query));
+    }
+
+    @Test
+    public void testRoundRobin() {
+        ReplicaRouter router = new ReplicaRouter(getReplicationConfig(3));
+
+        int first = router.select().getIndex();
+        assertEquals((first + 1) % 3, router.select().getIndex());
+        assertEquals((first + 2) % 3, router.select().getIndex());
+        assertEquals(first, router.select().getIndex());
+    }
+
+    @Test
+    public void testEjectAfterFailures() throws InterruptedException {
+        ReplicaRouter router = new ReplicaRouter(getReplicationConfig(2));
+        ReplicaRouter.Replica failing = router.getReplicas().get(0);
+
+        assertFalse(failing.recordFailure());
+        assertFalse(failing.recordFailure());
+        assertTrue(failing.recordFailure());
+
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, router.select().getIndex());
+        }
+
+        // The ejected replica is used again after the eject time.
+        Thread.sleep(150);
+        boolean selected = false;
+        for (int i = 0; i < 2; i++) {
+            selected |= router.select().getIndex() == 0;
+        }
+        assertTrue(selected);
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        ReplicaRouter router = new ReplicaRouter(getReplicationConfig(1));
+        ReplicaRouter.Replica replica = router.getReplicas().get(0);
+
+        assertFalse(replica.recordFailure());
+        assertFalse(replica.recordFailure());
+        assertFalse(replica.recordLatency(10));
+        assertFalse(replica.recordFailure());
+        assertFalse(replica.recordFailure());
+        assertTrue(replica.recordFailure());
+    }
+
+    @Test
+    public void testEjectWhenSlow() {
+        ReplicaRouter router = new ReplicaRouter(getReplicationConfig(1));
+        ReplicaRouter.Replica replica = router.getReplicas().get(0);
+
+        assertFalse(replica.recordLatency(50));
+        assertTrue(replica.recordLatency(5000));
+        assertNull(router.select());
+    }
+
+    private JsonObject getReplicationConfig(int count) {
+        JsonArray replicas = new JsonArray();
+        for (int i = 0; i < count; i++) {
+            replicas.addObject(new JsonObject()
+                    .putString("blueprints.graph", "com.tinkerpop.blueprints.impls.tg.TinkerGraph"));
+        }
+
+        return new JsonObject().putArray("replicas", replicas)
+                .putNumber("maxLatency", 100)
+                .putNumber("maxFailures", 3)
+                .putNumber("ejectTime", 100);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.tradegrid.tinkerpop.persistor.unit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.tinkerpop.blueprints.Direction;
+import com.tinkerpop.blueprints.Edge;
+import com.tinkerpop.blueprints.Vertex;
+import com.tinkerpop.blueprints.impls.tg.TinkerGraph;
+
+import eu.tradegrid.tinkerpop.persistor.algorithm.SubgraphExtractor;
+
+/**
+ * Unit tests of the extraction of subgraphs within an element budget.
+ */
+public class SubgraphExtractorTest {
+
+    private Vertex seed;
+
+    /**
+     * A seed vertex with edges to four neighbors.
+     */
+    @Before
+    public void createGraph() {
+        TinkerGraph graph = new TinkerGraph();
+        seed = graph.addVertex(null);
+        for (int i = 0; i < 4; i++) {
+            graph.addEdge(null, seed, graph.addVertex(null), "knows");
+        }
+    }
+
+    @Test
+    public void testWithinBudget() {
+        SubgraphExtractor extractor = new SubgraphExtractor(Direction.OUT, new String[0], null, 9);
+        extractor.extract(Collections.singletonList(seed), 1);
+
+        assertFalse(extractor.isTruncated());
+        assertEquals(5, extractor.getVertices().size());
+        assertEquals(4, extractor.getEdges().size());
+    }
+
+    @Test
+    public void testTruncatedKeepsEdges() {
+        SubgraphExtractor extractor = new SubgraphExtractor(Direction.OUT, new String[0], null, 4);
+        extractor.extract(Collections.singletonList(seed), 1);
+
+        // The vertices ran out of budget, so half of it is left to the edges between them.
+        assertTrue(extractor.isTruncated());
+        assertEquals(2, extractor.getVertices().size());
+        assertTrue(extractor.getVertices().contains(seed));
+        assertEquals(1, extractor.getEdges().size());
+
+        Edge edge = extractor.getEdges().iterator().next();
+        assertEquals(seed, edge.getVertex(Direction.OUT));
+        assertTrue(extractor.getVertices().contains(edge.getVertex(Direction.IN)));
+    }
+}